@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.graphics.Color;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * A/B fill cost of straight alpha with blending against premultiplied output without it,
+ * drawing a full-screen frame into an offscreen surface the size of the display. Rounds of
+ * both modes alternate, so clock and thermal changes hit them alike.
+ * <p>
+ * Only runs when asked for:
+ * <pre>
+ * ./gradlew :alpha-movie:connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmark=true
+ * </pre>
+ * The median time of a frame in each mode is logged and reported as instrumentation status.
+ */
+@RunWith(AndroidJUnit4.class)
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+public class FillCostBenchmarkTest {
+    private static final String TAG = "FillCostBenchmark";
+    private static final int WARMUP_FRAMES = 30;
+    private static final int FRAMES_PER_ROUND = 60;
+    private static final int ROUNDS = 5;
+
+    private OffscreenRenderer offscreen;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1);
+        assumeTrue(Boolean.parseBoolean(InstrumentationRegistry.getArguments().getString("benchmark")));
+        DisplayMetrics metrics = InstrumentationRegistry.getTargetContext().getResources().getDisplayMetrics();
+        offscreen = new OffscreenRenderer(metrics.widthPixels, metrics.heightPixels);
+        offscreen.create();
+    }
+
+    @After
+    public void tearDown() {
+        if (offscreen != null) {
+            offscreen.release();
+        }
+    }
+
+    @Test
+    public void compareStraightAndPremultipliedFill() {
+        offscreen.start();
+        // Half transparent gray, so blending has soft alpha to work on.
+        offscreen.queueFrame(Color.argb(128, 128, 128, 128));
+
+        long[] straight = new long[ROUNDS * FRAMES_PER_ROUND];
+        long[] premultiplied = new long[ROUNDS * FRAMES_PER_ROUND];
+        for (int round = 0; round < ROUNDS; round++) {
+            drawFrames(false, straight, round * FRAMES_PER_ROUND);
+            drawFrames(true, premultiplied, round * FRAMES_PER_ROUND);
+        }
+
+        long straightNanos = median(straight);
+        long premultipliedNanos = median(premultiplied);
+        String result = String.format(Locale.US,
+                "%dx%d straight %.3f ms, premultiplied %.3f ms per frame",
+                offscreen.getWidth(), offscreen.getHeight(), straightNanos / 1e6,
+                premultipliedNanos / 1e6);
+        Log.i(TAG, result);
+        Bundle status = new Bundle();
+        status.putString("fill_cost", result);
+        status.putLong("straight_median_ns", straightNanos);
+        status.putLong("premultiplied_median_ns", premultipliedNanos);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, status);
+        assertTrue(straightNanos > 0 && premultipliedNanos > 0);
+    }
+
+    /**
+     * Draws the queued frame again and again, waiting for the GPU after each draw.
+     */
+    private void drawFrames(boolean premultipliedOutput, long[] times, int offset) {
+        VideoRenderer renderer = offscreen.getRenderer();
+        renderer.setPremultipliedOutput(premultipliedOutput);
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            renderer.onDrawFrame(null);
+        }
+        GLES20.glFinish();
+        for (int i = 0; i < FRAMES_PER_ROUND; i++) {
+            long start = System.nanoTime();
+            renderer.onDrawFrame(null);
+            GLES20.glFinish();
+            times[offset + i] = System.nanoTime() - start;
+        }
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
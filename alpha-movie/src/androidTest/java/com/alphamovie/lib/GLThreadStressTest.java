@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.opengl.GLES20;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.widget.FrameLayout;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives many views with their own GL threads at once: render requests, events, pause,
+ * resume, detach and reattach from several threads. Fails if any thread hangs, or if a
+ * view doesn't draw or run an event requested after the churn.
+ */
+@RunWith(AndroidJUnit4.class)
+public class GLThreadStressTest {
+    private static final int VIEW_COUNT = 8;
+    private static final int VIEW_SIZE = 32;
+    private static final int WORKER_COUNT = 4;
+    private static final int OPERATIONS_PER_WORKER = 300;
+    private static final long STRESS_TIMEOUT_MS = 60000;
+    private static final long DRAW_TIMEOUT_MS = 5000;
+    private static final long QUIET_MS = 200;
+
+    @Rule
+    public ActivityTestRule<ViewHostActivity> activityRule =
+            new ActivityTestRule<ViewHostActivity>(ViewHostActivity.class);
+
+    private final GLTextureView[] views = new GLTextureView[VIEW_COUNT];
+    private final CountingRenderer[] renderers = new CountingRenderer[VIEW_COUNT];
+    // Guarded by the view's entry in locks.
+    private final boolean[] attached = new boolean[VIEW_COUNT];
+    private final boolean[] paused = new boolean[VIEW_COUNT];
+    private final Object[] locks = new Object[VIEW_COUNT];
+
+    private FrameLayout container;
+
+    private static final class CountingRenderer implements GLTextureView.Renderer {
+        final AtomicInteger draws = new AtomicInteger();
+
+        @Override
+        public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        }
+
+        @Override
+        public void onSurfaceChanged(GL10 gl, int width, int height) {
+            GLES20.glViewport(0, 0, width, height);
+        }
+
+        @Override
+        public void onDrawFrame(GL10 gl) {
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            draws.incrementAndGet();
+        }
+
+        @Override
+        public void onSurfaceDestroyed(GL10 gl) {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        container = activityRule.getActivity().getContainer();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < VIEW_COUNT; i++) {
+                    GLTextureView view = new GLTextureView(container.getContext());
+                    view.setEGLContextClientVersion(2);
+                    renderers[i] = new CountingRenderer();
+                    view.setRenderer(renderers[i]);
+                    view.setRenderMode(GLTextureView.RENDERMODE_WHEN_DIRTY);
+                    views[i] = view;
+                    locks[i] = new Object();
+                    attach(i);
+                    attached[i] = true;
+                }
+            }
+        });
+    }
+
+    @Test
+    public void manyViewsSurviveConcurrentLifecycleChanges() throws InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[WORKER_COUNT];
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            final Random random = new Random(i);
+            workers[i] = new Thread("StressWorker " + i) {
+                @Override
+                public void run() {
+                    try {
+                        for (int n = 0; n < OPERATIONS_PER_WORKER; n++) {
+                            runRandomOperation(random);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        long deadline = SystemClock.uptimeMillis() + STRESS_TIMEOUT_MS;
+        for (Thread worker : workers) {
+            worker.join(Math.max(1, deadline - SystemClock.uptimeMillis()));
+            if (worker.isAlive()) {
+                fail("Deadlock, stuck threads:\n" + dumpThreads());
+            }
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // Every view attached and resumed has to honor a new request.
+        for (int i = 0; i < VIEW_COUNT; i++) {
+            setAttached(i, true);
+            setPaused(i, false);
+        }
+        for (int i = 0; i < VIEW_COUNT; i++) {
+            assertDrawsOnRequest(i);
+            assertRunsEvent(i);
+        }
+    }
+
+    private void runRandomOperation(Random random) {
+        int index = random.nextInt(VIEW_COUNT);
+        switch (random.nextInt(6)) {
+            case 0:
+                views[index].requestRender();
+                break;
+            case 1:
+                views[index].queueEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        GLES20.glFlush();
+                    }
+                });
+                break;
+            case 2:
+                setPaused(index, true);
+                break;
+            case 3:
+                setPaused(index, false);
+                break;
+            case 4:
+                setAttached(index, false);
+                break;
+            default:
+                setAttached(index, true);
+                break;
+        }
+    }
+
+    private void setPaused(int index, boolean pause) {
+        synchronized (locks[index]) {
+            if (!attached[index] || paused[index] == pause) {
+                return;
+            }
+            if (pause) {
+                views[index].onPause();
+            } else {
+                views[index].onResume();
+            }
+            paused[index] = pause;
+        }
+    }
+
+    private void setAttached(final int index, final boolean attach) {
+        synchronized (locks[index]) {
+            if (attached[index] == attach) {
+                return;
+            }
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    if (attach) {
+                        attach(index);
+                    } else {
+                        container.removeView(views[index]);
+                    }
+                }
+            });
+            attached[index] = attach;
+            // A reattached view gets a new GL thread, which starts out resumed.
+            paused[index] = false;
+        }
+    }
+
+    private void attach(int index) {
+        container.addView(views[index], new FrameLayout.LayoutParams(VIEW_SIZE, VIEW_SIZE));
+    }
+
+    private void assertDrawsOnRequest(int index) throws InterruptedException {
+        AtomicInteger draws = renderers[index].draws;
+        // Let draws of earlier requests finish, so only the new one can be counted.
+        int before;
+        do {
+            before = draws.get();
+            Thread.sleep(QUIET_MS);
+        } while (draws.get() != before);
+
+        views[index].requestRender();
+        long deadline = SystemClock.uptimeMillis() + DRAW_TIMEOUT_MS;
+        while (draws.get() == before && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("View " + index + " lost a render request", draws.get() > before);
+    }
+
+    private void assertRunsEvent(int index) throws InterruptedException {
+        final CountDownLatch ran = new CountDownLatch(1);
+        views[index].queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue("View " + index + " lost an event",
+                ran.await(DRAW_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private static String dumpThreads() {
+        StringBuilder dump = new StringBuilder();
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            String name = entry.getKey().getName();
+            if (!name.startsWith("GLThread") && !name.startsWith("StressWorker")
+                    && !name.equals("main")) {
+                continue;
+            }
+            dump.append(name).append(" ").append(entry.getKey().getState()).append('\n');
+            for (StackTraceElement element : entry.getValue()) {
+                dump.append("    at ").append(element).append('\n');
+            }
+        }
+        return dump.toString();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.widget.FrameLayout;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads videos from a slow local server and checks the main thread never waits for it:
+ * loading returns right away, results are delivered on the main thread, and a video
+ * superseded by a newer one never reports its metadata.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MetadataLoaderTest {
+    private static final String VIDEO_ASSET = "ball.mp4";
+    private static final long LATENCY_MS = 300;
+    // The superseding video loads slower, so the superseded one is done first.
+    private static final long SLOW_LATENCY_MS = 1000;
+    private static final long TIMEOUT_MS = 30000;
+
+    @Rule
+    public ActivityTestRule<ViewHostActivity> activityRule =
+            new ActivityTestRule<ViewHostActivity>(ViewHostActivity.class);
+
+    private SlowHttpServer server;
+    private SlowHttpServer slowServer;
+    private AlphaMovieView view;
+
+    @Before
+    public void setUp() throws IOException {
+        byte[] video = readAsset(VIDEO_ASSET);
+        server = new SlowHttpServer(video, LATENCY_MS, true);
+        slowServer = new SlowHttpServer(video, SLOW_LATENCY_MS, true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (view != null) {
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    view.release();
+                }
+            });
+        }
+        server.close();
+        slowServer.close();
+    }
+
+    @Test
+    public void loadReturnsRightAwayAndCallsBackOnMainThread() throws InterruptedException {
+        final VideoSource source = VideoSource.fromUrl(server.getUrl() + "?direct");
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final VideoMetadata[] result = new VideoMetadata[1];
+        final boolean[] onMainThread = new boolean[1];
+        final long[] elapsedMs = new long[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.uptimeMillis();
+                MetadataLoader.load(source, new MetadataLoader.Callback() {
+                    @Override
+                    public void onLoaded(VideoMetadata metadata) {
+                        onMainThread[0] = Looper.myLooper() == Looper.getMainLooper();
+                        result[0] = metadata;
+                        loaded.countDown();
+                    }
+
+                    @Override
+                    public void onFailed(Exception e) {
+                        loaded.countDown();
+                    }
+                });
+                elapsedMs[0] = SystemClock.uptimeMillis() - start;
+            }
+        });
+
+        assertTrue("load took " + elapsedMs[0] + " ms", elapsedMs[0] < LATENCY_MS);
+        assertTrue(loaded.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNotNull("Loading failed", result[0]);
+        assertTrue(onMainThread[0]);
+        assertTrue(result[0].getWidth() > 0 && result[0].getHeight() > 0);
+        assertEquals(result[0], MetadataLoader.getCached(source));
+    }
+
+    @Test
+    public void supersededVideoDoesNotReportMetadata() throws InterruptedException {
+        final String supersededUrl = server.getUrl() + "?superseded";
+        final String currentUrl = slowServer.getUrl() + "?current";
+        final CountDownLatch ready = new CountDownLatch(1);
+        final List<VideoMetadata> reported = new ArrayList<VideoMetadata>();
+        final FrameLayout container = activityRule.getActivity().getContainer();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                view = new AlphaMovieView(container.getContext(), null);
+                container.addView(view);
+                view.setOnMetadataReadyListener(new AlphaMovieView.OnMetadataReadyListener() {
+                    @Override
+                    public void onMetadataReady(VideoMetadata metadata) {
+                        reported.add(metadata);
+                        ready.countDown();
+                    }
+                });
+            }
+        });
+
+        assertSetVideoReturnsRightAway(supersededUrl);
+        // Superseded once it is reading, so it runs to the end instead of being cancelled.
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (server.getRequestCount() == 0 && SystemClock.uptimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Joins the superseded load, its result reaches the view no later than this one.
+        final CountDownLatch supersededDone = new CountDownLatch(1);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                MetadataLoader.load(VideoSource.fromUrl(supersededUrl), new MetadataLoader.Callback() {
+                    @Override
+                    public void onLoaded(VideoMetadata metadata) {
+                        supersededDone.countDown();
+                    }
+
+                    @Override
+                    public void onFailed(Exception e) {
+                        supersededDone.countDown();
+                    }
+                });
+            }
+        });
+        assertSetVideoReturnsRightAway(currentUrl);
+
+        assertTrue(ready.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(supersededDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNotNull("Superseded load failed",
+                MetadataLoader.getCached(VideoSource.fromUrl(supersededUrl)));
+        // The listener list is only touched on the main thread.
+        final List<VideoMetadata> reportedCopy = new ArrayList<VideoMetadata>();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                reportedCopy.addAll(reported);
+            }
+        });
+        assertEquals(1, reportedCopy.size());
+        assertEquals(MetadataLoader.getCached(VideoSource.fromUrl(currentUrl)), reportedCopy.get(0));
+    }
+
+    private void assertSetVideoReturnsRightAway(final String url) {
+        final long[] elapsedMs = new long[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.uptimeMillis();
+                view.setVideoByUrl(url);
+                elapsedMs[0] = SystemClock.uptimeMillis() - start;
+            }
+        });
+        assertTrue("setVideoByUrl took " + elapsedMs[0] + " ms", elapsedMs[0] < LATENCY_MS);
+    }
+
+    private static byte[] readAsset(String name) throws IOException {
+        InputStream in = InstrumentationRegistry.getContext().getAssets().open(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.graphics.Canvas;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.Surface;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link VideoRenderer} drawing into an offscreen surface on the calling thread, for tests
+ * that render without a view. Frames are queued by drawing on the video surface.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+final class OffscreenRenderer {
+    private static final long FRAME_TIMEOUT_MS = 5000;
+
+    private final int width;
+    private final int height;
+    private final VideoRenderer renderer = new VideoRenderer();
+
+    private EGLDisplay display;
+    private EGLContext context;
+    private EGLSurface pbuffer;
+    private Surface videoSurface;
+
+    OffscreenRenderer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        renderer.setOnSurfacePrepareListener(new VideoRenderer.OnSurfacePrepareListener() {
+            @Override
+            public void surfacePrepared(Surface surface) {
+                videoSurface = surface;
+            }
+        });
+    }
+
+    VideoRenderer getRenderer() {
+        return renderer;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Creates an OpenGL ES 2.0 context with an RGBA8888 pbuffer and makes it current.
+     */
+    void create() {
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        assertTrue(EGL14.eglInitialize(display, version, 0, version, 1));
+        int[] configSpec = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+                EGL14.EGL_NONE};
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        assertTrue(EGL14.eglChooseConfig(display, configSpec, 0, configs, 0, 1, count, 0));
+        assertTrue(count[0] > 0);
+        context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT,
+                new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        pbuffer = EGL14.eglCreatePbufferSurface(display, configs[0],
+                new int[]{EGL14.EGL_WIDTH, width, EGL14.EGL_HEIGHT, height, EGL14.EGL_NONE}, 0);
+        assertTrue(EGL14.eglMakeCurrent(display, pbuffer, pbuffer, context));
+    }
+
+    /**
+     * Runs the renderer's surface callbacks. Settings applied before take effect at once.
+     */
+    void start() {
+        renderer.onSurfaceCreated(null, null);
+        renderer.onSurfaceChanged(null, width, height);
+    }
+
+    /**
+     * Fills a video frame with {@code color} and waits until the renderer can latch it.
+     */
+    void queueFrame(int color) {
+        long produced = renderer.getProducedFrameCount();
+        Canvas canvas = videoSurface.lockCanvas(null);
+        canvas.drawColor(color);
+        videoSurface.unlockCanvasAndPost(canvas);
+        long deadline = SystemClock.uptimeMillis() + FRAME_TIMEOUT_MS;
+        while (renderer.getProducedFrameCount() == produced && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+        }
+        assertTrue("No frame was queued", renderer.getProducedFrameCount() > produced);
+    }
+
+    /**
+     * Releases everything that was created, also after a failed {@link #create()}.
+     */
+    void release() {
+        if (context != null) {
+            renderer.onSurfaceDestroyed(null);
+        }
+        if (videoSurface != null) {
+            videoSurface.release();
+        }
+        if (display != null) {
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            if (pbuffer != null) {
+                EGL14.eglDestroySurface(display, pbuffer);
+            }
+            if (context != null) {
+                EGL14.eglDestroyContext(display, context);
+            }
+            EGL14.eglTerminate(display);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.graphics.Color;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Draws a packed-alpha frame whose matte is half transparent into a cleared surface, and
+ * checks the stored pixel is what the compositor expects: premultiplied color, and the
+ * matte's alpha as is.
+ */
+@RunWith(AndroidJUnit4.class)
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+public class PackedAlphaBlendTest {
+    private static final int SIZE = 16;
+    private static final int GRAY = 128;
+    private static final int TOLERANCE = 3;
+
+    private OffscreenRenderer offscreen;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1);
+        offscreen = new OffscreenRenderer(SIZE, SIZE);
+        offscreen.create();
+    }
+
+    @After
+    public void tearDown() {
+        if (offscreen != null) {
+            offscreen.release();
+        }
+    }
+
+    @Test
+    public void straightOutputKeepsMatteAlpha() {
+        assertHalfTransparentPixel(false);
+    }
+
+    @Test
+    public void premultipliedOutputKeepsMatteAlpha() {
+        assertHalfTransparentPixel(true);
+    }
+
+    private void assertHalfTransparentPixel(boolean premultiplied) {
+        VideoRenderer renderer = offscreen.getRenderer();
+        renderer.setAlphaPacking(VideoRenderer.PACKING_TOP_BOTTOM);
+        renderer.setPremultipliedOutput(premultiplied);
+        offscreen.start();
+
+        // Uniform gray: both the color and the matte half read 0.5.
+        offscreen.queueFrame(Color.rgb(GRAY, GRAY, GRAY));
+        renderer.onDrawFrame(null);
+        ByteBuffer pixel = ByteBuffer.allocateDirect(4);
+        GLES20.glReadPixels(SIZE / 2, SIZE / 2, 1, 1, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixel);
+
+        int expectedColor = GRAY * GRAY / 255;
+        assertEquals(expectedColor, pixel.get(0) & 0xff, TOLERANCE);
+        assertEquals(expectedColor, pixel.get(1) & 0xff, TOLERANCE);
+        assertEquals(expectedColor, pixel.get(2) & 0xff, TOLERANCE);
+        assertEquals(GRAY, pixel.get(3) & 0xff, TOLERANCE);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.opengl.GLES20;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View;
+import android.widget.FrameLayout;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two views on the shared render thread, one of them hidden so its TextureView stops
+ * consuming frames. The visible view has to keep drawing at about the display rate.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SharedThreadStallTest {
+    private static final int VIEW_SIZE = 64;
+    private static final long SETTLE_MS = 1000;
+    private static final long MEASURE_MS = 2000;
+    // Far below any refresh rate, far above what a thread blocked on the hidden view draws.
+    private static final int MIN_FRAMES_PER_SECOND = 20;
+
+    @Rule
+    public ActivityTestRule<ViewHostActivity> activityRule =
+            new ActivityTestRule<ViewHostActivity>(ViewHostActivity.class);
+
+    private static final class CountingRenderer implements GLTextureView.Renderer {
+        final AtomicInteger draws = new AtomicInteger();
+
+        @Override
+        public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        }
+
+        @Override
+        public void onSurfaceChanged(GL10 gl, int width, int height) {
+            GLES20.glViewport(0, 0, width, height);
+        }
+
+        @Override
+        public void onDrawFrame(GL10 gl) {
+            GLES20.glClearColor(0f, 1f, 0f, 1f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            draws.incrementAndGet();
+        }
+
+        @Override
+        public void onSurfaceDestroyed(GL10 gl) {
+        }
+    }
+
+    @Test
+    public void hiddenViewDoesNotBlockOthers() throws InterruptedException {
+        final FrameLayout container = activityRule.getActivity().getContainer();
+        final GLTextureView[] views = new GLTextureView[2];
+        final CountingRenderer visibleRenderer = new CountingRenderer();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < views.length; i++) {
+                    GLTextureView view = new GLTextureView(container.getContext());
+                    view.setSharedRenderThread(true);
+                    view.setEGLContextClientVersion(2);
+                    view.setRenderer(i == 0 ? visibleRenderer : new CountingRenderer());
+                    view.setRenderMode(GLTextureView.RENDERMODE_CONTINUOUSLY);
+                    FrameLayout.LayoutParams params = new FrameLayout.LayoutParams(VIEW_SIZE, VIEW_SIZE);
+                    params.leftMargin = i * VIEW_SIZE;
+                    container.addView(view, params);
+                    views[i] = view;
+                }
+            }
+        });
+        Thread.sleep(SETTLE_MS);
+
+        // A hidden TextureView isn't drawn, so it never latches the frames queued to it.
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                views[1].setVisibility(View.INVISIBLE);
+            }
+        });
+        Thread.sleep(SETTLE_MS);
+
+        int before = visibleRenderer.draws.get();
+        Thread.sleep(MEASURE_MS);
+        int frames = visibleRenderer.draws.get() - before;
+        assertTrue("Visible view drew " + frames + " frames in " + MEASURE_MS + " ms",
+                frames >= MIN_FRAMES_PER_SECOND * MEASURE_MS / 1000);
+    }
+}
@@ -19,42 +19,122 @@ package com.alphamovie.lib;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
 import android.content.res.TypedArray;
+import android.graphics.RectF;
 import android.media.MediaDataSource;
-import android.media.MediaMetadataRetriever;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Surface;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 
 @SuppressLint("ViewConstructor")
 public class AlphaMovieView extends GLTextureView {
 
-    private static final int GL_CONTEXT_VERSION = 2;
+    private static final int DEFAULT_GL_CONTEXT_VERSION = 3;
 
     private static final int NOT_DEFINED = -1;
     private static final int NOT_DEFINED_COLOR = 0;
 
     private static final String TAG = "VideoSurfaceView";
 
+    /**
+     * The video is keyed by {@code alphaColor} (or rendered with a custom shader).
+     */
+    public static final int ALPHA_PACKING_NONE = VideoRenderer.PACKING_NONE;
+    /**
+     * The top half of the video holds the color, the bottom half a grayscale alpha matte.
+     */
+    public static final int ALPHA_PACKING_TOP_BOTTOM = VideoRenderer.PACKING_TOP_BOTTOM;
+    /**
+     * The left half of the video holds the color, the right half a grayscale alpha matte.
+     */
+    public static final int ALPHA_PACKING_SIDE_BY_SIDE = VideoRenderer.PACKING_SIDE_BY_SIDE;
+
+    /**
+     * Videos are played by {@link MediaPlayerEngine}.
+     */
+    public static final int PLAYBACK_ENGINE_MEDIA_PLAYER = 0;
+    /**
+     * Videos are decoded by {@link MediaCodecEngine} where supported, by
+     * {@link MediaPlayerEngine} otherwise. Audio is not played.
+     */
+    public static final int PLAYBACK_ENGINE_MEDIA_CODEC = 1;
+
+    /**
+     * Count the GL calls the renderer issues per frame, and the redundant state changes it
+     * skips. Together with {@link #DEBUG_CHECK_GL_ERROR}, which also makes the renderer
+     * check for errors after every frame.
+     *
+     * @see #setDebugFlags
+     * @see #getLastFrameGlCallCount()
+     */
+    public static final int DEBUG_COUNT_GL_CALLS = 4;
+
+    /**
+     * Allows a 10-bit color config with 2-bit alpha where no RGBA8888 config exists.
+     * Fine for chroma keyed videos, soft alpha edges are quantized.
+     */
+    public static final int EGL_CONFIG_FALLBACK_RGBA1010102 = MinimalEglConfigChooser.FALLBACK_RGBA1010102;
+    /**
+     * Allows an RGB565 config without alpha as the last resort, the view is then shown opaque.
+     */
+    public static final int EGL_CONFIG_FALLBACK_RGB565 = MinimalEglConfigChooser.FALLBACK_RGB565;
+
     private static final float VIEW_ASPECT_RATIO = 4f / 3f;
     private float videoAspectRatio = VIEW_ASPECT_RATIO;
+    private int videoWidth;
+    private int videoHeight;
 
     VideoRenderer renderer;
-    private MediaPlayer mediaPlayer;
+    private PlaybackEngine engine;
+    private int playbackEngineType = PLAYBACK_ENGINE_MEDIA_PLAYER;
+    private Surface surface;
+    private VideoSource videoSource;
+    private boolean looping = true;
+    private boolean screenOnWhilePlaying = true;
 
     private OnVideoStartedListener onVideoStartedListener;
     private OnVideoEndedListener onVideoEndedListener;
+    private MediaPlayer.OnErrorListener onErrorListener;
+    private MediaPlayer.OnSeekCompleteListener onSeekCompleteListener;
 
     private boolean isSurfaceCreated;
     private boolean isDataSourceSet;
 
+    private VideoMetadata metadata;
+    private MetadataLoader.Request pendingMetadataLoad;
+    private int sourceGeneration;
+    private OnMetadataReadyListener onMetadataReadyListener;
+
+    private boolean frameCacheEnabled;
+    private boolean playingFromFrameCache;
+
+    private List<VideoSource> playlist;
+    private int playlistIndex = -1;
+    private OnPlaylistItemChangedListener onPlaylistItemChangedListener;
+    // Prepares the next playlist item on a parking surface while the current one plays.
+    private PlaybackEngine nextEngine;
+    private ParkingSurface nextParking;
+    private boolean nextPrepared;
+    // Parking surface the engine still renders into until it is moved to the view's surface.
+    private ParkingSurface attachingParking;
+    // The view's surface takes frames from one producer at a time. Engines leaving it count
+    // here until they confirm, actions connecting another engine wait for them.
+    private int surfaceHandoffsPending;
+    private final List<Runnable> afterSurfaceHandoffs = new ArrayList<Runnable>();
+
+    private volatile boolean frameDrivenRendering;
+
+    private static volatile boolean sharedRenderThreadByDefault;
+    private static volatile int glContextVersion = DEFAULT_GL_CONTEXT_VERSION;
+
     private PlayerState state = PlayerState.NOT_PREPARED;
 
     public AlphaMovieView(Context context, AttributeSet attrs) {
@@ -66,35 +146,72 @@ public class AlphaMovieView extends GLTextureView {
     }
 
     private void init(AttributeSet attrs) {
-        setEGLContextClientVersion(GL_CONTEXT_VERSION);
-        setEGLConfigChooser(8, 8, 8, 8, 16, 0);
-
-        initMediaPlayer();
+        int contextVersion = glContextVersion;
+        setEGLContextClientVersion(contextVersion);
+        setEGLConfigChooser(new MinimalEglConfigChooser(contextVersion));
 
         renderer = new VideoRenderer();
 
         obtainRendererOptions(attrs);
+        initPlaybackEngine(createPlaybackEngine(playbackEngineType));
+        if (sharedRenderThreadByDefault) {
+            setSharedRenderThread(true);
+        }
 
         this.addOnSurfacePrepareListener();
+        this.addOnNewFrameListener();
+        this.addOnFrameCacheListener();
         setRenderer(renderer);
 
+        if (frameDrivenRendering) {
+            setRenderMode(RENDERMODE_WHEN_DIRTY);
+        }
+
         bringToFront();
         setPreserveEGLContextOnPause(true);
         setOpaque(false);
     }
 
-    private void initMediaPlayer() {
-        mediaPlayer = new MediaPlayer();
-        setScreenOnWhilePlaying(true);
-        setLooping(true);
+    private static PlaybackEngine createPlaybackEngine(int type) {
+        if (type == PLAYBACK_ENGINE_MEDIA_CODEC && MediaCodecEngine.isSupported()) {
+            return new MediaCodecEngine();
+        }
+        return new MediaPlayerEngine();
+    }
+
+    /**
+     * Sets up the listeners of {@code engine}, attaching the surface is up to the caller.
+     */
+    private void initPlaybackEngine(PlaybackEngine engine) {
+        this.engine = engine;
+        engine.setLooping(isItemLooping());
 
-        mediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+        engine.setOnCompletionListener(new PlaybackEngine.OnCompletionListener() {
             @Override
-            public void onCompletion(MediaPlayer mp) {
+            public void onCompletion(PlaybackEngine engine) {
                 state = PlayerState.PAUSED;
+                updatePlaybackState();
                 if (onVideoEndedListener != null) {
                     onVideoEndedListener.onVideoEnded();
                 }
+                if (playlist != null) {
+                    advancePlaylist();
+                }
+            }
+        });
+        engine.setOnErrorListener(new PlaybackEngine.OnErrorListener() {
+            @Override
+            public boolean onError(PlaybackEngine engine, int what, int extra) {
+                return onErrorListener != null
+                        && onErrorListener.onError(getMediaPlayer(), what, extra);
+            }
+        });
+        engine.setOnSeekCompleteListener(new PlaybackEngine.OnSeekCompleteListener() {
+            @Override
+            public void onSeekComplete(PlaybackEngine engine) {
+                if (onSeekCompleteListener != null) {
+                    onSeekCompleteListener.onSeekComplete(getMediaPlayer());
+                }
             }
         });
     }
@@ -114,6 +231,26 @@ public class AlphaMovieView extends GLTextureView {
             if (accuracy != NOT_DEFINED) {
                 renderer.setAccuracy(accuracy);
             }
+            frameDrivenRendering = arr.getBoolean(R.styleable.AlphaMovieView_frameDriven, false);
+            if (arr.getBoolean(R.styleable.AlphaMovieView_sharedRenderThread, false)) {
+                setSharedRenderThread(true);
+            }
+            if (arr.getBoolean(R.styleable.AlphaMovieView_vsyncAligned, false)) {
+                setVsyncAligned(true);
+            }
+            renderer.setAlphaPacking(arr.getInt(R.styleable.AlphaMovieView_alphaPacking, ALPHA_PACKING_NONE));
+            renderer.setPremultipliedOutput(
+                    arr.getBoolean(R.styleable.AlphaMovieView_premultipliedAlpha, false));
+            if (arr.getBoolean(R.styleable.AlphaMovieView_programBinaryCache, false)) {
+                setProgramBinaryCacheEnabled(true);
+            }
+            if (arr.getBoolean(R.styleable.AlphaMovieView_frameCache, false)) {
+                setFrameCacheEnabled(true);
+            }
+            renderer.setDynamicResolutionEnabled(
+                    arr.getBoolean(R.styleable.AlphaMovieView_dynamicResolution, false));
+            playbackEngineType = arr.getInt(R.styleable.AlphaMovieView_playbackEngine,
+                    PLAYBACK_ENGINE_MEDIA_PLAYER);
             arr.recycle();
         }
     }
@@ -122,28 +259,228 @@ public class AlphaMovieView extends GLTextureView {
         if (renderer != null) {
             renderer.setOnSurfacePrepareListener(new VideoRenderer.OnSurfacePrepareListener() {
                 @Override
-                public void surfacePrepared(Surface surface) {
-                    isSurfaceCreated = true;
-                    mediaPlayer.setSurface(surface);
-                    surface.release();
-                    if (isDataSourceSet) {
-                        prepareAndStartMediaPlayer();
+                public void surfacePrepared(final Surface surface) {
+                    // Called on the GL thread, the engine is driven from the main thread.
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onSurfacePrepared(surface);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private void addOnNewFrameListener() {
+        if (renderer != null) {
+            renderer.setOnNewFrameListener(new VideoRenderer.OnNewFrameListener() {
+                @Override
+                public void newFrameAvailable() {
+                    if (frameDrivenRendering) {
+                        requestRender();
                     }
                 }
             });
         }
     }
 
-    private void prepareAndStartMediaPlayer() {
-        prepareAsync(new MediaPlayer.OnPreparedListener() {
+    private void onSurfacePrepared(Surface surface) {
+        if (state == PlayerState.RELEASE) {
+            surface.release();
+            return;
+        }
+        // Engines don't own the surface, it has to stay valid while they decode into it.
+        final Surface previous = this.surface;
+        final ParkingSurface parking = attachingParking;
+        attachingParking = null;
+        this.surface = surface;
+        isSurfaceCreated = true;
+        engine.setSurface(surface, new Runnable() {
             @Override
-            public void onPrepared(MediaPlayer mp) {
-                start();
+            public void run() {
+                if (previous != null) {
+                    previous.release();
+                }
+                if (parking != null) {
+                    parking.release();
+                }
             }
         });
+        if (isDataSourceSet) {
+            prepareAndStartEngine();
+        }
+    }
+
+    private void addOnFrameCacheListener() {
+        renderer.setOnFrameCacheListener(new VideoRenderer.OnFrameCacheListener() {
+            @Override
+            public void frameCacheReady() {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFrameCacheReady();
+                    }
+                });
+            }
+
+            @Override
+            public void frameCacheEvicted() {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFrameCacheEvicted();
+                    }
+                });
+            }
+
+            @Override
+            public void frameCacheReplayEnded() {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFrameCacheReplayEnded();
+                    }
+                });
+            }
+        });
+    }
+
+    private void onFrameCacheReady() {
+        if (state != PlayerState.STARTED && state != PlayerState.PAUSED) {
+            renderer.resetFrameCache();
+            return;
+        }
+        // Every frame is on the GPU now, the decoder isn't needed anymore.
+        playingFromFrameCache = true;
+        engine.stop();
+        renderer.setReplayPaused(state == PlayerState.PAUSED);
+        updatePlaybackState();
+    }
+
+    private void onFrameCacheEvicted() {
+        if (!playingFromFrameCache) {
+            return;
+        }
+        playingFromFrameCache = false;
+        updatePlaybackState();
+
+        final int positionMs = (int) (renderer.getReplayPositionNanos() / 1000000L);
+        engine.setOnPreparedListener(new PlaybackEngine.OnPreparedListener() {
+            @Override
+            public void onPrepared(PlaybackEngine engine) {
+                if (positionMs > 0) {
+                    engine.seekTo(positionMs);
+                }
+                if (state == PlayerState.STARTED) {
+                    engine.start();
+                }
+            }
+        });
+        engine.prepareAsync();
+    }
+
+    private void onFrameCacheReplayEnded() {
+        if (playingFromFrameCache && state == PlayerState.STARTED) {
+            state = PlayerState.PAUSED;
+            updatePlaybackState();
+            if (onVideoEndedListener != null) {
+                onVideoEndedListener.onVideoEnded();
+            }
+        }
+    }
+
+    private void clearFrameCache() {
+        playingFromFrameCache = false;
+        renderer.resetFrameCache();
+    }
+
+    private void prepareAndStartEngine() {
+        final PlaybackEngine engine = this.engine;
+        final int generation = sourceGeneration;
+        // Preparing connects the engine to the surface, engines leaving it go first.
+        runAfterSurfaceHandoffs(new Runnable() {
+            @Override
+            public void run() {
+                if (engine == AlphaMovieView.this.engine && generation == sourceGeneration
+                        && state != PlayerState.RELEASE) {
+                    prepareAndStartCurrentEngine();
+                }
+            }
+        });
+    }
+
+    private void prepareAndStartCurrentEngine() {
+        if (state == PlayerState.PREPARED
+                || (state == PlayerState.NOT_PREPARED && adoptPooledEngine())) {
+            onEnginePrepared();
+            return;
+        }
+        prepareAsync(new PlaybackEngine.OnPreparedListener() {
+            @Override
+            public void onPrepared(PlaybackEngine engine) {
+                onEnginePrepared();
+            }
+        });
+    }
+
+    private void onEnginePrepared() {
+        start();
+        prepareNextPlaylistItem();
+    }
+
+    /**
+     * Replaces the engine with a prepared one for the same source from the pool, if any.
+     * Only called once surface hand-offs are done, the unprepared engine isn't connected.
+     */
+    private boolean adoptPooledEngine() {
+        if (!EnginePool.isEnabled()) {
+            return false;
+        }
+        PlaybackEngine pooled = EnginePool.checkOut(videoSource, engine.getClass(), surface);
+        if (pooled == null) {
+            return false;
+        }
+        engine.release();
+        initPlaybackEngine(pooled);
+        state = PlayerState.PREPARED;
+        return true;
+    }
+
+    /**
+     * Hands the prepared engine over to the pool instead of throwing its decoder away.
+     *
+     * @return false if the engine can't be pooled, it is left untouched then.
+     */
+    private boolean recycleEngine() {
+        if (!EnginePool.isEnabled() || videoSource == null || playingFromFrameCache
+                || !EnginePool.canPool(engine)
+                || (state != PlayerState.PREPARED && state != PlayerState.STARTED
+                && state != PlayerState.PAUSED)) {
+            return false;
+        }
+        if (state == PlayerState.STARTED) {
+            engine.pause();
+        }
+        EnginePool.checkIn(videoSource, engine, engineDetachCallback());
+        engine = null;
+        return true;
     }
 
     private void calculateVideoAspectRatio(int videoWidth, int videoHeight) {
+        this.videoWidth = videoWidth;
+        this.videoHeight = videoHeight;
+
+        // Only one half of a packed video is displayed.
+        switch (renderer.getAlphaPacking()) {
+            case ALPHA_PACKING_TOP_BOTTOM:
+                videoHeight /= 2;
+                break;
+            case ALPHA_PACKING_SIDE_BY_SIDE:
+                videoWidth /= 2;
+                break;
+        }
+
         if (videoWidth > 0 && videoHeight > 0) {
             videoAspectRatio = (float) videoWidth / videoHeight;
         }
@@ -170,108 +507,211 @@ public class AlphaMovieView extends GLTextureView {
                 MeasureSpec.makeMeasureSpec(heightSize, heightMode));
     }
 
-    private void onDataSourceSet(MediaMetadataRetriever retriever) {
-        int videoWidth = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
-        int videoHeight = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+    private void onDataSourceSet(VideoMetadata metadata) {
+        this.metadata = metadata;
+        renderer.setFrameCacheClip(metadata.getDisplayWidth(), metadata.getDisplayHeight(),
+                metadata.getDurationMs() * 1000000L);
 
-        calculateVideoAspectRatio(videoWidth, videoHeight);
+        calculateVideoAspectRatio(metadata.getDisplayWidth(), metadata.getDisplayHeight());
         isDataSourceSet = true;
 
+        if (onMetadataReadyListener != null) {
+            onMetadataReadyListener.onMetadataReady(metadata);
+        }
         if (isSurfaceCreated) {
-            prepareAndStartMediaPlayer();
+            prepareAndStartEngine();
         }
     }
 
-    public void setVideoFromAssets(String assetsFileName) {
-        reset();
+    /**
+     * Sets the video to play. Metadata not cached yet is read in the background and the
+     * source is handed to the engine once it is known. A newer call supersedes any load
+     * still in progress, and a playlist, if any, ends.
+     */
+    public void setVideo(VideoSource source) {
+        clearPlaylist();
+        loadVideo(source);
+    }
 
-        try {
-            AssetFileDescriptor assetFileDescriptor = getContext().getAssets().openFd(assetsFileName);
-            mediaPlayer.setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
+    private void loadVideo(final VideoSource source) {
+        if (state == PlayerState.RELEASE) {
+            return;
+        }
+        if (recycleEngine()) {
+            initPlaybackEngine(createPlaybackEngine(playbackEngineType));
+            attachSurface();
+            state = PlayerState.NOT_PREPARED;
+            updatePlaybackState();
+        } else {
+            reset();
+            // Confirms once a reset engine has let go of the surface, a pooled one may take it.
+            // One still waiting to move there from a parking surface isn't connected yet.
+            if (surface != null && attachingParking == null) {
+                engine.setSurface(surface, beginSurfaceHandoff());
+            }
+        }
+        clearFrameCache();
+        renderer.markFirstFrameRequested();
+        renderer.setFrameCacheClip(0, 0, 0);
+        renderer.setOpaqueBounds(null);
+        renderer.resetOpaqueBounds();
+
+        videoSource = source;
+        metadata = null;
+        isDataSourceSet = false;
+        cancelMetadataLoad();
+
+        VideoMetadata cached = MetadataLoader.getCached(source);
+        if (cached != null) {
+            // Known sources are set up right away, so the first layout has the right size.
+            onMetadataLoaded(source, cached);
+            return;
+        }
 
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(assetFileDescriptor.getFileDescriptor(), assetFileDescriptor.getStartOffset(), assetFileDescriptor.getLength());
+        final int generation = ++sourceGeneration;
+        pendingMetadataLoad = MetadataLoader.load(source, new MetadataLoader.Callback() {
+            @Override
+            public void onLoaded(VideoMetadata metadata) {
+                if (generation != sourceGeneration || state == PlayerState.RELEASE) {
+                    return;
+                }
+                pendingMetadataLoad = null;
+                onMetadataLoaded(source, metadata);
+            }
 
-            onDataSourceSet(retriever);
+            @Override
+            public void onFailed(Exception e) {
+                if (generation == sourceGeneration) {
+                    pendingMetadataLoad = null;
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+        });
+    }
 
+    private void onMetadataLoaded(VideoSource source, VideoMetadata metadata) {
+        try {
+            engine.setDataSource(source);
         } catch (IOException e) {
             Log.e(TAG, e.getMessage(), e);
+            return;
         }
+        onDataSourceSet(metadata);
     }
 
-    public void setVideoByUrl(String url) {
-        reset();
-
-        try {
-            mediaPlayer.setDataSource(url);
-
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(url, new HashMap<String, String>());
-
-            onDataSourceSet(retriever);
-
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
+    private void cancelMetadataLoad() {
+        sourceGeneration++;
+        if (pendingMetadataLoad != null) {
+            pendingMetadataLoad.cancel();
+            pendingMetadataLoad = null;
         }
     }
 
-    public void setVideoFromFile(FileDescriptor fileDescriptor) {
-        reset();
+    /**
+     * Reads the metadata of a video in the background and keeps it in a process-wide cache.
+     * A view given this source later knows the video size before its first layout.
+     */
+    public static void prefetchMetadata(VideoSource source) {
+        if (MetadataLoader.getCached(source) == null) {
+            MetadataLoader.load(source, null);
+        }
+    }
 
-        try {
-            mediaPlayer.setDataSource(fileDescriptor);
+    /**
+     * Sets the video from the assets. Like all {@code setVideo*} methods it returns right
+     * away, the video is opened in the background.
+     */
+    public void setVideoFromAssets(String assetsFileName) {
+        setVideo(VideoSource.fromAsset(getContext(), assetsFileName));
+    }
 
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(fileDescriptor);
+    /**
+     * Sets a video from the network. With a {@link #setHttpCache(File, long) cache} installed
+     * it is read through the cache.
+     */
+    public void setVideoByUrl(String url) {
+        setVideo(VideoSource.fromUrl(url));
+    }
 
-            onDataSourceSet(retriever);
+    /**
+     * Installs a process-wide disk cache for videos set by http(s) URL, or removes it when
+     * {@code directory} is null. Videos are downloaded in segments with range requests,
+     * shared by the metadata reader and the decoder, and kept across sessions. The least
+     * recently used segments are deleted once the cache exceeds {@code maxBytes}.
+     * Requires API 23, older versions let the media framework fetch the URL.
+     */
+    public static void setHttpCache(File directory, long maxBytes) {
+        HttpCache.install(directory, maxBytes);
+    }
 
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
+    /**
+     * Downloads the start of a video into the {@link #setHttpCache(File, long) cache} in
+     * the background, so it starts without waiting for the network. Must be called from
+     * the main thread.
+     *
+     * @param seconds how much of the video to download, estimated from its average bitrate.
+     */
+    public static void prefetchVideoByUrl(final String url, final int seconds) {
+        final HttpCache cache = HttpCache.getInstalled();
+        if (cache == null || !HttpCache.isCacheable(url)) {
+            return;
         }
-    }
+        VideoSource source = VideoSource.fromUrl(url);
+        VideoMetadata cached = MetadataLoader.getCached(source);
+        if (cached != null) {
+            cache.prefetch(url, cached.getDurationMs(), seconds * 1000L);
+            return;
+        }
+        // Reading the metadata through the cache already stores the header of the video.
+        MetadataLoader.load(source, new MetadataLoader.Callback() {
+            @Override
+            public void onLoaded(VideoMetadata metadata) {
+                cache.prefetch(url, metadata.getDurationMs(), seconds * 1000L);
+            }
 
-    public void setVideoFromFile(FileDescriptor fileDescriptor, int startOffset, int endOffset) {
-        reset();
+            @Override
+            public void onFailed(Exception e) {
+                Log.w(TAG, "Could not prefetch " + url, e);
+            }
+        });
+    }
 
-        try {
-            mediaPlayer.setDataSource(fileDescriptor, startOffset, endOffset);
+    /**
+     * @return the fraction of segment reads served by the {@link #setHttpCache(File, long)
+     * cache}, or 0 if there were none.
+     */
+    public static float getHttpCacheHitRatio() {
+        HttpCache cache = HttpCache.getInstalled();
+        if (cache == null) {
+            return 0;
+        }
+        long total = cache.getHitCount() + cache.getMissCount();
+        return total == 0 ? 0 : (float) cache.getHitCount() / total;
+    }
 
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(fileDescriptor, startOffset, endOffset);
+    /**
+     * @return bytes read from the {@link #setHttpCache(File, long) cache} instead of the network.
+     */
+    public static long getHttpCacheBytesSaved() {
+        HttpCache cache = HttpCache.getInstalled();
+        return cache != null ? cache.getBytesSaved() : 0;
+    }
 
-            onDataSourceSet(retriever);
+    public void setVideoFromFile(FileDescriptor fileDescriptor) {
+        setVideo(VideoSource.fromFileDescriptor(fileDescriptor));
+    }
 
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
+    public void setVideoFromFile(FileDescriptor fileDescriptor, int startOffset, int endOffset) {
+        setVideo(VideoSource.fromFileDescriptor(fileDescriptor, startOffset, endOffset));
     }
 
     @TargetApi(23)
     public void setVideoFromMediaDataSource(MediaDataSource mediaDataSource) {
-        reset();
-
-        mediaPlayer.setDataSource(mediaDataSource);
-
-        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-        retriever.setDataSource(mediaDataSource);
-
-        onDataSourceSet(retriever);
+        setVideo(VideoSource.fromMediaDataSource(mediaDataSource));
     }
 
     public void setVideoFromUri(Context context, Uri uri) {
-        reset();
-
-        try {
-            mediaPlayer.setDataSource(context, uri);
-
-            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-            retriever.setDataSource(context, uri);
-
-            onDataSourceSet(retriever);
-        } catch (IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
+        setVideo(VideoSource.fromUri(context, uri));
     }
 
     @Override
@@ -291,40 +731,47 @@ public class AlphaMovieView extends GLTextureView {
         release();
     }
 
-    private void prepareAsync(final MediaPlayer.OnPreparedListener onPreparedListener) {
-        if (mediaPlayer != null && state == PlayerState.NOT_PREPARED
+    private void prepareAsync(final PlaybackEngine.OnPreparedListener onPreparedListener) {
+        if (engine != null && state == PlayerState.NOT_PREPARED
                 || state == PlayerState.STOPPED) {
-            mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            engine.setOnPreparedListener(new PlaybackEngine.OnPreparedListener() {
                 @Override
-                public void onPrepared(MediaPlayer mp) {
+                public void onPrepared(PlaybackEngine engine) {
                     state = PlayerState.PREPARED;
-                    onPreparedListener.onPrepared(mp);
+                    onPreparedListener.onPrepared(engine);
                 }
             });
-            mediaPlayer.prepareAsync();
+            engine.prepareAsync();
         }
     }
 
     public void start() {
-        if (mediaPlayer != null) {
+        if (engine != null) {
             switch (state) {
                 case PREPARED:
-                    mediaPlayer.start();
+                    engine.start();
                     state = PlayerState.STARTED;
+                    updatePlaybackState();
                     if (onVideoStartedListener != null) {
                         onVideoStartedListener.onVideoStarted();
                     }
                     break;
                 case PAUSED:
-                    mediaPlayer.start();
+                    if (playingFromFrameCache) {
+                        renderer.setReplayPaused(false);
+                    } else {
+                        engine.start();
+                    }
                     state = PlayerState.STARTED;
+                    updatePlaybackState();
                     break;
                 case STOPPED:
-                    prepareAsync(new MediaPlayer.OnPreparedListener() {
+                    prepareAsync(new PlaybackEngine.OnPreparedListener() {
                         @Override
-                        public void onPrepared(MediaPlayer mp) {
-                            mediaPlayer.start();
+                        public void onPrepared(PlaybackEngine engine) {
+                            engine.start();
                             state = PlayerState.STARTED;
+                            updatePlaybackState();
                             if (onVideoStartedListener != null) {
                                 onVideoStartedListener.onVideoStarted();
                             }
@@ -336,31 +783,57 @@ public class AlphaMovieView extends GLTextureView {
     }
 
     public void pause() {
-        if (mediaPlayer != null && state == PlayerState.STARTED) {
-            mediaPlayer.pause();
+        if (engine != null && state == PlayerState.STARTED) {
+            if (playingFromFrameCache) {
+                renderer.setReplayPaused(true);
+            } else {
+                engine.pause();
+            }
             state = PlayerState.PAUSED;
+            updatePlaybackState();
         }
     }
 
     public void stop() {
-        if (mediaPlayer != null && (state == PlayerState.STARTED || state == PlayerState.PAUSED)) {
-            mediaPlayer.stop();
+        if (engine != null && (state == PlayerState.STARTED || state == PlayerState.PAUSED)) {
+            engine.stop();
+            clearFrameCache();
             state = PlayerState.STOPPED;
+            updatePlaybackState();
         }
     }
 
     public void reset() {
-        if (mediaPlayer != null && (state == PlayerState.STARTED || state == PlayerState.PAUSED ||
+        if (engine != null && (state == PlayerState.STARTED || state == PlayerState.PAUSED ||
                 state == PlayerState.STOPPED)) {
-            mediaPlayer.reset();
+            engine.reset();
+            clearFrameCache();
             state = PlayerState.NOT_PREPARED;
+            updatePlaybackState();
         }
     }
 
     public void release() {
-        if (mediaPlayer != null) {
-            mediaPlayer.release();
+        cancelMetadataLoad();
+        releaseNextEngine();
+        if (engine != null) {
+            if (!recycleEngine()) {
+                engine.setSurface(null, engineDetachCallback());
+                engine.release();
+            }
+            clearFrameCache();
             state = PlayerState.RELEASE;
+            updatePlaybackState();
+        }
+        if (surface != null) {
+            final Surface released = surface;
+            surface = null;
+            runAfterSurfaceHandoffs(new Runnable() {
+                @Override
+                public void run() {
+                    released.release();
+                }
+            });
         }
     }
 
@@ -385,23 +858,64 @@ public class AlphaMovieView extends GLTextureView {
     }
 
     public void seekTo(int msec) {
-        mediaPlayer.seekTo(msec);
+        if (playingFromFrameCache) {
+            renderer.seekReplay(msec * 1000000L);
+        } else if (engine != null) {
+            engine.seekTo(msec);
+        }
+        renderer.restartOpaqueBoundsLearning();
     }
 
     public void setLooping(boolean looping) {
-        mediaPlayer.setLooping(looping);
+        this.looping = looping;
+        applyItemLooping();
+    }
+
+    /**
+     * Inside a playlist the view's looping applies to the whole playlist, not to each video.
+     */
+    private boolean isItemLooping() {
+        return looping && playlist == null;
+    }
+
+    private void applyItemLooping() {
+        boolean itemLooping = isItemLooping();
+        if (engine != null) {
+            engine.setLooping(itemLooping);
+        }
+        renderer.setReplayLooping(itemLooping);
+        renderer.setFrameCacheEnabled(frameCacheEnabled && itemLooping);
     }
 
     public int getCurrentPosition() {
-        return mediaPlayer.getCurrentPosition();
+        if (playingFromFrameCache) {
+            return (int) (renderer.getReplayPositionNanos() / 1000000L);
+        }
+        return engine != null ? engine.getCurrentPosition() : 0;
     }
 
     public void setScreenOnWhilePlaying(boolean screenOn) {
-        mediaPlayer.setScreenOnWhilePlaying(screenOn);
+        screenOnWhilePlaying = screenOn;
+        updatePlaybackState();
     }
 
+    private void updatePlaybackState() {
+        setKeepScreenOn(screenOnWhilePlaying && state == PlayerState.STARTED);
+
+        // Cached frames are not delivered by a decoder, so replaying them needs continuous drawing.
+        boolean replaying = playingFromFrameCache && state == PlayerState.STARTED;
+        int renderMode = frameDrivenRendering && !replaying ? RENDERMODE_WHEN_DIRTY : RENDERMODE_CONTINUOUSLY;
+        if (getRenderMode() != renderMode) {
+            setRenderMode(renderMode);
+        }
+    }
+
+    /**
+     * The {@code MediaPlayer} passed to the listener is null unless
+     * {@link #PLAYBACK_ENGINE_MEDIA_PLAYER} is used.
+     */
     public void setOnErrorListener(MediaPlayer.OnErrorListener onErrorListener){
-        mediaPlayer.setOnErrorListener(onErrorListener);
+        this.onErrorListener = onErrorListener;
     }
 
     public void setOnVideoStartedListener(OnVideoStartedListener onVideoStartedListener) {
@@ -412,12 +926,724 @@ public class AlphaMovieView extends GLTextureView {
         this.onVideoEndedListener = onVideoEndedListener;
     }
 
+    /**
+     * Sets a listener called on the main thread when the metadata of a video set with
+     * {@code setVideo*} has been read, right before playback is prepared.
+     */
+    public void setOnMetadataReadyListener(OnMetadataReadyListener onMetadataReadyListener) {
+        this.onMetadataReadyListener = onMetadataReadyListener;
+    }
+
+    /**
+     * Sets a listener called on the main thread about once a second while video frames are
+     * shown. It reports how many frames were shown and skipped for being too late, and the
+     * judder, i.e. how much the display intervals deviated from the frame timestamps.
+     */
+    public void setOnFramePacingListener(final OnFramePacingListener onFramePacingListener) {
+        if (onFramePacingListener == null) {
+            renderer.setOnFramePacingListener(null);
+            return;
+        }
+        renderer.setOnFramePacingListener(new FramePacer.Listener() {
+            @Override
+            public void onFramePacing(final int shownFrames, final int droppedFrames,
+                                      final long meanJudderNanos, final long maxJudderNanos) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFramePacingListener.onFramePacing(shownFrames, droppedFrames,
+                                meanJudderNanos, maxJudderNanos);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the metadata of the current video, or null while it is still being read.
+     */
+    public VideoMetadata getVideoMetadata() {
+        return metadata;
+    }
+
+    /**
+     * The {@code MediaPlayer} passed to the listener is null unless
+     * {@link #PLAYBACK_ENGINE_MEDIA_PLAYER} is used.
+     */
     public void setOnSeekCompleteListener(MediaPlayer.OnSeekCompleteListener onSeekCompleteListener) {
-        mediaPlayer.setOnSeekCompleteListener(onSeekCompleteListener);
+        this.onSeekCompleteListener = onSeekCompleteListener;
+    }
+
+    /**
+     * Sets the color that becomes transparent. May be called from any thread at any time,
+     * the change is visible from the next drawn frame without recompiling the shader.
+     * Has no effect when a custom shader is used.
+     */
+    public void setAlphaColor(int color) {
+        renderer.setAlphaColor(color);
+        requestRender();
+    }
+
+    /**
+     * Sets how close to the alpha color a pixel has to be to become transparent, between 0 and 1.
+     * May be called from any thread at any time.
+     */
+    public void setAccuracy(double accuracy) {
+        renderer.setAccuracy(accuracy);
+        requestRender();
+    }
+
+    public double getAccuracy() {
+        return renderer.getAccuracy();
+    }
+
+    /**
+     * Sets how transparency is stored in the video, one of the {@code ALPHA_PACKING_*} constants.
+     * Packed videos carry a grayscale alpha matte next to the color, which gives soft edges
+     * and is cheaper to render than chroma keying. {@code alphaColor}, {@code accuracy} and
+     * custom shaders only apply to {@link #ALPHA_PACKING_NONE}.
+     */
+    public void setAlphaPacking(int alphaPacking) {
+        renderer.setAlphaPacking(alphaPacking);
+        calculateVideoAspectRatio(videoWidth, videoHeight);
+        requestRender();
+    }
+
+    public int getAlphaPacking() {
+        return renderer.getAlphaPacking();
+    }
+
+    /**
+     * Writes premultiplied color and alpha, which is what the {@code TextureView} is
+     * composited as, and draws without GL blending. Saves the blend stage's reads of the
+     * surface on every pixel. Custom shaders keep writing straight alpha, their output is
+     * premultiplied after them. Off by default.
+     */
+    public void setPremultipliedAlpha(boolean premultiplied) {
+        renderer.setPremultipliedOutput(premultiplied);
+        // A non-opaque TextureView composites its buffers as premultiplied, as now written.
+        setOpaque(false);
+        requestRender();
+    }
+
+    public boolean isPremultipliedAlpha() {
+        return renderer.isPremultipliedOutput();
+    }
+
+    /**
+     * Makes all {@code AlphaMovieView}s created afterwards render on one shared GL thread with
+     * one EGL context, which is much cheaper for screens showing many videos at once.
+     * A single view can opt in with the {@code sharedRenderThread} attr instead.
+     */
+    public static void setSharedRenderThreadByDefault(boolean shared) {
+        sharedRenderThreadByDefault = shared;
+    }
+
+    /**
+     * Sets the OpenGL ES version of the contexts of views created afterwards, 3 by default.
+     * Devices without OpenGL ES 3.0 fall back to 2.0 either way. With 2, frames are
+     * finished with {@code glFinish} instead of fences, and the program binary cache,
+     * opaque bounds detection and GPU timing are not available.
+     *
+     * @param version 2 or 3.
+     */
+    public static void setGlContextVersion(int version) {
+        if (version != 2 && version != 3) {
+            throw new IllegalArgumentException("Unsupported OpenGL ES version " + version);
+        }
+        glContextVersion = version;
     }
 
+    /**
+     * Enables frame-driven rendering. In this mode the GL thread sleeps until the decoder
+     * delivers a new frame, so paused or stopped playback costs no GPU work.
+     * By default the view is redrawn continuously.
+     */
+    public void setFrameDrivenRendering(boolean frameDriven) {
+        frameDrivenRendering = frameDriven;
+        updatePlaybackState();
+    }
+
+    public boolean isFrameDrivenRendering() {
+        return frameDrivenRendering;
+    }
+
+    /**
+     * @return number of frames drawn by the renderer since the last {@link #resetRenderCounters()}.
+     */
+    public long getDrawnFrameCount() {
+        return renderer.getDrawnFrameCount();
+    }
+
+    /**
+     * @return number of draws that repeated the previous video frame because the decoder
+     * had not delivered a new one.
+     */
+    public long getRedundantDrawCount() {
+        return renderer.getRedundantDrawCount();
+    }
+
+    /**
+     * @return number of video frames the decoder delivered since the last
+     * {@link #resetRenderCounters()}. Every one of them is eventually either displayed
+     * or skipped.
+     */
+    public long getProducedFrameCount() {
+        return renderer.getProducedFrameCount();
+    }
+
+    /**
+     * @return number of video frames taken from the decoder's queue by the renderer,
+     * including ones skipped right away for being late.
+     */
+    public long getLatchedFrameCount() {
+        return renderer.getLatchedFrameCount();
+    }
+
+    /**
+     * @return number of video frames drawn.
+     */
+    public long getDisplayedFrameCount() {
+        return renderer.getDisplayedFrameCount();
+    }
+
+    /**
+     * @return number of video frames never drawn, because they were too late and a newer
+     * frame was already waiting, or the rendering surface was recreated.
+     */
+    public long getSkippedFrameCount() {
+        return renderer.getSkippedFrameCount();
+    }
+
+    public void resetRenderCounters() {
+        renderer.resetDrawCounters();
+    }
+
+    /**
+     * Besides the flags of {@link GLTextureView}, accepts {@link #DEBUG_COUNT_GL_CALLS}.
+     * {@link #DEBUG_CHECK_GL_ERROR} and {@link #DEBUG_COUNT_GL_CALLS} take effect with the
+     * next drawn frame.
+     */
+    @Override
+    public void setDebugFlags(int debugFlags) {
+        super.setDebugFlags(debugFlags);
+        renderer.setGlErrorChecksEnabled((debugFlags & DEBUG_CHECK_GL_ERROR) != 0);
+        renderer.setGlCallCountingEnabled((debugFlags & DEBUG_COUNT_GL_CALLS) != 0);
+    }
+
+    /**
+     * Tells the renderer whether frame times can be measured from the draw rate.
+     */
+    @Override
+    public void setRenderMode(int renderMode) {
+        super.setRenderMode(renderMode);
+        renderer.setContinuousRendering(renderMode == RENDERMODE_CONTINUOUSLY);
+    }
+
+    /**
+     * @return GL calls issued by the last frame, requires {@link #DEBUG_COUNT_GL_CALLS}.
+     */
+    public int getLastFrameGlCallCount() {
+        return renderer.getLastFrameGlCallCount();
+    }
+
+    /**
+     * @return mean GL calls per frame since the last {@link #resetRenderCounters()}, counted
+     * while {@link #DEBUG_COUNT_GL_CALLS} was set.
+     */
+    public float getAverageGlCallsPerFrame() {
+        long frames = renderer.getCountedFrameCount();
+        return frames > 0 ? (float) renderer.getGlCallCount() / frames : 0f;
+    }
+
+    /**
+     * @return redundant GL state changes skipped since the last {@link #resetRenderCounters()},
+     * counted while {@link #DEBUG_COUNT_GL_CALLS} was set.
+     */
+    public long getSkippedGlCallCount() {
+        return renderer.getSkippedGlCallCount();
+    }
+
+    /**
+     * Enables caching of compiled shader programs in the app's cache dir, so they don't have to
+     * be compiled again on the next start. Requires OpenGL ES 3.0, ignored otherwise.
+     * Takes effect the next time the rendering surface is created.
+     */
+    public void setProgramBinaryCacheEnabled(boolean enabled) {
+        renderer.setProgramBinaryCacheDir(enabled ? getContext().getCacheDir() : null);
+    }
+
+    /**
+     * Draws only the given region of the video, which must hold every visible pixel of the
+     * current clip, e.g. as precomputed offline. Saves filling and blending the transparent
+     * rest of large views. Cleared when another video is set, null draws the whole frame.
+     *
+     * @param bounds fractions of the video frame, from 0,0 at the top left to 1,1.
+     */
+    public void setOpaqueBounds(RectF bounds) {
+        renderer.setOpaqueBounds(bounds == null ? null : new float[]{
+                bounds.left, 1f - bounds.bottom, bounds.right, 1f - bounds.top});
+    }
+
+    /**
+     * Learns the region holding visible pixels while each video plays once, and then only
+     * draws that region. Intended for looping clips with a small subject in a mostly
+     * transparent frame. Bounds given to {@link #setOpaqueBounds(RectF)} take precedence.
+     * Requires OpenGL ES 3.0, ignored otherwise.
+     */
+    public void setOpaqueBoundsDetectionEnabled(boolean enabled) {
+        renderer.setOpaqueBoundsDetectionEnabled(enabled);
+    }
+
+    /**
+     * @return the region of the video currently drawn, in fractions of the frame from 0,0 at
+     * the top left to 1,1.
+     */
+    public RectF getOpaqueBounds() {
+        float[] bounds = renderer.getDrawnBounds();
+        return new RectF(bounds[0], 1f - bounds[3], bounds[2], 1f - bounds[1]);
+    }
+
+    /**
+     * Enables the frame cache for short looping clips. The first pass of the video is copied
+     * into GPU textures and then replayed from them, while the decoder is shut down.
+     * Clips that don't fit the {@link #setFrameCacheBudget(long) budget} are streamed as usual.
+     * Only used while looping, takes effect with the next video.
+     */
+    public void setFrameCacheEnabled(boolean enabled) {
+        frameCacheEnabled = enabled;
+        renderer.setFrameCacheEnabled(enabled && isItemLooping());
+    }
+
+    public boolean isFrameCacheEnabled() {
+        return frameCacheEnabled;
+    }
+
+    /**
+     * @return true while the video is shown from the frame cache instead of the decoder.
+     */
+    public boolean isPlayingFromFrameCache() {
+        return playingFromFrameCache;
+    }
+
+    /**
+     * Sets how much GPU memory the frame caches of all views may use together. When a new
+     * clip is cached, the caches shown least recently are evicted and stream their videos
+     * again. Defaults to 48 MB.
+     */
+    public static void setFrameCacheBudget(long bytes) {
+        FrameCache.setBudgetBytes(bytes);
+    }
+
+    /**
+     * Draws views larger than their video at the video's resolution, and lowers it further
+     * while frames take longer than the
+     * {@link #setDynamicResolutionPolicy(float, float) target frame time}, raising it again
+     * when they keep up. The video is drawn into a smaller offscreen texture, which is then
+     * stretched over the view. Frame times are only known while drawing
+     * continuously or falling behind the video, so {@code frameDriven} views at the
+     * video's frame rate stay at their scale. Off by default.
+     */
+    public void setDynamicResolutionEnabled(boolean enabled) {
+        renderer.setDynamicResolutionEnabled(enabled);
+        requestRender();
+    }
+
+    /**
+     * @param targetFrameTimeMs frame time to stay within, defaults to 16.67 for 60 Hz displays.
+     * @param minScale          lowest fraction of the view's width and height to draw at,
+     *                          from 0 to 1, defaults to 0.5.
+     */
+    public void setDynamicResolutionPolicy(float targetFrameTimeMs, float minScale) {
+        renderer.setDynamicResolutionPolicy((long) (targetFrameTimeMs * 1000000L), minScale);
+    }
+
+    public float getDynamicResolutionTargetFrameTimeMs() {
+        return renderer.getDynamicResolutionTargetFrameNanos() / 1000000f;
+    }
+
+    public float getDynamicResolutionMinScale() {
+        return renderer.getDynamicResolutionMinScale();
+    }
+
+    /**
+     * @return the fraction of the video's or the view's resolution, whichever is smaller,
+     * the video is drawn at. 1 unless frames missed the target.
+     */
+    public float getResolutionScale() {
+        return renderer.getResolutionScale();
+    }
+
+    /**
+     * Views render into RGBA8888 surfaces without depth or stencil buffers, the config is
+     * chosen once per process. Sets the {@code EGL_CONFIG_FALLBACK_*} formats allowed on
+     * devices without such a config, none by default. Affects contexts created afterwards.
+     */
+    public static void setEglConfigFallbacks(int fallbacks) {
+        MinimalEglConfigChooser.setFallbacks(fallbacks);
+    }
+
+    /**
+     * @return milliseconds from the last {@code setVideo*} call until its first frame was drawn,
+     * or -1 if no frame was drawn yet.
+     */
+    public long getTimeToFirstFrameMillis() {
+        long nanos = renderer.getTimeToFirstFrameNanos();
+        return nanos < 0 ? nanos : nanos / 1000000L;
+    }
+
+    /**
+     * Selects how videos are decoded, one of the {@code PLAYBACK_ENGINE_*} constants.
+     * The current video, if any, is loaded again with the new engine.
+     */
+    public void setPlaybackEngine(int type) {
+        playbackEngineType = type;
+        setPlaybackEngine(createPlaybackEngine(type));
+    }
+
+    /**
+     * Replaces the engine decoding the videos, e.g. with a custom {@link PlaybackEngine}.
+     * The previous engine is released and the current video, if any, is loaded again.
+     */
+    public void setPlaybackEngine(PlaybackEngine playbackEngine) {
+        if (engine != null) {
+            engine.setSurface(null, engineDetachCallback());
+            engine.release();
+        }
+        clearFrameCache();
+        state = PlayerState.NOT_PREPARED;
+        updatePlaybackState();
+        initPlaybackEngine(playbackEngine);
+        attachSurface();
+
+        releaseNextEngine();
+        if (videoSource != null) {
+            loadVideo(videoSource);
+        }
+    }
+
+    /**
+     * Sets how many prepared engines are kept in the process-wide pool, 0 (the default)
+     * disables it. With a pool, a view that switches to another video or is detached hands
+     * its prepared engine to the pool, and a view given the same source again takes it
+     * back, skipping the decoder setup. Must be called from the main thread.
+     */
+    public static void setEnginePoolSize(int size) {
+        EnginePool.setMaxSize(size);
+    }
+
+    /**
+     * Sets how long an engine may stay unused in the pool before it is released.
+     */
+    public static void setEnginePoolIdleTimeout(long timeoutMs) {
+        EnginePool.setIdleTimeoutMs(timeoutMs);
+    }
+
+    /**
+     * Prepares an engine of the given {@code PLAYBACK_ENGINE_*} type for {@code source} in
+     * the pool and reads its metadata, so a view shown later starts it right away. Does
+     * nothing while the pool is disabled. Must be called from the main thread.
+     */
+    public static void prepareInEnginePool(VideoSource source, int playbackEngineType) {
+        if (EnginePool.isEnabled()) {
+            prefetchMetadata(source);
+            EnginePool.prepare(source, createPlaybackEngine(playbackEngineType));
+        }
+    }
+
+    /**
+     * @return how many times a view found a prepared engine for its video in the pool.
+     */
+    public static long getEnginePoolHitCount() {
+        return EnginePool.getHitCount();
+    }
+
+    /**
+     * @return how many times a view had to prepare its own engine while the pool was enabled.
+     */
+    public static long getEnginePoolMissCount() {
+        return EnginePool.getMissCount();
+    }
+
+    /**
+     * @return how many pooled engines were released because the pool was full or they
+     * stayed unused longer than the idle timeout.
+     */
+    public static long getEnginePoolEvictionCount() {
+        return EnginePool.getEvictionCount();
+    }
+
+    /**
+     * Plays the videos one after another, starting with the first one. While a video plays
+     * the next one is prepared on a second engine, which takes over the view's surface when
+     * the video ends, so the last frame stays on screen until the next one is drawn. With
+     * {@link #setLooping(boolean) looping} the playlist starts over after the last video.
+     * Setting a single video with {@code setVideo*} ends the playlist.
+     * <p>
+     * Prefetching needs an engine that can switch surfaces while prepared, i.e. a
+     * {@code MediaPlayer} engine or a {@code MediaCodec} one on API 23+; otherwise each
+     * video is loaded when the previous one ends.
+     */
+    public void setPlaylist(List<VideoSource> sources) {
+        if (sources == null || sources.isEmpty()) {
+            clearPlaylist();
+            return;
+        }
+        releaseNextEngine();
+        playlist = new ArrayList<VideoSource>(sources);
+        playlistIndex = 0;
+        applyItemLooping();
+        loadVideo(playlist.get(0));
+        if (onPlaylistItemChangedListener != null) {
+            onPlaylistItemChangedListener.onPlaylistItemChanged(0);
+        }
+    }
+
+    /**
+     * @return the index of the current video in the playlist, or -1 without a playlist.
+     */
+    public int getPlaylistIndex() {
+        return playlist != null ? playlistIndex : -1;
+    }
+
+    public void setOnPlaylistItemChangedListener(OnPlaylistItemChangedListener listener) {
+        this.onPlaylistItemChangedListener = listener;
+    }
+
+    private void clearPlaylist() {
+        if (playlist != null) {
+            playlist = null;
+            playlistIndex = -1;
+            releaseNextEngine();
+            applyItemLooping();
+        }
+    }
+
+    private int nextPlaylistIndex() {
+        if (playlistIndex + 1 < playlist.size()) {
+            return playlistIndex + 1;
+        }
+        return looping ? 0 : -1;
+    }
+
+    private void prepareNextPlaylistItem() {
+        if (playlist == null || nextEngine != null) {
+            return;
+        }
+        int index = nextPlaylistIndex();
+        if (index < 0) {
+            return;
+        }
+        final PlaybackEngine candidate = createPlaybackEngine(playbackEngineType);
+        if (!ParkingSurface.canMove(candidate)) {
+            candidate.release();
+            return;
+        }
+        VideoSource source = playlist.get(index);
+        prefetchMetadata(source);
+
+        nextEngine = candidate;
+        nextParking = new ParkingSurface();
+        nextPrepared = false;
+        candidate.setSurface(nextParking.getSurface());
+        candidate.setOnPreparedListener(new PlaybackEngine.OnPreparedListener() {
+            @Override
+            public void onPrepared(PlaybackEngine engine) {
+                if (engine == nextEngine) {
+                    nextPrepared = true;
+                }
+            }
+        });
+        candidate.setOnErrorListener(new PlaybackEngine.OnErrorListener() {
+            @Override
+            public boolean onError(PlaybackEngine engine, int what, int extra) {
+                if (engine == nextEngine) {
+                    // The item is loaded the regular way once it's its turn.
+                    releaseNextEngine();
+                }
+                return true;
+            }
+        });
+        try {
+            candidate.setDataSource(source);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            releaseNextEngine();
+            return;
+        }
+        candidate.prepareAsync();
+    }
+
+    private void releaseNextEngine() {
+        if (nextEngine != null) {
+            nextParking.releaseWith(nextEngine);
+            nextEngine = null;
+            nextParking = null;
+            nextPrepared = false;
+        }
+    }
+
+    private void advancePlaylist() {
+        int index = nextPlaylistIndex();
+        if (index < 0) {
+            return;
+        }
+        playlistIndex = index;
+        VideoSource source = playlist.get(index);
+        renderer.markTransitionStarted();
+
+        VideoMetadata nextMetadata = MetadataLoader.getCached(source);
+        if (nextPrepared && nextMetadata != null && ParkingSurface.canMove(engine)) {
+            switchToNextEngine(source, nextMetadata);
+        } else {
+            releaseNextEngine();
+            loadVideo(source);
+        }
+        if (onPlaylistItemChangedListener != null) {
+            onPlaylistItemChangedListener.onPlaylistItemChanged(index);
+        }
+    }
+
+    /**
+     * Moves the prepared next engine to the view's surface. The surface texture keeps its
+     * last frame, so nothing blank is drawn in between.
+     */
+    private void switchToNextEngine(VideoSource source, VideoMetadata nextMetadata) {
+        // The view's surface takes one producer at a time, the finished engine leaves first
+        // to a parking surface of its own, so its release doesn't hold the next one back.
+        ParkingSurface retired = new ParkingSurface();
+        engine.setSurface(retired.getSurface(), engineDetachCallback());
+        retired.releaseWith(engine);
+
+        final PlaybackEngine next = nextEngine;
+        final ParkingSurface parking = nextParking;
+        nextEngine = null;
+        nextParking = null;
+        nextPrepared = false;
+
+        next.setOnPreparedListener(null);
+        initPlaybackEngine(next);
+        attachingParking = parking;
+        runAfterSurfaceHandoffs(new Runnable() {
+            @Override
+            public void run() {
+                // Unless the engine was replaced or moved to a new surface meanwhile.
+                if (attachingParking == parking) {
+                    attachingParking = null;
+                    next.setSurface(surface, parking.releaseCallback());
+                }
+            }
+        });
+
+        videoSource = source;
+        state = PlayerState.PREPARED;
+        renderer.setOpaqueBounds(null);
+        renderer.resetOpaqueBounds();
+        onDataSourceSet(nextMetadata);
+    }
+
+    /**
+     * Moves the current engine to the view's surface, if there is one yet.
+     */
+    private void attachSurface() {
+        if (surface != null) {
+            engine.setSurface(surface);
+        }
+    }
+
+    /**
+     * For the current engine leaving the view's surface, along with any parking surface it
+     * was still on.
+     *
+     * @return the callback to pass to {@link PlaybackEngine#setSurface(Surface, Runnable)}.
+     */
+    private Runnable engineDetachCallback() {
+        final Runnable handoff = beginSurfaceHandoff();
+        final ParkingSurface parking = attachingParking;
+        attachingParking = null;
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (parking != null) {
+                    parking.release();
+                }
+                handoff.run();
+            }
+        };
+    }
+
+    /**
+     * @return a callback ending the hand-off, to run once the engine let go of the surface.
+     */
+    private Runnable beginSurfaceHandoff() {
+        surfaceHandoffsPending++;
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (--surfaceHandoffsPending == 0) {
+                    List<Runnable> actions = new ArrayList<Runnable>(afterSurfaceHandoffs);
+                    afterSurfaceHandoffs.clear();
+                    for (Runnable action : actions) {
+                        action.run();
+                    }
+                }
+            }
+        };
+    }
+
+    private void runAfterSurfaceHandoffs(Runnable action) {
+        if (surfaceHandoffsPending == 0) {
+            action.run();
+        } else {
+            afterSurfaceHandoffs.add(action);
+        }
+    }
+
+    /**
+     * @return how many playlist transitions were measured so far.
+     */
+    public long getTransitionCount() {
+        return renderer.getTransitionCount();
+    }
+
+    /**
+     * @return milliseconds from the end of the previous playlist video until the first frame
+     * of the next one was drawn for the last transition, or -1 if there was none.
+     */
+    public long getLastTransitionLatencyMillis() {
+        long nanos = renderer.getLastTransitionNanos();
+        return nanos < 0 ? nanos : nanos / 1000000L;
+    }
+
+    /**
+     * @return the longest playlist transition in milliseconds, or -1 if there was none.
+     */
+    public long getMaxTransitionLatencyMillis() {
+        long nanos = renderer.getMaxTransitionNanos();
+        return nanos < 0 ? nanos : nanos / 1000000L;
+    }
+
+    /**
+     * @return the mean playlist transition in milliseconds, or -1 if there was none.
+     */
+    public long getAverageTransitionLatencyMillis() {
+        long count = renderer.getTransitionCount();
+        return count == 0 ? -1 : renderer.getTotalTransitionNanos() / count / 1000000L;
+    }
+
+    public PlaybackEngine getPlaybackEngine() {
+        return engine;
+    }
+
+    /**
+     * @return the underlying {@code MediaPlayer}, or null if another playback engine is used.
+     */
     public MediaPlayer getMediaPlayer() {
-        return mediaPlayer;
+        return engine instanceof MediaPlayerEngine ? ((MediaPlayerEngine) engine).getMediaPlayer() : null;
+    }
+
+    public interface OnPlaylistItemChangedListener {
+        void onPlaylistItemChanged(int index);
     }
 
     public interface OnVideoStartedListener {
@@ -428,6 +1654,15 @@ public class AlphaMovieView extends GLTextureView {
         void onVideoEnded();
     }
 
+    public interface OnMetadataReadyListener {
+        void onMetadataReady(VideoMetadata metadata);
+    }
+
+    public interface OnFramePacingListener {
+        void onFramePacing(int shownFrames, int droppedFrames, long meanJudderNanos,
+                           long maxJudderNanos);
+    }
+
     private enum PlayerState {
         NOT_PREPARED, PREPARED, STARTED, PAUSED, STOPPED, RELEASE
     }
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Chroma key parameters published as immutable values.
+ * <p>
+ * Any thread may set new values. A writer copies the current values, changes the copy and
+ * publishes it through a volatile reference, writers only lock against each other. The
+ * GL thread reads without locking, and only copies the values when their version has
+ * changed since its last snapshot.
+ */
+class ChromaKeyParams {
+    static final int RED = 0;
+    static final int GREEN = 1;
+    static final int BLUE = 2;
+    static final int TOLERANCE = 3;
+
+    private static final class Values {
+        // Never written after publishing.
+        final float[] params;
+        final int version;
+
+        Values(float[] params, int version) {
+            this.params = params;
+            this.version = version;
+        }
+    }
+
+    private volatile Values current;
+
+    ChromaKeyParams(float red, float green, float blue, float tolerance) {
+        current = new Values(new float[]{red, green, blue, tolerance}, 1);
+    }
+
+    synchronized void setColor(float red, float green, float blue) {
+        float[] params = current.params.clone();
+        params[RED] = red;
+        params[GREEN] = green;
+        params[BLUE] = blue;
+        publish(params);
+    }
+
+    synchronized void setTolerance(float tolerance) {
+        float[] params = current.params.clone();
+        params[TOLERANCE] = tolerance;
+        publish(params);
+    }
+
+    float get(int index) {
+        return current.params[index];
+    }
+
+    int getVersion() {
+        return current.version;
+    }
+
+    /**
+     * Copies the published values into {@code out} if they are newer than
+     * {@code knownVersion}.
+     *
+     * @return the version of the values in {@code out}.
+     */
+    int snapshot(float[] out, int knownVersion) {
+        Values values = current;
+        if (values.version != knownVersion) {
+            System.arraycopy(values.params, 0, out, 0, values.params.length);
+        }
+        return values.version;
+    }
+
+    // Called with the lock held.
+    private void publish(float[] params) {
+        current = new Values(params, current.version + 1);
+    }
+}
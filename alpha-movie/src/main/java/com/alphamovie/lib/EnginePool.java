@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Process-wide pool of prepared playback engines, keyed by source.
+ * <p>
+ * An engine is either checked in by a view that stops showing its source, or prepared
+ * ahead of time. Pooled engines are paused at the start of the video and render into a
+ * {@link ParkingSurface}. A view checking one out only has to attach its own surface,
+ * which skips container parsing and codec setup.
+ * <p>
+ * The pool holds at most {@link #setMaxSize(int) maxSize} engines, the least recently
+ * checked in ones are released first, and engines idle longer than the idle timeout are
+ * released as well. Must only be used from the main thread.
+ */
+final class EnginePool {
+    private static final String TAG = "EnginePool";
+
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 30000;
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Ordered from least to most recently checked in.
+    private static final List<Entry> entries = new ArrayList<Entry>();
+    private static int maxSize;
+    private static long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private static boolean sweepScheduled;
+
+    private static long hitCount;
+    private static long missCount;
+    private static long evictionCount;
+
+    private static final Runnable sweep = new Runnable() {
+        @Override
+        public void run() {
+            sweepScheduled = false;
+            long now = SystemClock.uptimeMillis();
+            Iterator<Entry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (now - entry.idleSinceMs >= idleTimeoutMs) {
+                    iterator.remove();
+                    entry.release();
+                    evictionCount++;
+                }
+            }
+            scheduleSweep();
+        }
+    };
+
+    private EnginePool() {
+    }
+
+    static void setMaxSize(int size) {
+        maxSize = Math.max(0, size);
+        trimToSize(maxSize);
+    }
+
+    static void setIdleTimeoutMs(long timeoutMs) {
+        idleTimeoutMs = timeoutMs;
+        mainHandler.removeCallbacks(sweep);
+        sweepScheduled = false;
+        scheduleSweep();
+    }
+
+    static boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Only engines that can move to another surface while prepared are pooled.
+     */
+    static boolean canPool(PlaybackEngine engine) {
+        return ParkingSurface.canMove(engine);
+    }
+
+    /**
+     * Takes a prepared engine of the given class for {@code source} out of the pool and
+     * moves it to {@code surface}, which must not have another producer. The switch happens
+     * in the background, the parking surface is released once it is done.
+     *
+     * @return the engine, paused at the start of the video, or null.
+     */
+    static PlaybackEngine checkOut(VideoSource source, Class<? extends PlaybackEngine> engineClass,
+                                   Surface surface) {
+        if (!isEnabled()) {
+            return null;
+        }
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Entry entry = entries.get(i);
+            if (entry.prepared && entry.source.equals(source) && engineClass.isInstance(entry.engine)) {
+                entries.remove(i);
+                hitCount++;
+                clearListeners(entry.engine);
+                entry.engine.setSurface(surface, entry.parking.releaseCallback());
+                return entry.engine;
+            }
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Hands a prepared engine over to the pool, which parks it at the start of the video.
+     * The engine must be paused or prepared and must no longer be used by the caller.
+     * It isn't checked out again before it has left its surface.
+     *
+     * @param onDetached run on the main thread once the engine no longer renders into the
+     *                   surface it had, so the caller can release or reuse it.
+     */
+    static void checkIn(VideoSource source, PlaybackEngine engine, final Runnable onDetached) {
+        if (!isEnabled() || !canPool(engine)) {
+            engine.setSurface(null, onDetached);
+            engine.release();
+            return;
+        }
+        clearListeners(engine);
+        final Entry entry = new Entry(source, engine);
+        engine.setSurface(entry.parking.getSurface(), new Runnable() {
+            @Override
+            public void run() {
+                entry.prepared = true;
+                onDetached.run();
+            }
+        });
+        engine.seekTo(0);
+        add(entry);
+    }
+
+    /**
+     * Creates an engine for {@code source} and prepares it in the background.
+     */
+    static void prepare(VideoSource source, PlaybackEngine engine) {
+        if (!isEnabled() || !canPool(engine)) {
+            engine.release();
+            return;
+        }
+        clearListeners(engine);
+        final Entry entry = new Entry(source, engine);
+        engine.setSurface(entry.parking.getSurface());
+        engine.setOnPreparedListener(new PlaybackEngine.OnPreparedListener() {
+            @Override
+            public void onPrepared(PlaybackEngine engine) {
+                entry.prepared = true;
+            }
+        });
+        engine.setOnErrorListener(new PlaybackEngine.OnErrorListener() {
+            @Override
+            public boolean onError(PlaybackEngine engine, int what, int extra) {
+                if (entries.remove(entry)) {
+                    entry.release();
+                }
+                return true;
+            }
+        });
+        try {
+            engine.setDataSource(source);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not prepare " + source + ": " + e.getMessage());
+            entry.release();
+            return;
+        }
+        engine.prepareAsync();
+        add(entry);
+    }
+
+    static long getHitCount() {
+        return hitCount;
+    }
+
+    static long getMissCount() {
+        return missCount;
+    }
+
+    static long getEvictionCount() {
+        return evictionCount;
+    }
+
+    private static void add(Entry entry) {
+        trimToSize(maxSize - 1);
+        entries.add(entry);
+        scheduleSweep();
+    }
+
+    private static void trimToSize(int size) {
+        while (entries.size() > Math.max(0, size)) {
+            entries.remove(0).release();
+            evictionCount++;
+        }
+    }
+
+    private static void scheduleSweep() {
+        if (!sweepScheduled && !entries.isEmpty()) {
+            sweepScheduled = true;
+            mainHandler.postDelayed(sweep, Math.max(1000, idleTimeoutMs / 2));
+        }
+    }
+
+    private static void clearListeners(PlaybackEngine engine) {
+        engine.setOnPreparedListener(null);
+        engine.setOnCompletionListener(null);
+        engine.setOnSeekCompleteListener(null);
+        engine.setOnErrorListener(null);
+    }
+
+    private static final class Entry {
+        final VideoSource source;
+        final PlaybackEngine engine;
+        final long idleSinceMs = SystemClock.uptimeMillis();
+        final ParkingSurface parking = new ParkingSurface();
+        boolean prepared;
+
+        Entry(VideoSource source, PlaybackEngine engine) {
+            this.source = source;
+            this.engine = engine;
+        }
+
+        void release() {
+            parking.releaseWith(engine);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decoded frames of one pass of a short looping clip, kept in GPU textures.
+ * <p>
+ * While capturing, every new video frame is copied from the external texture into an
+ * RGBA texture of the video size. Once the clip has looped, the frames are replayed with
+ * their original timing and the decoder can be shut down.
+ * <p>
+ * All caches of the process share one memory budget. Capturing a frame that doesn't fit
+ * evicts the least recently shown caches, and a clip that can't fit even then is not
+ * cached at all. An evicted cache is only flagged, its textures are freed by the owning
+ * GL thread on its next frame.
+ * <p>
+ * Apart from the budget, must only be used from the GL thread.
+ */
+class FrameCache {
+    static final long DEFAULT_BUDGET_BYTES = 48L * 1024 * 1024;
+
+    private static final int BYTES_PER_PIXEL = 4;
+    /** Used to estimate the size of a clip before its frame rate is known. */
+    private static final long ESTIMATED_FRAME_DURATION_NANOS = 33333333L;
+
+    static final int STATE_IDLE = 0;
+    static final int STATE_CAPTURING = 1;
+    static final int STATE_REPLAYING = 2;
+    /** The clip didn't fit or the cache was evicted, frames are streamed until reset. */
+    static final int STATE_STREAMING = 3;
+
+    private static final String COPY_VERTEX_SHADER =
+            "uniform mat4 uSTMatrix;\n" +
+                    "attribute vec4 aPosition;\n" +
+                    "attribute vec4 aTextureCoord;\n" +
+                    "varying vec2 vTextureCoord;\n" +
+                    "void main() {\n" +
+                    "  gl_Position = aPosition;\n" +
+                    "  vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n" +
+                    "}\n";
+
+    private static final String COPY_FRAGMENT_SHADER = "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "void main() {\n"
+            + "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n"
+            + "}\n";
+
+    private static final Object budgetLock = new Object();
+    // Guarded by budgetLock, ordered from least to most recently shown.
+    private static final LinkedHashMap<FrameCache, Long> reservations =
+            new LinkedHashMap<FrameCache, Long>(16, 0.75f, true);
+    private static long budgetBytes = DEFAULT_BUDGET_BYTES;
+    private static long usedBytes;
+
+    private volatile boolean evicted;
+
+    private int state = STATE_IDLE;
+    private final List<Integer> textures = new ArrayList<Integer>();
+    private long[] timestamps = new long[32];
+    private int frameWidth;
+    private int frameHeight;
+    private long clipDurationNanos;
+    private long loopDurationNanos;
+    private int framebuffer;
+
+    private int copyProgram;
+    private int copyPositionHandle;
+    private int copyTextureHandle;
+    private int copySTMatrixHandle;
+
+    private long replayStartNanos;
+    private long pausedAtNanos = -1;
+    private int shownFrame = -1;
+    private boolean replayEnded;
+
+    static void setBudgetBytes(long bytes) {
+        synchronized (budgetLock) {
+            budgetBytes = bytes;
+            evictLocked(null, 0);
+        }
+    }
+
+    int getState() {
+        return state;
+    }
+
+    boolean isEvicted() {
+        return evicted;
+    }
+
+    /**
+     * Starts capturing a clip of the given size and duration.
+     *
+     * @return false if the clip is too large for the budget, the cache is then left
+     * in {@link #STATE_STREAMING}.
+     */
+    boolean begin(int width, int height, long clipDurationNanos) {
+        release();
+        frameWidth = width;
+        frameHeight = height;
+        this.clipDurationNanos = clipDurationNanos;
+        long estimatedBytes = frameBytes() * Math.max(1, clipDurationNanos / ESTIMATED_FRAME_DURATION_NANOS);
+        synchronized (budgetLock) {
+            if (width <= 0 || height <= 0 || clipDurationNanos <= 0 || estimatedBytes > budgetBytes) {
+                state = STATE_STREAMING;
+                return false;
+            }
+        }
+        state = STATE_CAPTURING;
+        return true;
+    }
+
+    /**
+     * Copies the current frame of the external texture into the cache, unless the frame
+     * starts the next iteration of the clip, which completes the capture instead.
+     * Changes the framebuffer binding and viewport.
+     *
+     * @return the state after the frame.
+     */
+    int capture(int externalTexture, float[] stMatrix, long timestampNanos, GlState glState) {
+        int count = textures.size();
+        if (count > 0) {
+            long elapsed = timestampNanos - timestamps[0];
+            long lastElapsed = timestamps[count - 1] - timestamps[0];
+            long halfFrame = count > 1 ? lastElapsed / (count - 1) / 2 : 0;
+            if (elapsed < lastElapsed || elapsed >= clipDurationNanos - halfFrame) {
+                // Timestamps went back or a whole clip was seen: this frame is the first of
+                // the next iteration.
+                loopDurationNanos = elapsed > lastElapsed ? elapsed : clipDurationNanos;
+                startReplay();
+                return state;
+            }
+        }
+        if (!reserve(frameBytes())) {
+            abandon();
+            return state;
+        }
+
+        int texture = createFrameTexture();
+        copyFrame(externalTexture, stMatrix, texture, glState);
+        textures.add(texture);
+        if (count == timestamps.length) {
+            long[] grown = new long[count * 2];
+            System.arraycopy(timestamps, 0, grown, 0, count);
+            timestamps = grown;
+        }
+        timestamps[count] = timestampNanos;
+        return state;
+    }
+
+    /**
+     * @return the texture to show at {@code nowNanos}, or 0 if nothing is cached.
+     */
+    int frameAt(long nowNanos, boolean looping) {
+        int count = textures.size();
+        if (state != STATE_REPLAYING || count == 0) {
+            return 0;
+        }
+        long elapsed = (pausedAtNanos >= 0 ? pausedAtNanos : nowNanos) - replayStartNanos;
+        if (elapsed >= loopDurationNanos) {
+            if (looping) {
+                elapsed %= loopDurationNanos;
+            } else {
+                elapsed = loopDurationNanos - 1;
+                replayEnded = true;
+            }
+        }
+        int frame = findFrame(timestamps[0] + elapsed, count);
+        if (frame != shownFrame) {
+            shownFrame = frame;
+            touch();
+        }
+        return textures.get(frame);
+    }
+
+    boolean isReplayEnded() {
+        return replayEnded;
+    }
+
+    void setPaused(boolean paused, long nowNanos) {
+        if (paused && pausedAtNanos < 0) {
+            pausedAtNanos = nowNanos;
+        } else if (!paused && pausedAtNanos >= 0) {
+            replayStartNanos += nowNanos - pausedAtNanos;
+            pausedAtNanos = -1;
+        }
+        if (!paused && replayEnded) {
+            replayEnded = false;
+            replayStartNanos = nowNanos;
+        }
+    }
+
+    void seekTo(long positionNanos, long nowNanos) {
+        if (loopDurationNanos > 0) {
+            positionNanos %= loopDurationNanos;
+        }
+        replayEnded = false;
+        replayStartNanos = (pausedAtNanos >= 0 ? pausedAtNanos : nowNanos) - positionNanos;
+    }
+
+    long getPositionNanos(long nowNanos) {
+        if (state != STATE_REPLAYING || loopDurationNanos <= 0) {
+            return 0;
+        }
+        if (replayEnded) {
+            return loopDurationNanos;
+        }
+        long elapsed = (pausedAtNanos >= 0 ? pausedAtNanos : nowNanos) - replayStartNanos;
+        return elapsed % loopDurationNanos;
+    }
+
+    /**
+     * Frees all textures and the budget they held, and goes back to {@link #STATE_IDLE}.
+     * Must be called with the context current, or after the context was lost.
+     */
+    void release() {
+        if (!textures.isEmpty()) {
+            int[] names = new int[textures.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = textures.get(i);
+            }
+            GLES20.glDeleteTextures(names.length, names, 0);
+            textures.clear();
+        }
+        if (framebuffer != 0) {
+            GLES20.glDeleteFramebuffers(1, new int[]{framebuffer}, 0);
+            framebuffer = 0;
+        }
+        synchronized (budgetLock) {
+            Long reserved = reservations.remove(this);
+            if (reserved != null) {
+                usedBytes -= reserved;
+            }
+        }
+        evicted = false;
+        state = STATE_IDLE;
+        shownFrame = -1;
+        pausedAtNanos = -1;
+        replayEnded = false;
+        loopDurationNanos = 0;
+    }
+
+    /**
+     * Frees everything and streams the clip from now on, until the next {@link #begin}.
+     */
+    void abandon() {
+        release();
+        state = STATE_STREAMING;
+    }
+
+    /**
+     * Forgets the objects of a lost context without deleting them.
+     */
+    void onContextLost() {
+        textures.clear();
+        framebuffer = 0;
+        copyProgram = 0;
+        release();
+    }
+
+    private void startReplay() {
+        if (framebuffer != 0) {
+            GLES20.glDeleteFramebuffers(1, new int[]{framebuffer}, 0);
+            framebuffer = 0;
+        }
+        state = STATE_REPLAYING;
+        replayStartNanos = System.nanoTime();
+        shownFrame = -1;
+    }
+
+    private int findFrame(long timestampNanos, int count) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (timestamps[mid] <= timestampNanos) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private long frameBytes() {
+        return (long) frameWidth * frameHeight * BYTES_PER_PIXEL;
+    }
+
+    private int createFrameTexture() {
+        int[] names = new int[1];
+        GLES20.glGenTextures(1, names, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, names[0]);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, frameWidth, frameHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        return names[0];
+    }
+
+    private void copyFrame(int externalTexture, float[] stMatrix, int texture, GlState glState) {
+        int program = ProgramCache.obtain(COPY_VERTEX_SHADER, COPY_FRAGMENT_SHADER, null);
+        if (program != copyProgram) {
+            copyProgram = program;
+            copyPositionHandle = GLES20.glGetAttribLocation(program, "aPosition");
+            copyTextureHandle = GLES20.glGetAttribLocation(program, "aTextureCoord");
+            copySTMatrixHandle = GLES20.glGetUniformLocation(program, "uSTMatrix");
+        }
+        if (framebuffer == 0) {
+            int[] names = new int[1];
+            GLES20.glGenFramebuffers(1, names, 0);
+            framebuffer = names[0];
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texture, 0);
+        glState.viewport(0, 0, frameWidth, frameHeight);
+        glState.setBlendEnabled(false);
+
+        glState.useProgram(program);
+        GLES20.glBindTexture(VideoRenderer.GL_TEXTURE_EXTERNAL_OES, externalTexture);
+        glState.bindQuad(copyPositionHandle, copyTextureHandle);
+        GLES20.glUniformMatrix4fv(copySTMatrixHandle, 1, false, stMatrix, 0);
+
+        glState.drawQuad();
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        glState.countCalls(5);
+    }
+
+    private boolean reserve(long bytes) {
+        synchronized (budgetLock) {
+            if (!evictLocked(this, bytes)) {
+                return false;
+            }
+            Long reserved = reservations.get(this);
+            reservations.put(this, (reserved != null ? reserved : 0) + bytes);
+            usedBytes += bytes;
+            return true;
+        }
+    }
+
+    private void touch() {
+        synchronized (budgetLock) {
+            // Access-ordered map, a lookup makes this cache the most recently used one.
+            reservations.get(this);
+        }
+    }
+
+    /**
+     * Evicts caches other than {@code requester}, least recently shown first, until
+     * {@code bytes} more fit into the budget. Requires {@link #budgetLock}.
+     *
+     * @return false if they can't fit even with every other cache evicted.
+     */
+    private static boolean evictLocked(FrameCache requester, long bytes) {
+        Iterator<Map.Entry<FrameCache, Long>> iterator = reservations.entrySet().iterator();
+        while (usedBytes + bytes > budgetBytes && iterator.hasNext()) {
+            Map.Entry<FrameCache, Long> entry = iterator.next();
+            if (entry.getKey() == requester) {
+                continue;
+            }
+            entry.getKey().evicted = true;
+            usedBytes -= entry.getValue();
+            iterator.remove();
+        }
+        return usedBytes + bytes <= budgetBytes;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Bounds the number of frames the GPU may still be working on.
+ * <p>
+ * After each frame a fence sync object is inserted into the GL command stream. The GL
+ * thread only blocks when more than {@code maxFramesInFlight} fences are outstanding, and
+ * then only until the oldest one signals, instead of draining the whole pipeline with
+ * {@code glFinish()} every frame.
+ * <p>
+ * Sync objects require an OpenGL ES 3.0 context. When they are not available the queue
+ * falls back to calling {@code glFinish()} after every frame.
+ * <p>
+ * Must only be used from the GL thread.
+ */
+class FrameFenceQueue {
+    private static final String TAG = "FrameFenceQueue";
+
+    static final int MAX_FRAMES_IN_FLIGHT_LIMIT = 3;
+
+    private static final long WAIT_TIMEOUT_NANOS = 100000000L;
+
+    private final long[] fences = new long[MAX_FRAMES_IN_FLIGHT_LIMIT + 1];
+    private int head;
+    private int count;
+
+    private boolean fenceSupported;
+
+    /**
+     * Checks if the current context supports sync objects. Must be called with a context
+     * current, whenever a new context was made current.
+     */
+    void onContextCurrent() {
+        fenceSupported = isFenceSupported();
+    }
+
+    /**
+     * Forgets all pending fences. Sync objects are owned by the context, so nothing
+     * has to be deleted once it is gone.
+     */
+    void onContextLost() {
+        head = 0;
+        count = 0;
+        fenceSupported = false;
+    }
+
+    /**
+     * Deletes the pending fences without waiting for them, for a user of a context that
+     * outlives it. Must be called with the context current.
+     */
+    @TargetApi(18)
+    void release() {
+        while (count > 0) {
+            GLES30.glDeleteSync(fences[head]);
+            fences[head] = 0;
+            head = (head + 1) % fences.length;
+            count--;
+        }
+        fenceSupported = false;
+    }
+
+    /**
+     * Called after the renderer has issued all commands of a frame.
+     *
+     * @param maxFramesInFlight number of frames allowed to be queued on the GPU, zero
+     *                          disables pipelining.
+     */
+    void frameSubmitted(int maxFramesInFlight) {
+        if (!fenceSupported || maxFramesInFlight <= 0) {
+            waitAll();
+            GLES20.glFinish();
+            return;
+        }
+        if (maxFramesInFlight > MAX_FRAMES_IN_FLIGHT_LIMIT) {
+            maxFramesInFlight = MAX_FRAMES_IN_FLIGHT_LIMIT;
+        }
+        push(insertFence());
+        while (count > maxFramesInFlight) {
+            waitOldest();
+        }
+    }
+
+    @TargetApi(18)
+    private long insertFence() {
+        return GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    private void push(long fence) {
+        if (fence == 0) {
+            // Could not create a fence, keep the old behavior for this frame.
+            GLES20.glFinish();
+            return;
+        }
+        if (count == fences.length) {
+            waitOldest();
+        }
+        fences[(head + count) % fences.length] = fence;
+        count++;
+    }
+
+    private void waitAll() {
+        while (count > 0) {
+            waitOldest();
+        }
+    }
+
+    @TargetApi(18)
+    private void waitOldest() {
+        long fence = fences[head];
+        fences[head] = 0;
+        head = (head + 1) % fences.length;
+        count--;
+
+        int result = GLES30.glClientWaitSync(fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+                WAIT_TIMEOUT_NANOS);
+        if (result == GLES30.GL_WAIT_FAILED) {
+            Log.w(TAG, "glClientWaitSync failed: " + GLES20.glGetError());
+        }
+        GLES30.glDeleteSync(fence);
+    }
+
+    private static boolean isFenceSupported() {
+        if (Build.VERSION.SDK_INT < 18) {
+            return false;
+        }
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES ")
+                && version.length() > 10 && version.charAt(10) >= '3';
+    }
+}
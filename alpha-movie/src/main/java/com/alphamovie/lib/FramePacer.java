@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Compares the timestamps of video frames with the playback clock on the GL thread.
+ * <p>
+ * Both engines render frames with their due time on the {@link System#nanoTime()} clock,
+ * which is used as is. Other timestamps are mapped onto the clock from the first frame on.
+ * Frames later than {@link #LATE_NANOS} are skipped when a newer one is waiting, and the
+ * difference between the timestamp and display intervals of consecutive frames is
+ * reported as judder.
+ * <p>
+ * Pacing only ever drops frames. A frame's timestamp is known once the
+ * {@link android.graphics.SurfaceTexture} has latched it, and the in-process consumer
+ * ignores presentation times, so early frames can't be held back. The engines release
+ * frames at their due time instead.
+ */
+final class FramePacer {
+    /** A frame this late missed its refresh, the next one is shown instead if available. */
+    static final long LATE_NANOS = 20000000L;
+
+    private static final long CLOCK_TOLERANCE_NANOS = 1000000000L;
+    private static final long DISCONTINUITY_NANOS = 1000000000L;
+    private static final long REPORT_INTERVAL_NANOS = 1000000000L;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private long baseTimestampNanos = NONE;
+    private long baseClockNanos;
+    private long lastTimestampNanos = NONE;
+    private long lastShownTimestampNanos = NONE;
+    private long lastShownNanos;
+
+    private long windowStartNanos = NONE;
+    private int shownCount;
+    private int droppedCount;
+    private long judderSumNanos;
+    private int judderCount;
+    private long maxJudderNanos;
+
+    interface Listener {
+        /**
+         * Called on the GL thread about once a second while frames are shown.
+         */
+        void onFramePacing(int shownFrames, int droppedFrames, long meanJudderNanos,
+                           long maxJudderNanos);
+    }
+
+    void reset() {
+        baseTimestampNanos = NONE;
+        lastTimestampNanos = NONE;
+        lastShownTimestampNanos = NONE;
+    }
+
+    /**
+     * Maps the timestamp of a newly latched frame onto the clock. Seeks and loops of engines
+     * without clock timestamps restart the mapping.
+     */
+    void update(long timestampNanos, long nowNanos) {
+        if (!isClockTimestamp(timestampNanos, nowNanos)
+                && (baseTimestampNanos == NONE || timestampNanos < lastTimestampNanos
+                || timestampNanos - lastTimestampNanos > DISCONTINUITY_NANOS)) {
+            baseTimestampNanos = timestampNanos;
+            baseClockNanos = nowNanos;
+        }
+        lastTimestampNanos = timestampNanos;
+    }
+
+    /**
+     * @return whether a frame passed to {@link #update} before missed its refresh.
+     */
+    boolean isLate(long timestampNanos, long nowNanos) {
+        return nowNanos - dueNanos(timestampNanos, nowNanos) > LATE_NANOS;
+    }
+
+    void onFrameDropped() {
+        droppedCount++;
+    }
+
+    /**
+     * Records a frame about to be drawn.
+     */
+    void onFrameShown(long timestampNanos, long nowNanos, Listener listener) {
+        long expectedNanos = timestampNanos - lastShownTimestampNanos;
+        if (lastShownTimestampNanos != NONE && expectedNanos > 0 && expectedNanos < DISCONTINUITY_NANOS) {
+            long judderNanos = Math.abs(nowNanos - lastShownNanos - expectedNanos);
+            judderSumNanos += judderNanos;
+            judderCount++;
+            maxJudderNanos = Math.max(maxJudderNanos, judderNanos);
+        }
+        lastShownTimestampNanos = timestampNanos;
+        lastShownNanos = nowNanos;
+        shownCount++;
+
+        if (windowStartNanos == NONE) {
+            windowStartNanos = nowNanos;
+        } else if (nowNanos - windowStartNanos >= REPORT_INTERVAL_NANOS) {
+            if (listener != null) {
+                listener.onFramePacing(shownCount, droppedCount,
+                        judderCount > 0 ? judderSumNanos / judderCount : 0, maxJudderNanos);
+            }
+            windowStartNanos = nowNanos;
+            shownCount = 0;
+            droppedCount = 0;
+            judderSumNanos = 0;
+            judderCount = 0;
+            maxJudderNanos = 0;
+        }
+    }
+
+    private long dueNanos(long timestampNanos, long nowNanos) {
+        if (isClockTimestamp(timestampNanos, nowNanos)) {
+            return timestampNanos;
+        }
+        if (baseTimestampNanos == NONE) {
+            // Not mapped yet, nothing says the frame is late.
+            return nowNanos;
+        }
+        return baseClockNanos + (timestampNanos - baseTimestampNanos);
+    }
+
+    private static boolean isClockTimestamp(long timestampNanos, long nowNanos) {
+        return Math.abs(timestampNanos - nowNanos) < CLOCK_TOLERANCE_NANOS;
+    }
+}
@@ -16,9 +16,12 @@
 
 package com.alphamovie.lib;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
 import android.opengl.GLDebugHelper;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.TextureView;
@@ -26,7 +29,10 @@ import android.view.View;
 
 import java.io.Writer;
 import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGL11;
@@ -50,6 +56,9 @@ public class GLTextureView
     private final static boolean LOG_RENDERER = true;
     private final static boolean LOG_RENDERER_DRAW_FRAME = false;
     private final static boolean LOG_EGL = true;
+    final static int EGL_OPENGL_ES2_BIT = 4;
+    /** From {@code EGL_KHR_create_context}, missing from {@code EGL10}. */
+    final static int EGL_OPENGL_ES3_BIT_KHR = 0x40;
     /**
      * The renderer only renders
      * when the surface is created, or when {@link #requestRender} is called.
@@ -188,6 +197,69 @@ public class GLTextureView
         return mPreserveEGLContextOnPause;
     }
 
+    /**
+     * Set how many frames the GPU may still be rendering when the GL thread starts
+     * the next one.
+     * <p>
+     * When the EGL context supports fence sync objects (OpenGL ES 3.0), the GL thread
+     * only waits for the GPU once this many frames are queued. Otherwise, or when the value
+     * is zero, glFinish() is called after every frame.
+     * <p>
+     * May be called from any thread. The default value is 2.
+     *
+     * @param maxFramesInFlight number of frames between 0 and 3
+     */
+    public void setMaxFramesInFlight(int maxFramesInFlight) {
+        if (maxFramesInFlight < 0 || maxFramesInFlight > FrameFenceQueue.MAX_FRAMES_IN_FLIGHT_LIMIT) {
+            throw new IllegalArgumentException("maxFramesInFlight");
+        }
+        mMaxFramesInFlight = maxFramesInFlight;
+    }
+
+    /**
+     * @return the number of frames the GPU may still be rendering.
+     */
+    public int getMaxFramesInFlight() {
+        return mMaxFramesInFlight;
+    }
+
+    /**
+     * Enables collecting render thread timings: CPU time of each
+     * {@link Renderer#onDrawFrame}, swap time, latency of {@link #queueEvent queued events}
+     * and, with {@code GL_EXT_disjoint_timer_query} on an OpenGL ES 3.0 context, GPU time.
+     * Recording doesn't allocate and costs a few clock reads per frame, so it may stay
+     * enabled in production. May be called from any thread.
+     *
+     * @param enabled true to collect timings, false to stop and drop them
+     */
+    public void setRenderMetricsEnabled(boolean enabled) {
+        if (!enabled) {
+            mRenderMetrics = null;
+        } else if (mRenderMetrics == null) {
+            mRenderMetrics = new RenderMetricsRecorder();
+        }
+    }
+
+    public boolean isRenderMetricsEnabled() {
+        return mRenderMetrics != null;
+    }
+
+    /**
+     * @return percentiles of the recent render thread timings, or null if metrics are
+     * not {@link #setRenderMetricsEnabled(boolean) enabled}.
+     */
+    public RenderMetrics getRenderMetrics() {
+        RenderMetricsRecorder metrics = mRenderMetrics;
+        return metrics != null ? metrics.snapshot() : null;
+    }
+
+    public void resetRenderMetrics() {
+        RenderMetricsRecorder metrics = mRenderMetrics;
+        if (metrics != null) {
+            metrics.reset();
+        }
+    }
+
     /**
      * Set the renderer associated with this view. Also starts the thread that
      * will call the renderer, which in turn causes the rendering to start.
@@ -226,10 +298,69 @@ public class GLTextureView
             mEGLWindowSurfaceFactory = new DefaultWindowSurfaceFactory();
         }
         mRenderer = renderer;
-        mGLThread = new GLThread(mThisWeakRef);
+        mGLThread = createRenderThread();
         mGLThread.start();
     }
 
+    /**
+     * Render this view on a thread shared with all other views that enabled this option,
+     * instead of starting a dedicated GL thread with its own EGL context.
+     * <p>
+     * All views on the shared thread draw through one EGL context, so GL objects created
+     * by one renderer can be used by the others. Their renderers must be prepared for that:
+     * {@link Renderer#onSurfaceChanged} is called whenever another view drew in between,
+     * and {@link Renderer#onSurfaceDestroyed} before the view leaves the thread.
+     * <p>If this method is
+     * called, it must be called before {@link #setRenderer(Renderer)}
+     * is called. The default value is false.
+     *
+     * @param shared true to use the shared render thread
+     */
+    public void setSharedRenderThread(boolean shared) {
+        checkRenderThreadState();
+        mSharedRenderThread = shared;
+    }
+
+    /**
+     * @return true if this view is rendered on the shared render thread
+     */
+    public boolean isSharedRenderThread() {
+        return mSharedRenderThread;
+    }
+
+    /**
+     * Aligns drawing with the display refresh. The render thread then draws at most once
+     * per vsync, right when {@link android.view.Choreographer} starts the next frame on the
+     * main thread, instead of as fast as buffers can be swapped. This avoids drawing twice
+     * within one refresh interval and keeps several views and the UI animations in step.
+     * Requires API 16, ignored before. May be called at any time.
+     *
+     * @param aligned true to draw on vsync
+     */
+    public void setVsyncAligned(boolean aligned) {
+        mVsyncAligned = aligned && VsyncScheduler.isSupported();
+        if (mGLThread != null) {
+            mGLThread.setVsyncAligned(mVsyncAligned);
+        }
+    }
+
+    public boolean isVsyncAligned() {
+        return mVsyncAligned;
+    }
+
+    private RenderThread createRenderThread() {
+        RenderThread thread;
+        if (mSharedRenderThread) {
+            thread = SharedGLThread.attach(mThisWeakRef);
+        } else {
+            thread = new GLThread(mThisWeakRef);
+        }
+        if (mVsyncAligned) {
+            thread.setVsyncAligned(true);
+        }
+        return thread;
+    }
+
     /**
      * Install a custom EGLContextFactory.
      * <p>If this method is
@@ -439,7 +570,8 @@ public class GLTextureView
      * @param r the runnable to be run on the GL rendering thread.
      */
     public void queueEvent(Runnable r) {
-        mGLThread.queueEvent(r);
+        RenderMetricsRecorder metrics = mRenderMetrics;
+        mGLThread.queueEvent(metrics != null && r != null ? metrics.timeEvent(r) : r);
     }
 
     /**
@@ -457,7 +589,7 @@ public class GLTextureView
             if (mGLThread != null) {
                 renderMode = mGLThread.getRenderMode();
             }
-            mGLThread = new GLThread(mThisWeakRef);
+            mGLThread = createRenderThread();
             if (renderMode != RENDERMODE_CONTINUOUSLY) {
                 mGLThread.setRenderMode(renderMode);
             }
@@ -503,7 +635,8 @@ public class GLTextureView
     }
 
     public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-        requestRender();
+        // Called after each of our own swaps reaches the compositor. Requesting a render
+        // here would make RENDERMODE_WHEN_DIRTY behave like RENDERMODE_CONTINUOUSLY.
     }
 
     // ----------------------------------------------------------------------
@@ -664,8 +797,18 @@ public class GLTextureView
             int[] attrib_list = {EGL_CONTEXT_CLIENT_VERSION, mEGLContextClientVersion,
                     EGL10.EGL_NONE };
 
-            return egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT,
+            EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT,
                     mEGLContextClientVersion != 0 ? attrib_list : null);
+            if ((context == null || context == EGL10.EGL_NO_CONTEXT) && mEGLContextClientVersion > 2) {
+                // OpenGL ES 3.0 is backward compatible with 2.0, so fall back to it
+                // on devices that can't create a newer context.
+                if (LOG_EGL) {
+                    Log.w("DefaultContextFactory", "falling back to OpenGL ES 2.0 context");
+                }
+                attrib_list[1] = 2;
+                context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, attrib_list);
+            }
+            return context;
         }
 
         public void destroyContext(EGL10 egl, EGLDisplay display,
@@ -743,12 +886,19 @@ public class GLTextureView
     private abstract class BaseConfigChooser
             implements EGLConfigChooser {
         public BaseConfigChooser(int[] configSpec) {
-            mConfigSpec = filterConfigSpec(configSpec);
+            mConfigSpec = filterConfigSpec(configSpec, EGL_OPENGL_ES2_BIT);
+            if (mEGLContextClientVersion >= 3) {
+                mEs3ConfigSpec = filterConfigSpec(configSpec, EGL_OPENGL_ES3_BIT_KHR);
+            }
         }
 
         public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
             int[] num_config = new int[1];
-            if (!egl.eglChooseConfig(display, mConfigSpec, null, 0,
+            int[] configSpec = mConfigSpec;
+            if (mEs3ConfigSpec != null && egl.eglChooseConfig(display, mEs3ConfigSpec, null, 0,
+                    num_config) && num_config[0] > 0) {
+                configSpec = mEs3ConfigSpec;
+            } else if (!egl.eglChooseConfig(display, configSpec, null, 0,
                     num_config)) {
                 throw new IllegalArgumentException("eglChooseConfig failed");
             }
@@ -761,7 +911,7 @@ public class GLTextureView
             }
 
             EGLConfig[] configs = new EGLConfig[numConfigs];
-            if (!egl.eglChooseConfig(display, mConfigSpec, configs, numConfigs,
+            if (!egl.eglChooseConfig(display, configSpec, configs, numConfigs,
                     num_config)) {
                 throw new IllegalArgumentException("eglChooseConfig#2 failed");
             }
@@ -776,19 +926,23 @@ public class GLTextureView
                                         EGLConfig[] configs);
 
         protected int[] mConfigSpec;
+        /** Spec for OpenGL ES 3.0 renderable configs, null unless a 3.0 context is requested. */
+        protected int[] mEs3ConfigSpec;
 
-        private int[] filterConfigSpec(int[] configSpec) {
-            if (mEGLContextClientVersion != 2) {
+        private int[] filterConfigSpec(int[] configSpec, int renderableType) {
+            if (mEGLContextClientVersion < 2) {
                 return configSpec;
             }
             /* We know none of the subclasses define EGL_RENDERABLE_TYPE.
              * And we know the configSpec is well formed.
+             * Strict drivers only create an OpenGL ES 3.0 context for a config with the ES3 bit,
+             * ES2 configs are only used when there is none, with the context falling back to 2.0.
              */
             int len = configSpec.length;
             int[] newConfigSpec = new int[len + 2];
             System.arraycopy(configSpec, 0, newConfigSpec, 0, len-1);
             newConfigSpec[len-1] = EGL10.EGL_RENDERABLE_TYPE;
-            newConfigSpec[len] = 4; /* EGL_OPENGL_ES2_BIT */
+            newConfigSpec[len] = renderableType;
             newConfigSpec[len+1] = EGL10.EGL_NONE;
             return newConfigSpec;
         }
@@ -1064,6 +1218,8 @@ public class GLTextureView
                 Log.w("EglHelper", "finish() tid=" + Thread.currentThread().getId());
             }
             if (mEglContext != null) {
+                ProgramCache.releaseContext(mEglContext);
+                GlState.releaseContext(mEglContext);
                 GLTextureView view = mGLSurfaceViewWeakRef.get();
                 if (view != null) {
                     view.mEGLContextFactory.destroyContext(mEgl, mEglDisplay, mEglContext);
@@ -1111,11 +1267,16 @@ public class GLTextureView
      * to a Renderer instance to do the actual drawing. Can be configured to
      * render continuously or on request.
      *
-     * All potentially blocking synchronization is done through the
-     * sGLThreadManager object. This avoids multiple-lock ordering issues.
+     * Every GLThread has its own monitor, {@link #mLock}, guarding its state. Only the
+     * threads calling into this GLThread wait on it, and the GLThread only notifies it when
+     * its own state changed, so state changes of one view never wake threads of another.
+     * The GLThread itself doesn't wait on a monitor; it parks and is unparked by whoever
+     * changed its state. This way a thread never holds one GLThread's lock while taking
+     * another's, and GLThreads can signal each other through {@link GLThreadManager}
+     * without lock ordering issues. Events are passed through a lock-free queue.
      *
      */
-    static class GLThread extends Thread {
+    static class GLThread extends Thread implements RenderThread, VsyncScheduler.Client {
         GLThread(WeakReference<GLTextureView> glSurfaceViewWeakRef) {
             super();
             mWidth = 0;
@@ -1138,12 +1299,16 @@ public class GLTextureView
                 // fall thru and exit normally
             } finally {
                 sGLThreadManager.threadExiting(this);
+                synchronized (mLock) {
+                    mExited = true;
+                    mLock.notifyAll();
+                }
             }
         }
 
         /*
          * This private method should only be called inside a
-         * synchronized(sGLThreadManager) block.
+         * synchronized(mLock) block.
          */
         private void stopEglSurfaceLocked() {
             if (mHaveEglSurface) {
@@ -1154,17 +1319,20 @@ public class GLTextureView
 
         /*
          * This private method should only be called inside a
-         * synchronized(sGLThreadManager) block.
+         * synchronized(mLock) block.
          */
         private void stopEglContextLocked() {
             if (mHaveEglContext) {
+                mFrameFences.onContextLost();
+                mGpuTimer.onContextLost();
                 mEglHelper.finish();
                 mHaveEglContext = false;
-                sGLThreadManager.releaseEglContextLocked(this);
+                sGLThreadManager.releaseEglContext(this);
             }
         }
         private void guardedRun() throws InterruptedException {
             mEglHelper = new EglHelper(mGLSurfaceViewWeakRef);
+            mFrameFences = new FrameFenceQueue();
             mHaveEglContext = false;
             mHaveEglSurface = false;
             try {
@@ -1182,14 +1350,15 @@ public class GLTextureView
                 Runnable event = null;
 
                 while (true) {
-                    synchronized (sGLThreadManager) {
+                    boolean idle = false;
+                    synchronized (mLock) {
                         while (true) {
                             if (mShouldExit) {
                                 return;
                             }
 
-                            if (! mEventQueue.isEmpty()) {
-                                event = mEventQueue.remove(0);
+                            event = mEventQueue.poll();
+                            if (event != null) {
                                 break;
                             }
 
@@ -1198,7 +1367,7 @@ public class GLTextureView
                             if (mPaused != mRequestPaused) {
                                 pausing = mRequestPaused;
                                 mPaused = mRequestPaused;
-                                sGLThreadManager.notifyAll();
+                                mLock.notifyAll();
                                 if (LOG_PAUSE_RESUME) {
                                     Log.i("GLThread", "mPaused is now " + mPaused + " tid=" + getId());
                                 }
@@ -1263,7 +1432,7 @@ public class GLTextureView
                                 }
                                 mWaitingForSurface = true;
                                 mSurfaceIsBad = false;
-                                sGLThreadManager.notifyAll();
+                                mLock.notifyAll();
                             }
 
                             // Have we acquired the surface view surface?
@@ -1272,7 +1441,7 @@ public class GLTextureView
                                     Log.i("GLThread", "noticed surfaceView surface acquired tid=" + getId());
                                 }
                                 mWaitingForSurface = false;
-                                sGLThreadManager.notifyAll();
+                                mLock.notifyAll();
                             }
 
                             if (doRenderNotification) {
@@ -1282,27 +1451,27 @@ public class GLTextureView
                                 wantRenderNotification = false;
                                 doRenderNotification = false;
                                 mRenderComplete = true;
-                                sGLThreadManager.notifyAll();
+                                mLock.notifyAll();
                             }
 
                             // Ready to draw?
-                            if (readyToDraw()) {
+                            if (readyToDraw() && !waitForVsyncLocked()) {
 
                                 // If we don't have an EGL context, try to acquire one.
                                 if (! mHaveEglContext) {
                                     if (askedToReleaseEglContext) {
                                         askedToReleaseEglContext = false;
-                                    } else if (sGLThreadManager.tryAcquireEglContextLocked(this)) {
+                                    } else if (sGLThreadManager.tryAcquireEglContext(this)) {
                                         try {
                                             mEglHelper.start();
                                         } catch (RuntimeException t) {
-                                            sGLThreadManager.releaseEglContextLocked(this);
+                                            sGLThreadManager.releaseEglContext(this);
                                             throw t;
                                         }
                                         mHaveEglContext = true;
                                         createEglContext = true;
 
-                                        sGLThreadManager.notifyAll();
+                                        mLock.notifyAll();
                                     }
                                 }
 
@@ -1331,12 +1500,13 @@ public class GLTextureView
                                         mSizeChanged = false;
                                     }
                                     mRequestRender = false;
-                                    sGLThreadManager.notifyAll();
+                                    mVsyncPermit = false;
+                                    mLock.notifyAll();
                                     break;
                                 }
                             }
 
-                            // By design, this is the only place in a GLThread thread where we wait().
+                            // By design, this is the only place in a GLThread thread where we wait.
                             if (LOG_THREADS) {
                                 Log.i("GLThread", "waiting tid=" + getId()
                                         + " mHaveEglContext: " + mHaveEglContext
@@ -1350,9 +1520,20 @@ public class GLTextureView
                                         + " mRequestRender: " + mRequestRender
                                         + " mRenderMode: " + mRenderMode);
                             }
-                            sGLThreadManager.wait();
+                            idle = true;
+                            break;
+                        }
+                    } // end of synchronized(mLock)
+
+                    if (idle) {
+                        // Anyone changing our state unparks us. A permit handed out between
+                        // leaving the lock and parking makes park() return immediately.
+                        LockSupport.park(this);
+                        if (Thread.interrupted()) {
+                            throw new InterruptedException();
                         }
-                    } // end of synchronized(sGLThreadManager)
+                        continue;
+                    }
 
                     if (event != null) {
                         event.run();
@@ -1365,9 +1546,9 @@ public class GLTextureView
                             Log.w("GLThread", "egl createSurface");
                         }
                         if (!mEglHelper.createSurface()) {
-                            synchronized(sGLThreadManager) {
+                            synchronized(mLock) {
                                 mSurfaceIsBad = true;
-                                sGLThreadManager.notifyAll();
+                                mLock.notifyAll();
                             }
                             continue;
                         }
@@ -1378,6 +1559,8 @@ public class GLTextureView
                         gl = (GL10) mEglHelper.createGL();
 
                         sGLThreadManager.checkGLDriver(gl);
+                        mFrameFences.onContextCurrent();
+                        mGpuTimer.onContextCurrent();
                         createGlInterface = false;
                     }
 
@@ -1406,13 +1589,29 @@ public class GLTextureView
                     if (LOG_RENDERER_DRAW_FRAME) {
                         Log.w("GLThread", "onDrawFrame tid=" + getId());
                     }
+                    RenderMetricsRecorder metrics = null;
+                    long drawNanos = 0;
                     {
                         GLTextureView view = mGLSurfaceViewWeakRef.get();
                         if (view != null) {
+                            metrics = view.mRenderMetrics;
+                            long drawStart = System.nanoTime();
+                            if (metrics != null) {
+                                mGpuTimer.begin();
+                            }
                             view.mRenderer.onDrawFrame(gl);
+                            if (metrics != null) {
+                                mGpuTimer.end(metrics);
+                            }
+                            drawNanos = System.nanoTime() - drawStart;
+                            mFrameFences.frameSubmitted(view.mMaxFramesInFlight);
                         }
                     }
+                    long swapStart = System.nanoTime();
                     int swapError = mEglHelper.swap();
+                    if (metrics != null) {
+                        metrics.recordFrame(drawNanos, System.nanoTime() - swapStart);
+                    }
                     switch (swapError) {
                         case EGL10.EGL_SUCCESS:
                             break;
@@ -1429,9 +1628,9 @@ public class GLTextureView
                             // Log the error to help developers understand why rendering stopped.
                             EglHelper.logEglErrorAsWarning("GLThread", "eglSwapBuffers", swapError);
 
-                            synchronized(sGLThreadManager) {
+                            synchronized(mLock) {
                                 mSurfaceIsBad = true;
-                                sGLThreadManager.notifyAll();
+                                mLock.notifyAll();
                             }
                             break;
                     }
@@ -1445,7 +1644,7 @@ public class GLTextureView
                 /*
                  * clean-up everything...
                  */
-                synchronized (sGLThreadManager) {
+                synchronized (mLock) {
                     stopEglSurfaceLocked();
                     stopEglContextLocked();
                 }
@@ -1466,35 +1665,65 @@ public class GLTextureView
             if ( !((RENDERMODE_WHEN_DIRTY <= renderMode) && (renderMode <= RENDERMODE_CONTINUOUSLY)) ) {
                 throw new IllegalArgumentException("renderMode");
             }
-            synchronized(sGLThreadManager) {
+            synchronized(mLock) {
                 mRenderMode = renderMode;
-                sGLThreadManager.notifyAll();
             }
+            LockSupport.unpark(this);
         }
 
         public int getRenderMode() {
-            synchronized(sGLThreadManager) {
+            synchronized(mLock) {
                 return mRenderMode;
             }
         }
 
         public void requestRender() {
-            synchronized(sGLThreadManager) {
+            synchronized(mLock) {
                 mRequestRender = true;
-                sGLThreadManager.notifyAll();
             }
+            LockSupport.unpark(this);
+        }
+
+        public void setVsyncAligned(boolean aligned) {
+            synchronized(mLock) {
+                mVsyncAligned = aligned;
+            }
+            LockSupport.unpark(this);
+        }
+
+        public void onVsync(long frameTimeNanos) {
+            synchronized(mLock) {
+                mVsyncRequested = false;
+                mVsyncPermit = true;
+            }
+            LockSupport.unpark(this);
+        }
+
+        /*
+         * Returns true if drawing has to wait for the next vsync, which is requested then.
+         * Requires mLock.
+         */
+        private boolean waitForVsyncLocked() {
+            if (!mVsyncAligned || mVsyncPermit) {
+                return false;
+            }
+            if (!mVsyncRequested) {
+                mVsyncRequested = true;
+                VsyncScheduler.getInstance().request(this);
+            }
+            return true;
         }
 
         public void surfaceCreated() {
-            synchronized(sGLThreadManager) {
+            synchronized(mLock) {
                 if (LOG_THREADS) {
                     Log.i("GLThread", "surfaceCreated tid=" + getId());
                 }
                 mHasSurface = true;
-                sGLThreadManager.notifyAll();
+                LockSupport.unpark(this);
                 while((mWaitingForSurface) && (!mExited)) {
                     try {
-                        sGLThreadManager.wait();
+                        mLock.wait();
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                     }
@@ -1503,15 +1732,15 @@ public class GLTextureView
         }
 
         public void surfaceDestroyed() {
-            synchronized(sGLThreadManager) {
+            synchronized(mLock) {
                 if (LOG_THREADS) {
                     Log.i("GLThread", "surfaceDestroyed tid=" + getId());
                 }
                 mHasSurface = false;
-                sGLThreadManager.notifyAll();
+                LockSupport.unpark(this);
                 while((!mWaitingForSurface) && (!mExited)) {
                     try {
-                        sGLThreadManager.wait();
+                        mLock.wait();
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                     }
@@ -1520,18 +1749,18 @@ public class GLTextureView
         }
 
         public void onPause() {
-            synchronized (sGLThreadManager) {
+            synchronized (mLock) {
                 if (LOG_PAUSE_RESUME) {
                     Log.i("GLThread", "onPause tid=" + getId());
                 }
                 mRequestPaused = true;
-                sGLThreadManager.notifyAll();
+                LockSupport.unpark(this);
                 while ((! mExited) && (! mPaused)) {
                     if (LOG_PAUSE_RESUME) {
                         Log.i("Main thread", "onPause waiting for mPaused.");
                     }
                     try {
-                        sGLThreadManager.wait();
+                        mLock.wait();
                     } catch (InterruptedException ex) {
                         Thread.currentThread().interrupt();
                     }
@@ -1540,20 +1769,20 @@ public class GLTextureView
         }
 
         public void onResume() {
-            synchronized (sGLThreadManager) {
+            synchronized (mLock) {
                 if (LOG_PAUSE_RESUME) {
                     Log.i("GLThread", "onResume tid=" + getId());
                 }
                 mRequestPaused = false;
                 mRequestRender = true;
                 mRenderComplete = false;
-                sGLThreadManager.notifyAll();
+                LockSupport.unpark(this);
                 while ((! mExited) && mPaused && (!mRenderComplete)) {
                     if (LOG_PAUSE_RESUME) {
                         Log.i("Main thread", "onResume waiting for !mPaused.");
                     }
                     try {
-                        sGLThreadManager.wait();
+                        mLock.wait();
                     } catch (InterruptedException ex) {
                         Thread.currentThread().interrupt();
                     }
@@ -1562,13 +1791,15 @@ public class GLTextureView
         }
 
         public void onWindowResize(int w, int h) {
-            synchronized (sGLThreadManager) {
+            synchronized (mLock) {
                 mWidth = w;
                 mHeight = h;
                 mSizeChanged = true;
                 mRequestRender = true;
                 mRenderComplete = false;
-                sGLThreadManager.notifyAll();
+                // The vsync callback runs on this thread, which is about to block.
+                mVsyncPermit = true;
+                LockSupport.unpark(this);
 
                 // Wait for thread to react to resize and render a frame
                 while (! mExited && !mPaused && !mRenderComplete
@@ -1577,7 +1808,7 @@ public class GLTextureView
                         Log.i("Main thread", "onWindowResize waiting for render complete from tid=" + getId());
                     }
                     try {
-                        sGLThreadManager.wait();
+                        mLock.wait();
                     } catch (InterruptedException ex) {
                         Thread.currentThread().interrupt();
                     }
@@ -1588,12 +1819,12 @@ public class GLTextureView
         public void requestExitAndWait() {
             // don't call this from GLThread thread or it is a guaranteed
             // deadlock!
-            synchronized(sGLThreadManager) {
+            synchronized(mLock) {
                 mShouldExit = true;
-                sGLThreadManager.notifyAll();
+                LockSupport.unpark(this);
                 while (! mExited) {
                     try {
-                        sGLThreadManager.wait();
+                        mLock.wait();
                     } catch (InterruptedException ex) {
                         Thread.currentThread().interrupt();
                     }
@@ -1601,9 +1832,20 @@ public class GLTextureView
             }
         }
 
-        public void requestReleaseEglContextLocked() {
+        /**
+         * Asks this thread to give up its EGL context. May be called from any thread
+         * without holding any lock.
+         */
+        public void requestReleaseEglContext() {
             mShouldReleaseEglContext = true;
-            sGLThreadManager.notifyAll();
+            LockSupport.unpark(this);
+        }
+
+        /**
+         * Wakes this thread up to retry acquiring the EGL context.
+         */
+        void wakeUp() {
+            LockSupport.unpark(this);
         }
 
         /**
@@ -1614,14 +1856,14 @@ public class GLTextureView
             if (r == null) {
                 throw new IllegalArgumentException("r must not be null");
             }
-            synchronized(sGLThreadManager) {
-                mEventQueue.add(r);
-                sGLThreadManager.notifyAll();
-            }
+            mEventQueue.offer(r);
+            LockSupport.unpark(this);
         }
 
+        private final Object mLock = new Object();
+
         // Once the thread is started, all accesses to the following member
-        // variables are protected by the sGLThreadManager monitor
+        // variables are protected by the mLock monitor
         private boolean mShouldExit;
         private boolean mExited;
         private boolean mRequestPaused;
@@ -1631,18 +1873,26 @@ public class GLTextureView
         private boolean mWaitingForSurface;
         private boolean mHaveEglContext;
         private boolean mHaveEglSurface;
-        private boolean mShouldReleaseEglContext;
+        // Set by other GLThreads, which must not take our lock.
+        private volatile boolean mShouldReleaseEglContext;
         private int mWidth;
         private int mHeight;
         private int mRenderMode;
         private boolean mRequestRender;
         private boolean mRenderComplete;
-        private ArrayList<Runnable> mEventQueue = new ArrayList<Runnable>();
+        private boolean mVsyncAligned;
+        private boolean mVsyncRequested;
+        private boolean mVsyncPermit;
         private boolean mSizeChanged = true;
 
-        // End of member variables protected by the sGLThreadManager monitor.
+        // End of member variables protected by the mLock monitor.
+
+        // Multiple producers, drained by this thread only.
+        private final ConcurrentLinkedQueue<Runnable> mEventQueue = new ConcurrentLinkedQueue<Runnable>();
 
         private EglHelper mEglHelper;
+        private FrameFenceQueue mFrameFences;
+        private final GpuTimer mGpuTimer = new GpuTimer();
 
         /**
          * Set once at thread construction time, nulled out when the parent view is garbage
@@ -1653,6 +1903,661 @@ public class GLTextureView
 
     }
 
+    /**
+     * Controls the thread that renders a GLTextureView. Implemented by the per-view
+     * {@link GLThread} and by the views' entries of the {@link SharedGLThread}.
+     */
+    interface RenderThread {
+        void start();
+        void setRenderMode(int renderMode);
+        int getRenderMode();
+        void requestRender();
+        void setVsyncAligned(boolean aligned);
+        void surfaceCreated();
+        void surfaceDestroyed();
+        void onWindowResize(int w, int h);
+        void onPause();
+        void onResume();
+        void queueEvent(Runnable r);
+        void requestExitAndWait();
+    }
+
+    /**
+     * A render thread shared by all views that opted in with
+     * {@link #setSharedRenderThread(boolean)}.
+     * <p>
+     * The thread owns a single EGL context, so programs, textures and buffers created by one
+     * view's renderer can be reused by the others. Each view keeps its own window surface.
+     * In every pass the thread visits the views round-robin and draws those that are ready.
+     * <p>
+     * Views are scheduled independently: a view whose surface is bad is skipped, views
+     * rendering continuously draw at most once per vsync, and the others only when a render
+     * was requested. Each view bounds its own frames in flight, and its queued events run
+     * with its own surface current.
+     * <p>
+     * A consumer that holds on to its buffers, like a hidden TextureView, must not block
+     * the other views. Surfaces swap with an interval of zero where EGL allows setting it,
+     * so swaps don't wait for a free buffer; pacing comes from vsync instead. Where a swap
+     * still blocks for longer than {@link #STALL_THRESHOLD_NANOS}, the view is skipped for a
+     * growing interval.
+     * <p>
+     * Renderers sharing the thread get {@link Renderer#onSurfaceChanged} before drawing
+     * whenever another view drew in between, since viewport and program state belong to
+     * the context. {@link Renderer#onSurfaceDestroyed} is called with the context current
+     * before a view leaves, so it can free its resources from the shared context.
+     * <p>
+     * The thread is started with the first view and exits after the last one has left.
+     */
+    static class SharedGLThread extends Thread {
+        private static final long STALL_THRESHOLD_NANOS = 50000000L;
+        private static final long MIN_BACKOFF_NANOS = 16000000L;
+        private static final long MAX_BACKOFF_NANOS = 500000000L;
+
+        // Guarded by SharedGLThread.class.
+        private static SharedGLThread sInstance;
+
+        static Client attach(WeakReference<GLTextureView> viewWeakRef) {
+            synchronized (SharedGLThread.class) {
+                if (sInstance == null) {
+                    sInstance = new SharedGLThread();
+                    sInstance.start();
+                }
+                SharedGLThread thread = sInstance;
+                Client client = thread.new Client(viewWeakRef);
+                synchronized (thread) {
+                    thread.mClients.add(client);
+                    thread.notifyAll();
+                }
+                return client;
+            }
+        }
+
+        @Override
+        public void run() {
+            setName("SharedGLThread " + getId());
+            if (LOG_THREADS) {
+                Log.i("SharedGLThread", "starting tid=" + getId());
+            }
+            try {
+                guardedRun();
+            } catch (InterruptedException e) {
+                // fall thru and exit normally
+            } finally {
+                synchronized (this) {
+                    destroyContextLocked(true);
+                    for (Client client : mClients) {
+                        client.mExited = true;
+                    }
+                    mClients.clear();
+                    notifyAll();
+                }
+                synchronized (SharedGLThread.class) {
+                    if (sInstance == this) {
+                        sInstance = null;
+                    }
+                }
+                if (LOG_THREADS) {
+                    Log.i("SharedGLThread", "exiting tid=" + getId());
+                }
+            }
+        }
+
+        private void guardedRun() throws InterruptedException {
+            while (true) {
+                Client eventClient = null;
+                Runnable event = null;
+
+                synchronized (this) {
+                    while (true) {
+                        removeExitedClientsLocked();
+                        if (mClients.isEmpty()) {
+                            break;
+                        }
+
+                        long now = System.nanoTime();
+                        long wakeUpAt = Long.MAX_VALUE;
+                        int count = mClients.size();
+                        for (int i = 0; i < count && event == null; i++) {
+                            Client client = mClients.get((mNextClient + i) % count);
+                            event = client.mEventQueue.poll();
+                            if (event != null) {
+                                eventClient = client;
+                            }
+                        }
+                        if (event != null) {
+                            break;
+                        }
+
+                        mReadyClients.clear();
+                        for (int i = 0; i < count; i++) {
+                            Client client = mClients.get((mNextClient + i) % count);
+                            updateClientStateLocked(client);
+                            if (client.readyToDraw()) {
+                                if (client.mResumeAt > now) {
+                                    wakeUpAt = Math.min(wakeUpAt, client.mResumeAt);
+                                    continue;
+                                }
+                                if (client.waitForVsyncLocked()) {
+                                    continue;
+                                }
+                                client.mDrawSizeChanged = client.mSizeChanged;
+                                client.mSizeChanged = false;
+                                client.mDrawWidth = client.mWidth;
+                                client.mDrawHeight = client.mHeight;
+                                client.mRequestRender = false;
+                                client.mVsyncPermit = false;
+                                mReadyClients.add(client);
+                            }
+                        }
+                        mNextClient = (mNextClient + 1) % count;
+                        if (!mReadyClients.isEmpty()) {
+                            break;
+                        }
+
+                        if (wakeUpAt == Long.MAX_VALUE) {
+                            wait();
+                        } else {
+                            long waitNanos = wakeUpAt - now;
+                            wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                        }
+                    }
+                }
+
+                if (event != null) {
+                    runEvent(eventClient, event);
+                    continue;
+                }
+
+                if (mReadyClients.isEmpty()) {
+                    // No views left, exit unless one was attached in the meantime.
+                    synchronized (SharedGLThread.class) {
+                        synchronized (this) {
+                            if (mClients.isEmpty()) {
+                                if (sInstance == this) {
+                                    sInstance = null;
+                                }
+                                return;
+                            }
+                        }
+                    }
+                    continue;
+                }
+
+                for (int i = 0; i < mReadyClients.size(); i++) {
+                    drawClient(mReadyClients.get(i));
+                }
+                mReadyClients.clear();
+            }
+        }
+
+        /*
+         * Applies pause and surface state changes of a client. Requires the thread's monitor.
+         */
+        private void updateClientStateLocked(Client client) {
+            if (client.mPaused != client.mRequestPaused) {
+                client.mPaused = client.mRequestPaused;
+                if (client.mPaused) {
+                    destroyClientSurfaceLocked(client);
+                }
+                notifyAll();
+            }
+            if (!client.mHasSurface && !client.mWaitingForSurface) {
+                destroyClientSurfaceLocked(client);
+                client.mWaitingForSurface = true;
+                client.mSurfaceIsBad = false;
+                notifyAll();
+            }
+            if (client.mHasSurface && client.mWaitingForSurface) {
+                client.mWaitingForSurface = false;
+                notifyAll();
+            }
+        }
+
+        /*
+         * Releases the surfaces of clients that asked to exit. Requires the thread's monitor.
+         */
+        private void removeExitedClientsLocked() {
+            for (int i = mClients.size() - 1; i >= 0; i--) {
+                Client client = mClients.get(i);
+                if (client.mShouldExit) {
+                    if (client.mEglSurface != null && client.mContextGeneration == mContextGeneration
+                            && makeCurrent(client)) {
+                        GLTextureView view = client.mViewWeakRef.get();
+                        if (view != null) {
+                            view.mRenderer.onSurfaceDestroyed(mGl);
+                        }
+                        client.mFrameFences.release();
+                    }
+                    destroyClientSurfaceLocked(client);
+                    mClients.remove(i);
+                    if (mLastDrawn == client) {
+                        mLastDrawn = null;
+                    }
+                    client.mExited = true;
+                    notifyAll();
+                }
+            }
+            if (mClients.isEmpty()) {
+                destroyContextLocked(true);
+            }
+        }
+
+        /*
+         * Runs an event with the client's surface current, or with nothing current while the
+         * client has no surface in the current context, so it can't draw into another view.
+         */
+        private void runEvent(Client client, Runnable event) {
+            if (client.mEglSurface == null || client.mContextGeneration != mContextGeneration
+                    || !makeCurrent(client)) {
+                if (mEglContext != null) {
+                    mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+                            EGL10.EGL_NO_CONTEXT);
+                }
+            }
+            // The event may have changed state the next renderer relies on.
+            mLastDrawn = null;
+            event.run();
+        }
+
+        private void drawClient(Client client) {
+            GLTextureView view = client.mViewWeakRef.get();
+            if (view == null) {
+                return;
+            }
+            if (mEglContext == null && !createContext(view)) {
+                return;
+            }
+            if (client.mEglSurface == null) {
+                synchronized (this) {
+                    if (!createClientSurfaceLocked(client, view)) {
+                        client.mSurfaceIsBad = true;
+                        return;
+                    }
+                }
+            }
+            if (!makeCurrent(client)) {
+                synchronized (this) {
+                    client.mSurfaceIsBad = true;
+                }
+                return;
+            }
+
+            if (client.mContextGeneration != mContextGeneration) {
+                view.mRenderer.onSurfaceCreated(mGl, mEglConfig);
+                client.mContextGeneration = mContextGeneration;
+                client.mDrawSizeChanged = true;
+            }
+            if (client.mDrawSizeChanged || mLastDrawn != client) {
+                view.mRenderer.onSurfaceChanged(mGl, client.mDrawWidth, client.mDrawHeight);
+                client.mDrawSizeChanged = false;
+            }
+            mLastDrawn = client;
+
+            RenderMetricsRecorder metrics = view.mRenderMetrics;
+            long drawStart = System.nanoTime();
+            if (metrics != null) {
+                mGpuTimer.begin();
+            }
+            view.mRenderer.onDrawFrame(mGl);
+            if (metrics != null) {
+                mGpuTimer.end(metrics);
+            }
+            long drawNanos = System.nanoTime() - drawStart;
+            client.mFrameFences.frameSubmitted(view.mMaxFramesInFlight);
+
+            long swapStart = System.nanoTime();
+            boolean swapped = mEgl.eglSwapBuffers(mEglDisplay, client.mEglSurface);
+            long swapTime = System.nanoTime() - swapStart;
+            if (metrics != null) {
+                metrics.recordFrame(drawNanos, swapTime);
+            }
+            if (!swapped) {
+                int error = mEgl.eglGetError();
+                if (error == EGL11.EGL_CONTEXT_LOST) {
+                    if (LOG_SURFACE) {
+                        Log.i("SharedGLThread", "egl context lost tid=" + getId());
+                    }
+                    synchronized (this) {
+                        destroyContextLocked(false);
+                    }
+                } else {
+                    EglHelper.logEglErrorAsWarning("SharedGLThread", "eglSwapBuffers", error);
+                    synchronized (this) {
+                        client.mSurfaceIsBad = true;
+                        notifyAll();
+                    }
+                }
+                return;
+            }
+
+            synchronized (this) {
+                if (swapTime > STALL_THRESHOLD_NANOS) {
+                    client.mBackoff = client.mBackoff == 0 ? MIN_BACKOFF_NANOS
+                            : Math.min(client.mBackoff * 2, MAX_BACKOFF_NANOS);
+                    client.mResumeAt = System.nanoTime() + client.mBackoff;
+                    if (LOG_SURFACE) {
+                        Log.w("SharedGLThread", "surface stalled for " + swapTime / 1000000L
+                                + " ms, backing off " + client.mBackoff / 1000000L + " ms");
+                    }
+                } else {
+                    client.mBackoff = 0;
+                    client.mResumeAt = 0;
+                }
+            }
+        }
+
+        private boolean createContext(GLTextureView view) {
+            mEgl = (EGL10) EGLContext.getEGL();
+            mEglDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+            if (mEglDisplay == EGL10.EGL_NO_DISPLAY) {
+                throw new RuntimeException("eglGetDisplay failed");
+            }
+            int[] version = new int[2];
+            if (!mEgl.eglInitialize(mEglDisplay, version)) {
+                throw new RuntimeException("eglInitialize failed");
+            }
+            mEglConfig = view.mEGLConfigChooser.chooseConfig(mEgl, mEglDisplay);
+            mEglContext = view.mEGLContextFactory.createContext(mEgl, mEglDisplay, mEglConfig);
+            if (mEglContext == null || mEglContext == EGL10.EGL_NO_CONTEXT) {
+                mEglContext = null;
+                EglHelper.throwEglException("createContext", mEgl.eglGetError());
+            }
+            mContextFactory = view.mEGLContextFactory;
+            mGl = (GL10) mEglContext.getGL();
+            mContextGeneration++;
+            mContextCurrentChecked = false;
+            if (LOG_EGL) {
+                Log.w("SharedGLThread", "createContext " + mEglContext + " tid=" + getId());
+            }
+            return true;
+        }
+
+        /*
+         * Requires the thread's monitor.
+         */
+        private boolean createClientSurfaceLocked(Client client, GLTextureView view) {
+            client.mWindowSurfaceFactory = view.mEGLWindowSurfaceFactory;
+            client.mEglSurface = client.mWindowSurfaceFactory.createWindowSurface(mEgl,
+                    mEglDisplay, mEglConfig, view.getSurfaceTexture());
+            if (client.mEglSurface == null || client.mEglSurface == EGL10.EGL_NO_SURFACE) {
+                client.mEglSurface = null;
+                return false;
+            }
+            if (makeCurrent(client)) {
+                if (!mContextCurrentChecked) {
+                    mGpuTimer.onContextCurrent();
+                    mContextCurrentChecked = true;
+                }
+                client.mFrameFences.onContextCurrent();
+                disableSwapInterval();
+            }
+            return true;
+        }
+
+        /*
+         * Lets swaps of the current surface replace a queued buffer instead of waiting for
+         * the consumer to release one. Not available before API 17.
+         */
+        @TargetApi(17)
+        private static void disableSwapInterval() {
+            if (Build.VERSION.SDK_INT >= 17) {
+                EGL14.eglSwapInterval(EGL14.eglGetCurrentDisplay(), 0);
+            }
+        }
+
+        private boolean makeCurrent(Client client) {
+            if (!mEgl.eglMakeCurrent(mEglDisplay, client.mEglSurface, client.mEglSurface, mEglContext)) {
+                EglHelper.logEglErrorAsWarning("SharedGLThread", "eglMakeCurrent", mEgl.eglGetError());
+                return false;
+            }
+            return true;
+        }
+
+        /*
+         * Requires the thread's monitor.
+         */
+        private void destroyClientSurfaceLocked(Client client) {
+            if (client.mEglSurface != null) {
+                mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+                        EGL10.EGL_NO_CONTEXT);
+                client.mWindowSurfaceFactory.destroySurface(mEgl, mEglDisplay, client.mEglSurface);
+                client.mEglSurface = null;
+                if (mLastDrawn == client) {
+                    mLastDrawn = null;
+                }
+            }
+        }
+
+        /*
+         * Destroys all surfaces and the context. Requires the thread's monitor.
+         */
+        private void destroyContextLocked(boolean terminate) {
+            for (Client client : mClients) {
+                destroyClientSurfaceLocked(client);
+                client.mFrameFences.onContextLost();
+            }
+            mGpuTimer.onContextLost();
+            mLastDrawn = null;
+            if (mEglContext != null) {
+                mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+                        EGL10.EGL_NO_CONTEXT);
+                ProgramCache.releaseContext(mEglContext);
+                GlState.releaseContext(mEglContext);
+                mContextFactory.destroyContext(mEgl, mEglDisplay, mEglContext);
+                mEglContext = null;
+                if (terminate) {
+                    mEgl.eglTerminate(mEglDisplay);
+                    mEglDisplay = null;
+                }
+            }
+        }
+
+        /**
+         * The state of one view on the shared thread. All fields are guarded by the
+         * thread's monitor, except the ones only used for drawing.
+         */
+        class Client implements RenderThread, VsyncScheduler.Client {
+            Client(WeakReference<GLTextureView> viewWeakRef) {
+                mViewWeakRef = viewWeakRef;
+            }
+
+            public void start() {
+                // Clients are registered when they are attached.
+            }
+
+            public void setRenderMode(int renderMode) {
+                if (!((RENDERMODE_WHEN_DIRTY <= renderMode) && (renderMode <= RENDERMODE_CONTINUOUSLY))) {
+                    throw new IllegalArgumentException("renderMode");
+                }
+                synchronized (SharedGLThread.this) {
+                    mRenderMode = renderMode;
+                    SharedGLThread.this.notifyAll();
+                }
+            }
+
+            public int getRenderMode() {
+                synchronized (SharedGLThread.this) {
+                    return mRenderMode;
+                }
+            }
+
+            public void requestRender() {
+                synchronized (SharedGLThread.this) {
+                    mRequestRender = true;
+                    SharedGLThread.this.notifyAll();
+                }
+            }
+
+            public void setVsyncAligned(boolean aligned) {
+                synchronized (SharedGLThread.this) {
+                    mVsyncAligned = aligned;
+                    SharedGLThread.this.notifyAll();
+                }
+            }
+
+            public void onVsync(long frameTimeNanos) {
+                synchronized (SharedGLThread.this) {
+                    mVsyncRequested = false;
+                    mVsyncPermit = true;
+                    SharedGLThread.this.notifyAll();
+                }
+            }
+
+            /*
+             * Returns true if drawing has to wait for the next vsync, which is requested then.
+             * Continuous rendering is always paced by vsync, the shared thread would otherwise
+             * draw as fast as the GPU allows. Requires the thread's monitor.
+             */
+            private boolean waitForVsyncLocked() {
+                boolean paced = mVsyncAligned
+                        || (mRenderMode == RENDERMODE_CONTINUOUSLY && VsyncScheduler.isSupported());
+                if (!paced || mVsyncPermit) {
+                    return false;
+                }
+                if (!mVsyncRequested) {
+                    mVsyncRequested = true;
+                    VsyncScheduler.getInstance().request(this);
+                }
+                return true;
+            }
+
+            public void surfaceCreated() {
+                synchronized (SharedGLThread.this) {
+                    mHasSurface = true;
+                    SharedGLThread.this.notifyAll();
+                    while (mWaitingForSurface && !mExited) {
+                        waitForThread();
+                    }
+                }
+            }
+
+            public void surfaceDestroyed() {
+                synchronized (SharedGLThread.this) {
+                    mHasSurface = false;
+                    SharedGLThread.this.notifyAll();
+                    while (!mWaitingForSurface && !mExited) {
+                        waitForThread();
+                    }
+                }
+            }
+
+            public void onWindowResize(int w, int h) {
+                // Unlike GLThread this doesn't wait for the next frame, TextureView
+                // doesn't show a stretched frame in the meantime.
+                synchronized (SharedGLThread.this) {
+                    mWidth = w;
+                    mHeight = h;
+                    mSizeChanged = true;
+                    mRequestRender = true;
+                    SharedGLThread.this.notifyAll();
+                }
+            }
+
+            public void onPause() {
+                synchronized (SharedGLThread.this) {
+                    mRequestPaused = true;
+                    SharedGLThread.this.notifyAll();
+                    while (!mExited && !mPaused) {
+                        waitForThread();
+                    }
+                }
+            }
+
+            public void onResume() {
+                synchronized (SharedGLThread.this) {
+                    mRequestPaused = false;
+                    mRequestRender = true;
+                    SharedGLThread.this.notifyAll();
+                    while (!mExited && mPaused) {
+                        waitForThread();
+                    }
+                }
+            }
+
+            public void queueEvent(Runnable r) {
+                if (r == null) {
+                    throw new IllegalArgumentException("r must not be null");
+                }
+                synchronized (SharedGLThread.this) {
+                    mEventQueue.offer(r);
+                    SharedGLThread.this.notifyAll();
+                }
+            }
+
+            public void requestExitAndWait() {
+                // don't call this from the shared thread or it is a guaranteed deadlock!
+                synchronized (SharedGLThread.this) {
+                    mShouldExit = true;
+                    SharedGLThread.this.notifyAll();
+                    while (!mExited) {
+                        waitForThread();
+                    }
+                }
+            }
+
+            private void waitForThread() {
+                try {
+                    SharedGLThread.this.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            private boolean readyToDraw() {
+                return !mPaused && mHasSurface && !mSurfaceIsBad
+                        && (mWidth > 0) && (mHeight > 0)
+                        && (mRequestRender || (mRenderMode == RENDERMODE_CONTINUOUSLY));
+            }
+
+            private final WeakReference<GLTextureView> mViewWeakRef;
+
+            private boolean mShouldExit;
+            private boolean mExited;
+            private boolean mRequestPaused;
+            private boolean mPaused;
+            private boolean mHasSurface;
+            private boolean mSurfaceIsBad;
+            private boolean mWaitingForSurface;
+            private int mWidth;
+            private int mHeight;
+            private boolean mSizeChanged = true;
+            private int mRenderMode = RENDERMODE_CONTINUOUSLY;
+            private boolean mRequestRender = true;
+            private boolean mVsyncAligned;
+            private boolean mVsyncRequested;
+            private boolean mVsyncPermit;
+            private long mBackoff;
+            private long mResumeAt;
+            private final ArrayDeque<Runnable> mEventQueue = new ArrayDeque<Runnable>();
+
+            // Only used by the shared thread.
+            private final FrameFenceQueue mFrameFences = new FrameFenceQueue();
+            private EGLSurface mEglSurface;
+            private EGLWindowSurfaceFactory mWindowSurfaceFactory;
+            private int mContextGeneration;
+            private boolean mDrawSizeChanged;
+            private int mDrawWidth;
+            private int mDrawHeight;
+        }
+
+        // Guarded by the thread's monitor.
+        private final ArrayList<Client> mClients = new ArrayList<Client>();
+        private int mNextClient;
+
+        // Only used by the shared thread.
+        private final ArrayList<Client> mReadyClients = new ArrayList<Client>();
+        private final GpuTimer mGpuTimer = new GpuTimer();
+        private EGL10 mEgl;
+        private EGLDisplay mEglDisplay;
+        private EGLConfig mEglConfig;
+        private EGLContext mEglContext;
+        private EGLContextFactory mContextFactory;
+        private GL10 mGl;
+        private int mContextGeneration;
+        private boolean mContextCurrentChecked;
+        private Client mLastDrawn;
+    }
+
     static class LogWriter extends Writer {
 
         @Override public void close() {
@@ -1693,6 +2598,13 @@ public class GLTextureView
         }
     }
 
+    /**
+     * Arbitrates the EGL context between GLThreads on drivers that only allow one.
+     * <p>
+     * The manager's monitor is only held for short bookkeeping and never while waiting.
+     * It may be taken while holding a GLThread's lock, but the manager itself never takes
+     * a GLThread's lock; threads are signalled by unparking them.
+     */
     private static class GLThreadManager {
         private static String TAG = "GLThreadManager";
 
@@ -1700,24 +2612,24 @@ public class GLTextureView
             if (LOG_THREADS) {
                 Log.i("GLThread", "exiting tid=" +  thread.getId());
             }
-            thread.mExited = true;
+            mWaitingThreads.remove(thread);
             if (mEglOwner == thread) {
                 mEglOwner = null;
+                wakeWaitingThreads();
             }
-            notifyAll();
         }
 
         /*
          * Tries once to acquire the right to use an EGL
-         * context. Does not block. Requires that we are already
-         * in the sGLThreadManager monitor when this is called.
+         * context. Does not block. A thread that fails is woken up
+         * once the context has been released.
          *
          * @return true if the right to use an EGL context was acquired.
          */
-        public boolean tryAcquireEglContextLocked(GLThread thread) {
+        public synchronized boolean tryAcquireEglContext(GLThread thread) {
             if (mEglOwner == thread || mEglOwner == null) {
                 mEglOwner = thread;
-                notifyAll();
+                mWaitingThreads.remove(thread);
                 return true;
             }
             checkGLESVersion();
@@ -1728,21 +2640,28 @@ public class GLTextureView
             // TODO: implement a fairness policy. Currently
             // if the owning thread is drawing continuously it will just
             // reacquire the EGL context.
-            if (mEglOwner != null) {
-                mEglOwner.requestReleaseEglContextLocked();
+            if (!mWaitingThreads.contains(thread)) {
+                mWaitingThreads.add(thread);
             }
+            mEglOwner.requestReleaseEglContext();
             return false;
         }
 
         /*
-         * Releases the EGL context. Requires that we are already in the
-         * sGLThreadManager monitor when this is called.
+         * Releases the EGL context and wakes up the threads waiting for it.
          */
-        public void releaseEglContextLocked(GLThread thread) {
+        public synchronized void releaseEglContext(GLThread thread) {
             if (mEglOwner == thread) {
                 mEglOwner = null;
+                wakeWaitingThreads();
             }
-            notifyAll();
+        }
+
+        private void wakeWaitingThreads() {
+            for (int i = 0; i < mWaitingThreads.size(); i++) {
+                mWaitingThreads.get(i).wakeUp();
+            }
+            mWaitingThreads.clear();
         }
 
         public synchronized boolean shouldReleaseEGLContextWhenPausing() {
@@ -1764,7 +2683,7 @@ public class GLTextureView
                 if (mGLESVersion < kGLES_20) {
                     mMultipleGLESContextsAllowed =
                             ! renderer.startsWith(kMSM7K_RENDERER_PREFIX);
-                    notifyAll();
+                    wakeWaitingThreads();
                 }
                 mLimitedGLESContexts = !mMultipleGLESContextsAllowed;
                 if (LOG_SURFACE) {
@@ -1806,13 +2725,14 @@ public class GLTextureView
         private static final String kMSM7K_RENDERER_PREFIX =
                 "Q3Dimension MSM7500 ";
         private GLThread mEglOwner;
+        private final ArrayList<GLThread> mWaitingThreads = new ArrayList<GLThread>();
     }
 
     private static final GLThreadManager sGLThreadManager = new GLThreadManager();
 
     private final WeakReference<GLTextureView> mThisWeakRef =
             new WeakReference<GLTextureView>(this);
-    private GLThread mGLThread;
+    private RenderThread mGLThread;
     private Renderer mRenderer;
     private boolean mDetached;
     private EGLConfigChooser mEGLConfigChooser;
@@ -1822,4 +2742,8 @@ public class GLTextureView
     private int mDebugFlags;
     private int mEGLContextClientVersion;
     private boolean mPreserveEGLContextOnPause;
+    private volatile int mMaxFramesInFlight = 2;
+    private boolean mSharedRenderThread;
+    private volatile RenderMetricsRecorder mRenderMetrics;
+    private boolean mVsyncAligned;
 }
\ No newline at end of file
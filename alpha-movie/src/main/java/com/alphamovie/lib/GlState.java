@@ -0,0 +1,364 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * GL state of one EGL context, shared by every renderer drawing through it.
+ * <p>
+ * State changes are skipped when the context is already in the requested state, so a
+ * frame only issues the calls that actually change something. This only holds as long as
+ * all code drawing in the context changes the tracked state through this class.
+ * <p>
+ * The context also owns the full-screen quad all renderers draw with. It lives in a
+ * vertex buffer, and on OpenGL ES 3.0 the attribute setup is kept in vertex array objects,
+ * one per pair of attribute locations.
+ * <p>
+ * Every call is counted. Comparing the counts before and after a frame tells how many GL
+ * calls the frame issued and how many redundant ones were skipped.
+ */
+final class GlState {
+    private static final int FLOAT_SIZE_BYTES = 4;
+    private static final int QUAD_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
+    private static final int QUAD_POSITION_OFFSET_BYTES = 0;
+    private static final int QUAD_UV_OFFSET_BYTES = 3 * FLOAT_SIZE_BYTES;
+    private static final float[] QUAD_VERTICES = {
+            // X, Y, Z, U, V
+            -1.0f, -1.0f, 0, 0.f, 0.f,
+            1.0f, -1.0f, 0, 1.f, 0.f,
+            -1.0f,  1.0f, 0, 0.f, 1.f,
+            1.0f,  1.0f, 0, 1.f, 1.f,
+    };
+    static final int QUAD_VERTEX_COUNT = 4;
+
+    private static final int MAX_TRACKED_ATTRIBS = 16;
+    private static final int MAX_VERTEX_ARRAYS = 4;
+
+    private static final Map<EGLContext, GlState> states = new HashMap<EGLContext, GlState>();
+
+    private final boolean vertexArraysSupported;
+
+    private int quadBuffer;
+    private final int[] vertexArrayKeys = new int[MAX_VERTEX_ARRAYS];
+    private final int[] vertexArrays = new int[MAX_VERTEX_ARRAYS];
+    private int vertexArrayCount;
+
+    private int program;
+    private int arrayBuffer;
+    private int vertexArray;
+    private int enabledAttribs;
+    // Attribute index to the quad offset it points at plus one, 0 if unknown.
+    private final int[] attribOffsets = new int[MAX_TRACKED_ATTRIBS];
+    private boolean blendKnown;
+    private boolean blendEnabled;
+    private int blendSrcRgb;
+    private int blendDstRgb;
+    private int blendSrcAlpha;
+    private int blendDstAlpha;
+    private boolean clearColorKnown;
+    private float clearRed;
+    private float clearGreen;
+    private float clearBlue;
+    private float clearAlpha;
+    private int viewportX;
+    private int viewportY;
+    private int viewportWidth;
+    private int viewportHeight;
+
+    private int callCount;
+    private int skippedCallCount;
+
+    private GlState(boolean vertexArraysSupported) {
+        this.vertexArraysSupported = vertexArraysSupported;
+        invalidate();
+    }
+
+    /**
+     * Returns the state of the current context. Must be called on a thread with a
+     * current EGL context.
+     */
+    static GlState obtain() {
+        EGLContext context = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        synchronized (states) {
+            GlState state = states.get(context);
+            if (state == null) {
+                state = new GlState(isGles3());
+                states.put(context, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Forgets the state of the context. Its buffers are freed together with the context.
+     */
+    static void releaseContext(EGLContext context) {
+        synchronized (states) {
+            states.remove(context);
+        }
+    }
+
+    /**
+     * Forgets the tracked state, the next change of each is issued again. Objects of the
+     * context are kept.
+     */
+    void invalidate() {
+        program = -1;
+        arrayBuffer = -1;
+        vertexArray = -1;
+        enabledAttribs = 0;
+        for (int i = 0; i < MAX_TRACKED_ATTRIBS; i++) {
+            attribOffsets[i] = 0;
+        }
+        blendKnown = false;
+        blendSrcRgb = -1;
+        blendDstRgb = -1;
+        blendSrcAlpha = -1;
+        blendDstAlpha = -1;
+        clearColorKnown = false;
+        viewportWidth = -1;
+        viewportHeight = -1;
+    }
+
+    int getCallCount() {
+        return callCount;
+    }
+
+    int getSkippedCallCount() {
+        return skippedCallCount;
+    }
+
+    void useProgram(int program) {
+        if (this.program == program) {
+            skippedCallCount++;
+            return;
+        }
+        this.program = program;
+        GLES20.glUseProgram(program);
+        callCount++;
+    }
+
+    void setBlendEnabled(boolean enabled) {
+        if (blendKnown && blendEnabled == enabled) {
+            skippedCallCount++;
+            return;
+        }
+        blendKnown = true;
+        blendEnabled = enabled;
+        if (enabled) {
+            GLES20.glEnable(GLES20.GL_BLEND);
+        } else {
+            GLES20.glDisable(GLES20.GL_BLEND);
+        }
+        callCount++;
+    }
+
+    void blendFuncSeparate(int srcRgb, int dstRgb, int srcAlpha, int dstAlpha) {
+        if (blendSrcRgb == srcRgb && blendDstRgb == dstRgb && blendSrcAlpha == srcAlpha
+                && blendDstAlpha == dstAlpha) {
+            skippedCallCount++;
+            return;
+        }
+        blendSrcRgb = srcRgb;
+        blendDstRgb = dstRgb;
+        blendSrcAlpha = srcAlpha;
+        blendDstAlpha = dstAlpha;
+        GLES20.glBlendFuncSeparate(srcRgb, dstRgb, srcAlpha, dstAlpha);
+        callCount++;
+    }
+
+    void clearColor(float red, float green, float blue, float alpha) {
+        if (clearColorKnown && clearRed == red && clearGreen == green && clearBlue == blue
+                && clearAlpha == alpha) {
+            skippedCallCount++;
+            return;
+        }
+        clearColorKnown = true;
+        clearRed = red;
+        clearGreen = green;
+        clearBlue = blue;
+        clearAlpha = alpha;
+        GLES20.glClearColor(red, green, blue, alpha);
+        callCount++;
+    }
+
+    void viewport(int x, int y, int width, int height) {
+        if (viewportX == x && viewportY == y && viewportWidth == width && viewportHeight == height) {
+            skippedCallCount++;
+            return;
+        }
+        viewportX = x;
+        viewportY = y;
+        viewportWidth = width;
+        viewportHeight = height;
+        GLES20.glViewport(x, y, width, height);
+        callCount++;
+    }
+
+    /**
+     * Points the two attributes at the position and texture coordinates of the quad.
+     */
+    void bindQuad(int positionHandle, int textureHandle) {
+        if (quadBuffer == 0) {
+            createQuadBuffer();
+        }
+        if (vertexArraysSupported) {
+            bindQuadVertexArray(positionHandle, textureHandle);
+            return;
+        }
+        bindArrayBuffer(quadBuffer);
+        quadAttrib(positionHandle, 3, QUAD_POSITION_OFFSET_BYTES);
+        quadAttrib(textureHandle, 2, QUAD_UV_OFFSET_BYTES);
+    }
+
+    /**
+     * Draws the quad bound with {@link #bindQuad(int, int)}.
+     */
+    void drawQuad() {
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, QUAD_VERTEX_COUNT);
+        callCount++;
+    }
+
+    /**
+     * Counts calls issued outside of this class, like texture binds and uniform uploads.
+     */
+    void countCalls(int calls) {
+        callCount += calls;
+    }
+
+    private void createQuadBuffer() {
+        FloatBuffer vertices = ByteBuffer.allocateDirect(QUAD_VERTICES.length * FLOAT_SIZE_BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        vertices.put(QUAD_VERTICES).position(0);
+        int[] names = new int[1];
+        GLES20.glGenBuffers(1, names, 0);
+        quadBuffer = names[0];
+        bindArrayBuffer(quadBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, QUAD_VERTICES.length * FLOAT_SIZE_BYTES,
+                vertices, GLES20.GL_STATIC_DRAW);
+        callCount += 2;
+    }
+
+    private void bindArrayBuffer(int buffer) {
+        if (arrayBuffer == buffer) {
+            skippedCallCount++;
+            return;
+        }
+        arrayBuffer = buffer;
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        callCount++;
+    }
+
+    private void quadAttrib(int index, int size, int offsetBytes) {
+        if (index >= MAX_TRACKED_ATTRIBS) {
+            GLES20.glVertexAttribPointer(index, size, GLES20.GL_FLOAT, false, QUAD_STRIDE_BYTES,
+                    offsetBytes);
+            GLES20.glEnableVertexAttribArray(index);
+            callCount += 2;
+            return;
+        }
+        if (attribOffsets[index] != offsetBytes + 1) {
+            attribOffsets[index] = offsetBytes + 1;
+            GLES20.glVertexAttribPointer(index, size, GLES20.GL_FLOAT, false, QUAD_STRIDE_BYTES,
+                    offsetBytes);
+            callCount++;
+        } else {
+            skippedCallCount++;
+        }
+        if ((enabledAttribs & (1 << index)) == 0) {
+            enabledAttribs |= 1 << index;
+            GLES20.glEnableVertexAttribArray(index);
+            callCount++;
+        } else {
+            skippedCallCount++;
+        }
+    }
+
+    @TargetApi(18)
+    private void bindQuadVertexArray(int positionHandle, int textureHandle) {
+        int key = (positionHandle << 16) | (textureHandle & 0xffff);
+        int name = 0;
+        for (int i = 0; i < vertexArrayCount; i++) {
+            if (vertexArrayKeys[i] == key) {
+                name = vertexArrays[i];
+                break;
+            }
+        }
+        if (name == 0) {
+            name = createQuadVertexArray(positionHandle, textureHandle);
+            if (vertexArrayCount == MAX_VERTEX_ARRAYS) {
+                // More programs than expected share the context, recycle the oldest.
+                GLES30.glDeleteVertexArrays(1, vertexArrays, 0);
+                callCount++;
+                System.arraycopy(vertexArrayKeys, 1, vertexArrayKeys, 0, MAX_VERTEX_ARRAYS - 1);
+                System.arraycopy(vertexArrays, 1, vertexArrays, 0, MAX_VERTEX_ARRAYS - 1);
+                vertexArrayCount--;
+            }
+            vertexArrayKeys[vertexArrayCount] = key;
+            vertexArrays[vertexArrayCount] = name;
+            vertexArrayCount++;
+        }
+        if (vertexArray == name) {
+            skippedCallCount++;
+            return;
+        }
+        vertexArray = name;
+        GLES30.glBindVertexArray(name);
+        callCount++;
+    }
+
+    @TargetApi(18)
+    private int createQuadVertexArray(int positionHandle, int textureHandle) {
+        int[] names = new int[1];
+        GLES30.glGenVertexArrays(1, names, 0);
+        vertexArray = names[0];
+        GLES30.glBindVertexArray(vertexArray);
+        // The buffer binding is global, the attribute pointers below capture it.
+        arrayBuffer = -1;
+        bindArrayBuffer(quadBuffer);
+        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, QUAD_STRIDE_BYTES,
+                QUAD_POSITION_OFFSET_BYTES);
+        GLES20.glEnableVertexAttribArray(positionHandle);
+        GLES20.glVertexAttribPointer(textureHandle, 2, GLES20.GL_FLOAT, false, QUAD_STRIDE_BYTES,
+                QUAD_UV_OFFSET_BYTES);
+        GLES20.glEnableVertexAttribArray(textureHandle);
+        callCount += 6;
+        return vertexArray;
+    }
+
+    private static boolean isGles3() {
+        if (Build.VERSION.SDK_INT < 18) {
+            return false;
+        }
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES ")
+                && version.length() > 10 && version.charAt(10) >= '3';
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+/**
+ * Measures the GPU time of frames with {@code GL_EXT_disjoint_timer_query}.
+ * <p>
+ * Each frame is wrapped in a time elapsed query. Results are read a few frames later, once
+ * available, so the GL thread never waits for the GPU. Results of intervals in which the
+ * GPU was disjoint, e.g. because its clock changed, are discarded. The ES 3.0 query entry
+ * points are used, so an ES 3.0 context is required.
+ * <p>
+ * Must only be used from the GL thread.
+ */
+final class GpuTimer {
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    private static final int QUERY_COUNT = 4;
+
+    private final int[] queries = new int[QUERY_COUNT];
+    private final RenderMetricsRecorder[] targets = new RenderMetricsRecorder[QUERY_COUNT];
+    private final int[] result = new int[1];
+    private int head;
+    private int count;
+    private boolean supported;
+    private boolean active;
+
+    /**
+     * Must be called with a context current, whenever a new context was made current.
+     */
+    void onContextCurrent() {
+        if (supported) {
+            // Same context with a new surface, the queries are still valid.
+            return;
+        }
+        supported = isSupported();
+        if (supported) {
+            genQueries();
+        }
+    }
+
+    /**
+     * Forgets the queries, they are owned by the context.
+     */
+    void onContextLost() {
+        supported = false;
+        active = false;
+        head = 0;
+        count = 0;
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            targets[i] = null;
+        }
+    }
+
+    void begin() {
+        if (!supported) {
+            return;
+        }
+        collect();
+        if (count == QUERY_COUNT) {
+            // All queries are still pending, this frame isn't measured.
+            return;
+        }
+        beginQuery(queries[(head + count) % QUERY_COUNT]);
+        active = true;
+    }
+
+    void end(RenderMetricsRecorder target) {
+        if (!active) {
+            return;
+        }
+        endQuery();
+        targets[(head + count) % QUERY_COUNT] = target;
+        count++;
+        active = false;
+    }
+
+    private void collect() {
+        while (count > 0) {
+            int query = queries[head];
+            if (!isAvailable(query)) {
+                return;
+            }
+            long nanos = getResult(query);
+            if (nanos >= 0) {
+                targets[head].record(RenderMetrics.METRIC_GPU, nanos);
+            }
+            targets[head] = null;
+            head = (head + 1) % QUERY_COUNT;
+            count--;
+        }
+    }
+
+    @TargetApi(18)
+    private void genQueries() {
+        GLES30.glGenQueries(QUERY_COUNT, queries, 0);
+    }
+
+    @TargetApi(18)
+    private static void beginQuery(int query) {
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, query);
+    }
+
+    @TargetApi(18)
+    private static void endQuery() {
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+    }
+
+    @TargetApi(18)
+    private boolean isAvailable(int query) {
+        GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT_AVAILABLE, result, 0);
+        return result[0] != 0;
+    }
+
+    /**
+     * @return the elapsed nanoseconds, or -1 if the GPU was disjoint.
+     */
+    @TargetApi(18)
+    private long getResult(int query) {
+        GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT, result, 0);
+        long nanos = result[0] & 0xffffffffL;
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, result, 0);
+        return result[0] != 0 ? -1 : nanos;
+    }
+
+    private static boolean isSupported() {
+        if (Build.VERSION.SDK_INT < 18) {
+            return false;
+        }
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        return version != null && version.startsWith("OpenGL ES ")
+                && version.length() > 10 && version.charAt(10) >= '3'
+                && extensions != null && extensions.contains("GL_EXT_disjoint_timer_query");
+    }
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Size-bounded disk cache of HTTP videos, split into fixed-size segments.
+ * <p>
+ * Segments are fetched with range requests and shared by every reader of the same URL,
+ * so the metadata retriever and the decoder read the same bytes, and a video shown again,
+ * even in a later session, isn't downloaded again. The least recently used segments are
+ * deleted when the cache grows over its size.
+ */
+final class HttpCache {
+    private static final String TAG = "HttpCache";
+
+    static final int SEGMENT_SIZE = 256 * 1024;
+    static final long UNKNOWN_LENGTH = -1;
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 15000;
+    private static final String LENGTH_SUFFIX = ".len";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String FIRST_SEGMENT_SUFFIX = ".0";
+
+    private static volatile HttpCache installed;
+
+    private static final ExecutorService prefetchExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HttpCache prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final File directory;
+    private final long maxBytes;
+
+    // Segment file name to its size, least recently used first. Guarded by this.
+    private final LinkedHashMap<String, Long> segments =
+            new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+
+    private volatile long hitCount;
+    private volatile long missCount;
+    private volatile long bytesSaved;
+
+    private HttpCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Replaces the process-wide cache, null directory disables caching.
+     */
+    static void install(File directory, long maxBytes) {
+        if (directory == null) {
+            installed = null;
+            return;
+        }
+        HttpCache cache = new HttpCache(directory, maxBytes);
+        cache.scan();
+        installed = cache;
+    }
+
+    static HttpCache getInstalled() {
+        return installed;
+    }
+
+    static boolean isCacheable(String url) {
+        return url.startsWith("http://") || url.startsWith("https://");
+    }
+
+    long getHitCount() {
+        return hitCount;
+    }
+
+    long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return bytes read from disk instead of the network.
+     */
+    long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    /**
+     * Downloads the first {@code prefetchMs} of a video lasting {@code durationMs} in the
+     * background, assuming a constant bitrate. Cached segments aren't downloaded again.
+     */
+    void prefetch(final String url, final long durationMs, final long prefetchMs) {
+        prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long length = getLength(url);
+                    if (length == UNKNOWN_LENGTH || durationMs <= 0) {
+                        return;
+                    }
+                    long end = Math.min(length, length * prefetchMs / durationMs);
+                    for (long index = 0; index * SEGMENT_SIZE < end; index++) {
+                        getSegment(url, index, false);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Prefetch of " + url + " failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the length of the video, fetching its first segment if it isn't known yet.
+     */
+    long getLength(String url) throws IOException {
+        String key = keyOf(url);
+        long length = readLength(key);
+        if (length == UNKNOWN_LENGTH) {
+            getSegment(url, 0, false);
+            length = readLength(key);
+        }
+        return length;
+    }
+
+    /**
+     * @param countStats whether the lookup counts toward the hit ratio, prefetching doesn't.
+     * @return the segment, shorter than {@link #SEGMENT_SIZE} only at the end of the video.
+     */
+    byte[] getSegment(String url, long index, boolean countStats) throws IOException {
+        String key = keyOf(url);
+        String name = key + "." + index;
+        byte[] data = readSegment(name);
+        if (data != null) {
+            if (countStats) {
+                hitCount++;
+                bytesSaved += data.length;
+            }
+            return data;
+        }
+        if (countStats) {
+            missCount++;
+        }
+        return download(url, key, index);
+    }
+
+    private byte[] readSegment(String name) {
+        synchronized (this) {
+            if (segments.get(name) == null) {
+                return null;
+            }
+        }
+        File file = new File(directory, name);
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            readFully(in, data, data.length);
+        } catch (IOException e) {
+            // Deleted by another eviction or broken, it is downloaded again.
+            removeSegment(name);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        // Keeps the order across sessions, the scan sorts by modification time.
+        file.setLastModified(System.currentTimeMillis());
+        return data;
+    }
+
+    private void writeSegment(String name, byte[] data) {
+        File temp = new File(directory, name + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            out = new FileOutputStream(temp);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!temp.renameTo(new File(directory, name))) {
+                throw new IOException("Can't rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache " + name + ": " + e.getMessage());
+            temp.delete();
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+        synchronized (this) {
+            Long previous = segments.put(name, (long) data.length);
+            totalBytes += data.length - (previous != null ? previous : 0);
+            evictLocked();
+        }
+    }
+
+    private synchronized boolean isCached(String name) {
+        // Doesn't count as a use, unlike get().
+        return segments.containsKey(name);
+    }
+
+    private synchronized void removeSegment(String name) {
+        Long size = segments.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        deleteSegmentFile(name);
+    }
+
+    private void evictLocked() {
+        Iterator<Map.Entry<String, Long>> iterator = segments.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            totalBytes -= eldest.getValue();
+            deleteSegmentFile(eldest.getKey());
+        }
+    }
+
+    /**
+     * Deletes a segment, and the length with the first segment. Lengths aren't counted in
+     * the cache size, they would otherwise outlive their video forever.
+     */
+    private void deleteSegmentFile(String name) {
+        new File(directory, name).delete();
+        if (name.endsWith(FIRST_SEGMENT_SUFFIX)) {
+            String key = name.substring(0, name.length() - FIRST_SEGMENT_SUFFIX.length());
+            new File(directory, key + LENGTH_SUFFIX).delete();
+        }
+    }
+
+    private synchronized void scan() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else if (!name.endsWith(LENGTH_SUFFIX)) {
+                segments.put(name, file.length());
+                totalBytes += file.length();
+            }
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(LENGTH_SUFFIX) && !segments.containsKey(
+                    name.substring(0, name.length() - LENGTH_SUFFIX.length()) + FIRST_SEGMENT_SUFFIX)) {
+                file.delete();
+            }
+        }
+        evictLocked();
+    }
+
+    /**
+     * Downloads segment {@code index} and caches it.
+     */
+    private byte[] download(String url, String key, long index) throws IOException {
+        long start = index * SEGMENT_SIZE;
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        InputStream in = null;
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestProperty("Range",
+                    "bytes=" + start + "-" + (start + SEGMENT_SIZE - 1));
+            int code = connection.getResponseCode();
+            long length;
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                length = parseContentRangeLength(connection.getHeaderField("Content-Range"));
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // The server ignored the range, the whole video follows.
+                length = connection.getContentLength();
+            } else if (code == 416) {
+                byte[] empty = new byte[0];
+                writeSegment(key + "." + index, empty);
+                return empty;
+            } else {
+                throw new IOException("HTTP " + code + " for " + url);
+            }
+            in = connection.getInputStream();
+            if (length != UNKNOWN_LENGTH) {
+                writeLength(key, length);
+            }
+            if (code == HttpURLConnection.HTTP_OK) {
+                return cacheFullResponse(in, key, index);
+            }
+            int size = length == UNKNOWN_LENGTH
+                    ? SEGMENT_SIZE : (int) Math.max(0, Math.min(SEGMENT_SIZE, length - start));
+            byte[] buffer = new byte[size];
+            int read = readFully(in, buffer, size);
+            byte[] data = read == size ? buffer : Arrays.copyOf(buffer, read);
+            writeSegment(key + "." + index, data);
+            return data;
+        } finally {
+            closeQuietly(in);
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Caches every segment of a response the server sent whole, because it ignored the
+     * range. Fetching the others one by one would download the video from the start again
+     * for each of them.
+     *
+     * @return segment {@code index}, available once the whole response has been read.
+     */
+    private byte[] cacheFullResponse(InputStream in, String key, long index) throws IOException {
+        byte[] wanted = new byte[0];
+        for (long i = 0; ; i++) {
+            byte[] buffer = new byte[SEGMENT_SIZE];
+            int read = readFully(in, buffer, SEGMENT_SIZE);
+            byte[] data = read == SEGMENT_SIZE ? buffer : Arrays.copyOf(buffer, read);
+            String name = key + "." + i;
+            if (i == index) {
+                wanted = data;
+                writeSegment(name, data);
+            } else if (read > 0 && !isCached(name)) {
+                writeSegment(name, data);
+            }
+            if (read < SEGMENT_SIZE && i >= index) {
+                return wanted;
+            }
+        }
+    }
+
+    private static long parseContentRangeLength(String contentRange) {
+        // bytes <first>-<last>/<length or *>
+        if (contentRange != null) {
+            int slash = contentRange.lastIndexOf('/');
+            if (slash >= 0) {
+                try {
+                    return Long.parseLong(contentRange.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    // Unknown length.
+                }
+            }
+        }
+        return UNKNOWN_LENGTH;
+    }
+
+    private long readLength(String key) {
+        File file = new File(directory, key + LENGTH_SUFFIX);
+        if (!file.isFile()) {
+            return UNKNOWN_LENGTH;
+        }
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            readFully(in, data, data.length);
+            return Long.parseLong(new String(data, "US-ASCII").trim());
+        } catch (IOException e) {
+            return UNKNOWN_LENGTH;
+        } catch (NumberFormatException e) {
+            return UNKNOWN_LENGTH;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeLength(String key, long length) {
+        FileOutputStream out = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                return;
+            }
+            out = new FileOutputStream(new File(directory, key + LENGTH_SUFFIX));
+            out.write(Long.toString(length).getBytes("US-ASCII"));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store the length of " + key + ": " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static String keyOf(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int size) throws IOException {
+        int total = 0;
+        while (total < size) {
+            int read = in.read(buffer, total, size - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+
+import java.io.IOException;
+
+/**
+ * Reads an HTTP video through the {@link HttpCache}. The media framework closes its data
+ * source when the player or retriever is released, so reads after {@link #close()} are
+ * still served.
+ */
+@TargetApi(23)
+final class HttpCacheDataSource extends MediaDataSource {
+
+    private final HttpCache cache;
+    private final String url;
+
+    // Sequential small reads hit the same segment, it is kept instead of read again.
+    private long segmentIndex = -1;
+    private byte[] segment;
+
+    HttpCacheDataSource(HttpCache cache, String url) {
+        this.cache = cache;
+        this.url = url;
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size)
+            throws IOException {
+        MappedMediaDataSource.checkReadArguments(position, buffer, offset, size);
+        if (size == 0) {
+            return 0;
+        }
+        long index = position / HttpCache.SEGMENT_SIZE;
+        if (index != segmentIndex) {
+            segment = cache.getSegment(url, index, true);
+            segmentIndex = index;
+        }
+        int segmentOffset = (int) (position - index * HttpCache.SEGMENT_SIZE);
+        if (segmentOffset >= segment.length) {
+            return -1;
+        }
+        int count = Math.min(size, segment.length - segmentOffset);
+        System.arraycopy(segment, segmentOffset, buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return cache.getLength(url);
+    }
+
+    @Override
+    public synchronized void close() {
+        segment = null;
+        segmentIndex = -1;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaDataSource;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link MediaDataSource} reading a local file, or an uncompressed asset, straight out of a
+ * read-only memory mapping. Reads copy from the page cache into the caller's buffer
+ * without any intermediate allocation.
+ * <p>
+ * The media framework closes a data source when its player or retriever is released,
+ * so {@link #close()} keeps the mapping. One instance can therefore be shared by the
+ * metadata reader and the decoder, and set again later:
+ * <pre>
+ * alphaMovieView.setVideoFromMediaDataSource(MappedMediaDataSource.openAsset(context, "ball.mp4"));
+ * </pre>
+ * The mapping is unmapped once the instance is garbage collected.
+ */
+@TargetApi(23)
+public final class MappedMediaDataSource extends MediaDataSource {
+
+    private final MappedByteBuffer buffer;
+
+    private MappedMediaDataSource(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public static MappedMediaDataSource open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return map(randomAccessFile.getChannel(), 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Maps an asset stored uncompressed in the APK, e.g. with {@code aaptOptions.noCompress}.
+     *
+     * @throws IOException if the asset is compressed or missing.
+     */
+    public static MappedMediaDataSource openAsset(Context context, String assetFileName)
+            throws IOException {
+        AssetFileDescriptor asset = context.getAssets().openFd(assetFileName);
+        try {
+            return open(asset.getFileDescriptor(), asset.getStartOffset(), asset.getLength());
+        } finally {
+            asset.close();
+        }
+    }
+
+    /**
+     * Maps {@code length} bytes of an open file starting at {@code offset}. The descriptor
+     * may be closed right after this returns.
+     */
+    public static MappedMediaDataSource open(FileDescriptor fileDescriptor, long offset, long length)
+            throws IOException {
+        FileInputStream in = new FileInputStream(fileDescriptor);
+        // Closing the stream would close the caller's descriptor, the channel is left to GC.
+        return map(in.getChannel(), offset, length);
+    }
+
+    private static MappedMediaDataSource map(FileChannel channel, long offset, long length)
+            throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Can't map " + length + " bytes");
+        }
+        // The mapping stays valid after the channel is closed.
+        return new MappedMediaDataSource(channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        checkReadArguments(position, buffer, offset, size);
+        int limit = this.buffer.limit();
+        if (position >= limit) {
+            return -1;
+        }
+        int count = (int) Math.min(size, limit - position);
+        // The position is shared, readers on different threads take turns.
+        synchronized (this.buffer) {
+            this.buffer.position((int) position);
+            this.buffer.get(buffer, offset, count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads are called back from the framework's threads, where an unchecked exception
+     * would crash the process. Invalid reads fail the playback with an IOException instead.
+     */
+    static void checkReadArguments(long position, byte[] buffer, int offset, int size)
+            throws IOException {
+        if (position < 0 || offset < 0 || size < 0 || offset > buffer.length - size) {
+            throw new IOException("Invalid read of " + size + " bytes at " + position
+                    + " into offset " + offset + " of " + buffer.length);
+        }
+    }
+
+    @Override
+    public long getSize() {
+        return buffer.limit();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,744 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link PlaybackEngine} decoding the video track with {@link MediaExtractor} and
+ * {@link MediaCodec} straight into the output surface. Audio is not decoded.
+ * <p>
+ * All codec work happens on a private decode thread, the public methods only post
+ * commands to it. Decoded frames are held back until their presentation time and then
+ * released to the surface, so the renderer sees frames at the rate the video was encoded.
+ * <p>
+ * Looping is gapless: when the extractor reaches the end of the clip while looping, it is
+ * rewound and the samples of the next iteration are queued right behind the last ones,
+ * with their timestamps shifted by the clip duration. The decoder is never flushed at the
+ * loop point, so the first frames of the next iteration are already decoded by the time
+ * the last frame of the current one is shown.
+ * <p>
+ * Requires API 21, use {@link #isSupported()} to fall back to {@link MediaPlayerEngine}.
+ */
+@TargetApi(21)
+public class MediaCodecEngine implements PlaybackEngine, Handler.Callback {
+    private static final String TAG = "MediaCodecEngine";
+
+    private static final int MSG_PREPARE = 1;
+    private static final int MSG_START = 2;
+    private static final int MSG_PAUSE = 3;
+    private static final int MSG_STOP = 4;
+    private static final int MSG_SEEK = 5;
+    private static final int MSG_RESET = 6;
+    private static final int MSG_RELEASE = 7;
+    private static final int MSG_SET_SURFACE = 8;
+    private static final int MSG_DECODE = 9;
+
+    private static final long IDLE_POLL_MS = 5;
+    /** Frames due within this time are released right away instead of waiting for them. */
+    private static final long RENDER_AHEAD_NANOS = 2000000L;
+    /** Frames later than this are dropped without rendering, unless the previous one was. */
+    private static final long DROP_LATE_NANOS = 40000000L;
+    private static final long DEFAULT_FRAME_DURATION_US = 33333;
+    private static final long NO_LOOP_BOUNDARY = Long.MAX_VALUE;
+
+    private final Handler decodeHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile Surface surface;
+    private volatile VideoSource source;
+    private volatile boolean looping;
+    private volatile int currentPositionMs;
+    private volatile int generation;
+    // Callbacks of surface switches the decoder hasn't applied yet, oldest first.
+    private final List<Runnable> surfaceSwitchCallbacks = new ArrayList<Runnable>();
+
+    private volatile OnPreparedListener onPreparedListener;
+    private volatile OnCompletionListener onCompletionListener;
+    private volatile OnSeekCompleteListener onSeekCompleteListener;
+    private volatile OnErrorListener onErrorListener;
+
+    private volatile int loopCount;
+    private volatile long lastLoopJitterNanos;
+    private volatile long maxLoopJitterNanos;
+    private volatile long droppedFrameCount;
+
+    // Accessed on the decode thread only.
+    private MediaExtractor extractor;
+    private MediaCodec decoder;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private int pendingOutputIndex = -1;
+    private boolean inputDone;
+    private boolean playing;
+    private boolean ended;
+    private long seekTargetUs = -1;
+    private long clockBasePtsUs = -1;
+    private long clockBaseNanos;
+    private int decodeGeneration;
+
+    private long trackDurationUs;
+    private long frameDurationUs;
+    private long firstSampleTimeUs;
+    private long maxSampleTimeUs;
+    private long loopOffsetUs;
+    private long previousLoopOffsetUs;
+    private long loopBoundaryPtsUs = NO_LOOP_BOUNDARY;
+    private boolean loopPending;
+    private long lastRenderedPtsUs;
+    private long lastRenderNanos;
+    private boolean droppedPrevious;
+
+    public MediaCodecEngine() {
+        HandlerThread decodeThread = new HandlerThread(TAG);
+        decodeThread.start();
+        decodeHandler = new Handler(decodeThread.getLooper(), this);
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= 21;
+    }
+
+    @Override
+    public void setSurface(Surface surface) {
+        setSurface(surface, null);
+    }
+
+    /**
+     * Only posts the switch to the decode thread. {@code onSwitched} runs once the decoder
+     * renders into the new surface, or once it is released. Before API 23 the decoder can't
+     * switch and keeps the old surface until then.
+     */
+    @Override
+    public void setSurface(Surface surface, Runnable onSwitched) {
+        synchronized (surfaceSwitchCallbacks) {
+            // Written under the lock, so a switch applying a callback applies this surface.
+            this.surface = surface;
+            if (onSwitched != null) {
+                surfaceSwitchCallbacks.add(onSwitched);
+            }
+        }
+        decodeHandler.sendEmptyMessage(MSG_SET_SURFACE);
+    }
+
+    /**
+     * Stores the source. It is opened on the decode thread when preparing, so failures
+     * are reported to the {@link OnErrorListener}.
+     */
+    @Override
+    public void setDataSource(VideoSource source) throws IOException {
+        this.source = source;
+    }
+
+    @Override
+    public void prepareAsync() {
+        decodeHandler.sendEmptyMessage(MSG_PREPARE);
+    }
+
+    @Override
+    public void start() {
+        decodeHandler.sendEmptyMessage(MSG_START);
+    }
+
+    @Override
+    public void pause() {
+        decodeHandler.sendEmptyMessage(MSG_PAUSE);
+    }
+
+    @Override
+    public void stop() {
+        decodeHandler.sendEmptyMessage(MSG_STOP);
+    }
+
+    @Override
+    public void seekTo(int msec) {
+        currentPositionMs = msec;
+        decodeHandler.removeMessages(MSG_SEEK);
+        decodeHandler.obtainMessage(MSG_SEEK, msec, 0).sendToTarget();
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        this.looping = looping;
+    }
+
+    @Override
+    public boolean isLooping() {
+        return looping;
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return currentPositionMs;
+    }
+
+    /**
+     * @return number of times playback looped since the last {@link #resetLoopStats()}.
+     */
+    public int getLoopCount() {
+        return loopCount;
+    }
+
+    /**
+     * Loop boundary jitter is how much the time between showing the last frame of an
+     * iteration and the first frame of the next one deviated from the frame interval.
+     *
+     * @return jitter of the most recent loop boundary in nanoseconds.
+     */
+    public long getLastLoopJitterNanos() {
+        return lastLoopJitterNanos;
+    }
+
+    /**
+     * @return the largest loop boundary jitter since the last {@link #resetLoopStats()}.
+     */
+    public long getMaxLoopJitterNanos() {
+        return maxLoopJitterNanos;
+    }
+
+    /**
+     * @return number of decoded frames dropped because they were too late to be shown.
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    public void resetLoopStats() {
+        loopCount = 0;
+        lastLoopJitterNanos = 0;
+        maxLoopJitterNanos = 0;
+    }
+
+    @Override
+    public void reset() {
+        source = null;
+        currentPositionMs = 0;
+        // Callbacks of the previous source still in flight are dropped by the generation check.
+        decodeHandler.removeCallbacksAndMessages(null);
+        decodeHandler.obtainMessage(MSG_RESET, ++generation, 0).sendToTarget();
+    }
+
+    @Override
+    public void release() {
+        source = null;
+        decodeHandler.removeCallbacksAndMessages(null);
+        decodeHandler.obtainMessage(MSG_RELEASE, ++generation, 0).sendToTarget();
+    }
+
+    @Override
+    public void setOnPreparedListener(OnPreparedListener listener) {
+        onPreparedListener = listener;
+    }
+
+    @Override
+    public void setOnCompletionListener(OnCompletionListener listener) {
+        onCompletionListener = listener;
+    }
+
+    @Override
+    public void setOnSeekCompleteListener(OnSeekCompleteListener listener) {
+        onSeekCompleteListener = listener;
+    }
+
+    @Override
+    public void setOnErrorListener(OnErrorListener listener) {
+        onErrorListener = listener;
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_PREPARE:
+                handlePrepare();
+                break;
+            case MSG_START:
+                handleStart();
+                break;
+            case MSG_PAUSE:
+                playing = false;
+                decodeHandler.removeMessages(MSG_DECODE);
+                break;
+            case MSG_STOP:
+                releaseDecoder();
+                break;
+            case MSG_SEEK:
+                handleSeek(msg.arg1);
+                break;
+            case MSG_RESET:
+                releaseDecoder();
+                decodeGeneration = msg.arg1;
+                break;
+            case MSG_RELEASE:
+                releaseDecoder();
+                decodeGeneration = msg.arg1;
+                Looper.myLooper().quit();
+                break;
+            case MSG_SET_SURFACE:
+                handleSetSurface();
+                break;
+            case MSG_DECODE:
+                decode();
+                break;
+        }
+        return true;
+    }
+
+    private void handlePrepare() {
+        releaseDecoder();
+        VideoSource source = this.source;
+        if (source == null) {
+            return;
+        }
+        try {
+            extractor = new MediaExtractor();
+            source.applyTo(extractor);
+            int track = selectVideoTrack(extractor);
+            if (track < 0) {
+                throw new IOException("No video track found");
+            }
+            extractor.selectTrack(track);
+            MediaFormat format = extractor.getTrackFormat(track);
+            readTiming(format);
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, surface, null, 0);
+            decoder.start();
+        } catch (IOException e) {
+            fail(e, MediaPlayer.MEDIA_ERROR_IO);
+            return;
+        } catch (RuntimeException e) {
+            fail(e, 0);
+            return;
+        }
+        currentPositionMs = 0;
+
+        final int generation = decodeGeneration;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                OnPreparedListener listener = onPreparedListener;
+                if (generation == MediaCodecEngine.this.generation && listener != null) {
+                    listener.onPrepared(MediaCodecEngine.this);
+                }
+            }
+        });
+    }
+
+    private void handleStart() {
+        if (decoder == null) {
+            return;
+        }
+        if (ended) {
+            rewind();
+        }
+        playing = true;
+        // The clock is rebased on the next frame, so paused time isn't made up for.
+        clockBasePtsUs = -1;
+        lastRenderNanos = 0;
+        scheduleDecode(0);
+    }
+
+    private void handleSeek(int msec) {
+        if (decoder == null) {
+            return;
+        }
+        try {
+            extractor.seekTo(msec * 1000L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            decoder.flush();
+        } catch (IllegalStateException e) {
+            fail(e, 0);
+            return;
+        }
+        pendingOutputIndex = -1;
+        inputDone = false;
+        ended = false;
+        seekTargetUs = msec * 1000L;
+        clockBasePtsUs = -1;
+        resetLoopTiming();
+        // Decodes up to the target frame even when paused, so it is shown right away.
+        scheduleDecode(0);
+    }
+
+    private void handleSetSurface() {
+        int switched;
+        synchronized (surfaceSwitchCallbacks) {
+            switched = surfaceSwitchCallbacks.size();
+        }
+        Surface surface = this.surface;
+        if (decoder != null) {
+            if (surface == null || Build.VERSION.SDK_INT < 23) {
+                // The decoder stays on its surface, callbacks wait for it to be released.
+                Log.w(TAG, "Surface changed while decoding, takes effect on the next prepare");
+                return;
+            }
+            if (!setOutputSurface(surface)) {
+                return;
+            }
+        }
+        confirmSurfaceSwitches(switched);
+    }
+
+    /**
+     * Posts the callbacks of the oldest {@code count} surface switches to the main thread.
+     */
+    private void confirmSurfaceSwitches(int count) {
+        final List<Runnable> callbacks;
+        synchronized (surfaceSwitchCallbacks) {
+            List<Runnable> switched = surfaceSwitchCallbacks.subList(0, count);
+            callbacks = new ArrayList<Runnable>(switched);
+            switched.clear();
+        }
+        if (callbacks.isEmpty()) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable callback : callbacks) {
+                    callback.run();
+                }
+            }
+        });
+    }
+
+    @TargetApi(23)
+    private boolean setOutputSurface(Surface surface) {
+        try {
+            decoder.setOutputSurface(surface);
+            return true;
+        } catch (RuntimeException e) {
+            // Releases the decoder, which confirms the switch.
+            fail(e, 0);
+            return false;
+        }
+    }
+
+    private void decode() {
+        if (decoder == null || (!playing && seekTargetUs < 0)) {
+            return;
+        }
+        long delayMs;
+        try {
+            feedInput();
+            delayMs = drainOutput();
+        } catch (IllegalStateException e) {
+            fail(e, 0);
+            return;
+        }
+        if (delayMs >= 0) {
+            scheduleDecode(delayMs);
+        }
+    }
+
+    private void feedInput() {
+        while (!inputDone) {
+            int index = decoder.dequeueInputBuffer(0);
+            if (index < 0) {
+                return;
+            }
+            ByteBuffer buffer = decoder.getInputBuffer(index);
+            int size = extractor.readSampleData(buffer, 0);
+            if (size < 0 && looping && maxSampleTimeUs >= 0) {
+                wrapInput();
+                size = extractor.readSampleData(buffer, 0);
+            }
+            if (size < 0) {
+                decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                inputDone = true;
+            } else {
+                long sampleTimeUs = extractor.getSampleTime();
+                if (firstSampleTimeUs < 0) {
+                    firstSampleTimeUs = sampleTimeUs;
+                }
+                maxSampleTimeUs = Math.max(maxSampleTimeUs, sampleTimeUs);
+                decoder.queueInputBuffer(index, 0, size, sampleTimeUs + loopOffsetUs, 0);
+                extractor.advance();
+            }
+        }
+    }
+
+    /**
+     * Rewinds the extractor to start the next iteration without touching the decoder.
+     * Its samples are queued with timestamps continuing where the clip ended.
+     */
+    private void wrapInput() {
+        long endUs = Math.max(trackDurationUs, maxSampleTimeUs + frameDurationUs);
+        previousLoopOffsetUs = loopOffsetUs;
+        loopOffsetUs += endUs - firstSampleTimeUs;
+        loopBoundaryPtsUs = firstSampleTimeUs + loopOffsetUs;
+        loopPending = true;
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+    }
+
+    /**
+     * Releases the next decoded frame once it is due.
+     *
+     * @return milliseconds until the next decode step, or -1 if decoding should stop.
+     */
+    private long drainOutput() {
+        if (pendingOutputIndex < 0) {
+            int index = decoder.dequeueOutputBuffer(bufferInfo, 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return IDLE_POLL_MS;
+            }
+            if (index < 0) {
+                // Output format or buffers changed, nothing to do for surface output.
+                return 0;
+            }
+            pendingOutputIndex = index;
+        }
+
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            releaseOutput(false);
+            return onEndOfStream();
+        }
+
+        long ptsUs = bufferInfo.presentationTimeUs;
+        if (!looping && loopPending && ptsUs >= loopBoundaryPtsUs) {
+            // Looping was turned off after the next iteration had been queued already.
+            releaseOutput(false);
+            return onEndOfStream();
+        }
+        if (seekTargetUs >= 0) {
+            if (ptsUs < seekTargetUs) {
+                releaseOutput(false);
+                return 0;
+            }
+            seekTargetUs = -1;
+            releaseOutput(true);
+            notifySeekComplete();
+            return playing ? 0 : -1;
+        }
+
+        long now = System.nanoTime();
+        if (clockBasePtsUs < 0) {
+            clockBasePtsUs = ptsUs;
+            clockBaseNanos = now;
+        }
+        long dueNanos = clockBaseNanos + (ptsUs - clockBasePtsUs) * 1000L;
+        long waitNanos = dueNanos - now;
+        if (waitNanos > RENDER_AHEAD_NANOS) {
+            return Math.max(1, (waitNanos - RENDER_AHEAD_NANOS) / 1000000L);
+        }
+        if (-waitNanos > DROP_LATE_NANOS && !droppedPrevious) {
+            // Too late to be shown on time, a slow decoder still shows every other frame.
+            droppedPrevious = true;
+            droppedFrameCount++;
+            releaseOutput(false);
+            return 0;
+        }
+        droppedPrevious = false;
+        // The due time reaches the consumer as the frame timestamp, it paces frames by it.
+        decoder.releaseOutputBuffer(pendingOutputIndex, dueNanos);
+        onOutputReleased(true);
+        return 0;
+    }
+
+    private void releaseOutput(boolean render) {
+        decoder.releaseOutputBuffer(pendingOutputIndex, render);
+        onOutputReleased(render);
+    }
+
+    private void onOutputReleased(boolean render) {
+        pendingOutputIndex = -1;
+        if (render) {
+            long ptsUs = bufferInfo.presentationTimeUs;
+            long now = System.nanoTime();
+            if (loopPending && ptsUs >= loopBoundaryPtsUs) {
+                loopPending = false;
+                onLoopBoundaryRendered(ptsUs, now);
+            }
+            lastRenderedPtsUs = ptsUs;
+            lastRenderNanos = now;
+            currentPositionMs = (int) ((ptsUs - loopOffsetBefore(ptsUs)) / 1000L);
+        }
+    }
+
+    /**
+     * @return the timestamp offset of the iteration the frame with {@code ptsUs} belongs to.
+     */
+    private long loopOffsetBefore(long ptsUs) {
+        if (loopPending && ptsUs < loopBoundaryPtsUs) {
+            return previousLoopOffsetUs;
+        }
+        return loopOffsetUs;
+    }
+
+    private void onLoopBoundaryRendered(long ptsUs, long now) {
+        loopCount++;
+        if (lastRenderNanos == 0) {
+            // Paused or seeked across the boundary, there is no interval to measure.
+            return;
+        }
+        long expectedNanos = ptsUs > lastRenderedPtsUs
+                ? (ptsUs - lastRenderedPtsUs) * 1000L : frameDurationUs * 1000L;
+        long jitterNanos = Math.abs(now - lastRenderNanos - expectedNanos);
+        lastLoopJitterNanos = jitterNanos;
+        if (jitterNanos > maxLoopJitterNanos) {
+            maxLoopJitterNanos = jitterNanos;
+        }
+    }
+
+    private long onEndOfStream() {
+        if (looping) {
+            // Looping was turned on after the end of the stream had been queued.
+            rewind();
+            loopPending = true;
+            loopBoundaryPtsUs = Long.MIN_VALUE;
+            return 0;
+        }
+        playing = false;
+        ended = true;
+
+        final int generation = decodeGeneration;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                OnCompletionListener listener = onCompletionListener;
+                if (generation == MediaCodecEngine.this.generation && listener != null) {
+                    listener.onCompletion(MediaCodecEngine.this);
+                }
+            }
+        });
+        return -1;
+    }
+
+    private void rewind() {
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        decoder.flush();
+        pendingOutputIndex = -1;
+        inputDone = false;
+        ended = false;
+        clockBasePtsUs = -1;
+        resetLoopTiming();
+    }
+
+    private void resetLoopTiming() {
+        firstSampleTimeUs = -1;
+        maxSampleTimeUs = -1;
+        loopOffsetUs = 0;
+        previousLoopOffsetUs = 0;
+        loopBoundaryPtsUs = NO_LOOP_BOUNDARY;
+        loopPending = false;
+    }
+
+    private void readTiming(MediaFormat format) {
+        trackDurationUs = format.containsKey(MediaFormat.KEY_DURATION)
+                ? format.getLong(MediaFormat.KEY_DURATION) : 0;
+        frameDurationUs = DEFAULT_FRAME_DURATION_US;
+        if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            try {
+                int frameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+                if (frameRate > 0) {
+                    frameDurationUs = 1000000L / frameRate;
+                }
+            } catch (ClassCastException ignored) {
+                // Some extractors store the frame rate as a float, keep the default.
+            }
+        }
+        resetLoopTiming();
+    }
+
+    private void notifySeekComplete() {
+        final int generation = decodeGeneration;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                OnSeekCompleteListener listener = onSeekCompleteListener;
+                if (generation == MediaCodecEngine.this.generation && listener != null) {
+                    listener.onSeekComplete(MediaCodecEngine.this);
+                }
+            }
+        });
+    }
+
+    private void fail(Exception e, final int extra) {
+        Log.e(TAG, "Playback failed", e);
+        releaseDecoder();
+
+        final int generation = decodeGeneration;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                OnErrorListener listener = onErrorListener;
+                if (generation == MediaCodecEngine.this.generation && listener != null) {
+                    listener.onError(MediaCodecEngine.this, MediaPlayer.MEDIA_ERROR_UNKNOWN, extra);
+                }
+            }
+        });
+    }
+
+    private void scheduleDecode(long delayMs) {
+        decodeHandler.removeMessages(MSG_DECODE);
+        decodeHandler.sendEmptyMessageDelayed(MSG_DECODE, delayMs);
+    }
+
+    private void releaseDecoder() {
+        decodeHandler.removeMessages(MSG_DECODE);
+        if (decoder != null) {
+            try {
+                decoder.stop();
+            } catch (IllegalStateException ignored) {
+                // Already in the error state, release() still frees it.
+            }
+            decoder.release();
+            decoder = null;
+        }
+        // Without a decoder no surface is used anymore.
+        int switched;
+        synchronized (surfaceSwitchCallbacks) {
+            switched = surfaceSwitchCallbacks.size();
+        }
+        confirmSurfaceSwitches(switched);
+        if (extractor != null) {
+            extractor.release();
+            extractor = null;
+        }
+        pendingOutputIndex = -1;
+        inputDone = false;
+        playing = false;
+        ended = false;
+        seekTargetUs = -1;
+        clockBasePtsUs = -1;
+        lastRenderNanos = 0;
+        resetLoopTiming();
+    }
+
+    private static int selectVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+
+/**
+ * {@link PlaybackEngine} backed by {@link MediaPlayer}. Works on every API level and also
+ * plays the audio track.
+ * <p>
+ * Setting the data source opens it and blocks on the media server, so it is done on a
+ * private thread together with {@link MediaPlayer#prepareAsync()}.
+ */
+public class MediaPlayerEngine implements PlaybackEngine {
+    private static final String TAG = "MediaPlayerEngine";
+
+    private final MediaPlayer mediaPlayer = new MediaPlayer();
+    private final Handler prepareHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Source set but not applied to the player yet. Main thread only.
+    private VideoSource pendingSource;
+    // Bumped by reset and release, so prepares posted before are dropped.
+    private volatile int generation;
+    private volatile OnErrorListener onErrorListener;
+
+    public MediaPlayerEngine() {
+        HandlerThread prepareThread = new HandlerThread(TAG);
+        prepareThread.start();
+        prepareHandler = new Handler(prepareThread.getLooper());
+    }
+
+    @Override
+    public void setSurface(Surface surface) {
+        mediaPlayer.setSurface(surface);
+    }
+
+    /**
+     * The player switches before {@link MediaPlayer#setSurface(Surface)} returns, so
+     * {@code onSwitched} runs right away.
+     */
+    @Override
+    public void setSurface(Surface surface, Runnable onSwitched) {
+        setSurface(surface);
+        if (onSwitched != null) {
+            onSwitched.run();
+        }
+    }
+
+    /**
+     * Stores the source. It is applied to the player on the prepare thread when preparing,
+     * so failures are reported to the {@link OnErrorListener}.
+     */
+    @Override
+    public void setDataSource(VideoSource source) throws IOException {
+        pendingSource = source;
+    }
+
+    @Override
+    public void prepareAsync() {
+        final VideoSource source = pendingSource;
+        final int generation = this.generation;
+        pendingSource = null;
+        prepareHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                prepare(source, generation);
+            }
+        });
+    }
+
+    /**
+     * Runs on the prepare thread. A null source prepares the one applied before again.
+     */
+    private void prepare(VideoSource source, int generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        try {
+            if (source != null) {
+                source.applyTo(mediaPlayer);
+                if (generation != this.generation) {
+                    // Reset while opening, the next source needs an idle player.
+                    mediaPlayer.reset();
+                    return;
+                }
+            }
+            mediaPlayer.prepareAsync();
+        } catch (IOException e) {
+            fail(e, generation, MediaPlayer.MEDIA_ERROR_IO);
+        } catch (RuntimeException e) {
+            // Also thrown when the player was reset or released meanwhile.
+            fail(e, generation, 0);
+        }
+    }
+
+    private void fail(Exception e, final int generation, final int extra) {
+        if (generation != this.generation) {
+            return;
+        }
+        Log.e(TAG, "Could not prepare", e);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                OnErrorListener listener = onErrorListener;
+                if (generation == MediaPlayerEngine.this.generation && listener != null) {
+                    listener.onError(MediaPlayerEngine.this, MediaPlayer.MEDIA_ERROR_UNKNOWN, extra);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void start() {
+        mediaPlayer.start();
+    }
+
+    @Override
+    public void pause() {
+        mediaPlayer.pause();
+    }
+
+    @Override
+    public void stop() {
+        mediaPlayer.stop();
+    }
+
+    @Override
+    public void seekTo(int msec) {
+        mediaPlayer.seekTo(msec);
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        mediaPlayer.setLooping(looping);
+    }
+
+    @Override
+    public boolean isLooping() {
+        return mediaPlayer.isLooping();
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return mediaPlayer.getCurrentPosition();
+    }
+
+    @Override
+    public void reset() {
+        generation++;
+        pendingSource = null;
+        mediaPlayer.reset();
+    }
+
+    @Override
+    public void release() {
+        generation++;
+        pendingSource = null;
+        mediaPlayer.release();
+        prepareHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    @Override
+    public void setOnPreparedListener(final OnPreparedListener listener) {
+        mediaPlayer.setOnPreparedListener(listener == null ? null : new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                listener.onPrepared(MediaPlayerEngine.this);
+            }
+        });
+    }
+
+    @Override
+    public void setOnCompletionListener(final OnCompletionListener listener) {
+        mediaPlayer.setOnCompletionListener(listener == null ? null : new MediaPlayer.OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayer mp) {
+                listener.onCompletion(MediaPlayerEngine.this);
+            }
+        });
+    }
+
+    @Override
+    public void setOnSeekCompleteListener(final OnSeekCompleteListener listener) {
+        mediaPlayer.setOnSeekCompleteListener(listener == null ? null : new MediaPlayer.OnSeekCompleteListener() {
+            @Override
+            public void onSeekComplete(MediaPlayer mp) {
+                listener.onSeekComplete(MediaPlayerEngine.this);
+            }
+        });
+    }
+
+    @Override
+    public void setOnErrorListener(final OnErrorListener listener) {
+        onErrorListener = listener;
+        mediaPlayer.setOnErrorListener(listener == null ? null : new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                return listener.onError(MediaPlayerEngine.this, what, extra);
+            }
+        });
+    }
+
+    public MediaPlayer getMediaPlayer() {
+        return mediaPlayer;
+    }
+}
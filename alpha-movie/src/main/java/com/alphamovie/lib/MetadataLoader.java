@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads video metadata on background threads. Opening a source may involve disk or
+ * network I/O, so it must never happen on the main thread.
+ * <p>
+ * Results are kept in a process-wide LRU cache keyed by {@link VideoSource}, so a source
+ * shown again, or prefetched before, is never parsed twice. Concurrent loads of the same
+ * source share one read.
+ */
+final class MetadataLoader {
+    private static final int THREAD_COUNT = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final int CACHE_SIZE = 64;
+    // MediaMetadataRetriever.METADATA_KEY_VIDEO_FRAME_COUNT, added in API 28.
+    private static final int METADATA_KEY_VIDEO_FRAME_COUNT = 32;
+
+    private static final ThreadPoolExecutor executor;
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private static final LruCache<VideoSource, VideoMetadata> cache =
+            new LruCache<VideoSource, VideoMetadata>(CACHE_SIZE);
+    // Guarded by itself.
+    private static final Map<VideoSource, PendingLoad> pendingLoads =
+            new HashMap<VideoSource, PendingLoad>();
+
+    static {
+        executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MetadataLoader " + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private MetadataLoader() {
+    }
+
+    /**
+     * Called on the main thread.
+     */
+    interface Callback {
+        void onLoaded(VideoMetadata metadata);
+
+        void onFailed(Exception e);
+    }
+
+    /**
+     * A load requested by one caller.
+     */
+    static final class Request {
+        private final PendingLoad load;
+        private final Callback callback;
+
+        private Request(PendingLoad load, Callback callback) {
+            this.load = load;
+            this.callback = callback;
+        }
+
+        /**
+         * Stops delivering the result to this request's callback. The read itself is only
+         * dropped if it hasn't started yet and nobody else is waiting for it. A callback
+         * already posted to the main thread may still run.
+         */
+        void cancel() {
+            synchronized (pendingLoads) {
+                load.callbacks.remove(callback);
+                if (load.callbacks.isEmpty() && !load.prefetch && !load.started) {
+                    load.future.cancel(false);
+                    pendingLoads.remove(load.source);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the cached metadata of {@code source}, or null.
+     */
+    static VideoMetadata getCached(VideoSource source) {
+        return cache.get(source);
+    }
+
+    /**
+     * Reads the metadata of {@code source} in the background, unless a read of it is
+     * already in progress.
+     *
+     * @param callback the callback, or null to only fill the cache.
+     */
+    static Request load(VideoSource source, Callback callback) {
+        synchronized (pendingLoads) {
+            PendingLoad load = pendingLoads.get(source);
+            if (load == null) {
+                load = new PendingLoad(source);
+                pendingLoads.put(source, load);
+                load.future = executor.submit(load);
+            }
+            if (callback != null) {
+                load.callbacks.add(callback);
+            } else {
+                load.prefetch = true;
+            }
+            return new Request(load, callback);
+        }
+    }
+
+    /**
+     * Reads the metadata on the calling thread and caches it.
+     */
+    static VideoMetadata retrieve(VideoSource source) throws IOException {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            source.applyTo(retriever);
+            int width = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+            int height = Integer.parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+            long durationMs = parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+            int rotation = Build.VERSION.SDK_INT >= 17 ? (int) parseLong(extractRotation(retriever)) : 0;
+            float frameRate = 0;
+            if (Build.VERSION.SDK_INT >= 28 && durationMs > 0) {
+                frameRate = parseLong(extractFrameCount(retriever)) * 1000f / durationMs;
+            }
+            VideoMetadata metadata = new VideoMetadata(width, height, rotation, durationMs, frameRate);
+            cache.put(source, metadata);
+            return metadata;
+        } finally {
+            retriever.release();
+        }
+    }
+
+    @TargetApi(17)
+    private static String extractRotation(MediaMetadataRetriever retriever) {
+        return retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+    }
+
+    @TargetApi(28)
+    private static String extractFrameCount(MediaMetadataRetriever retriever) {
+        return retriever.extractMetadata(METADATA_KEY_VIDEO_FRAME_COUNT);
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final class PendingLoad implements Runnable {
+        final VideoSource source;
+        // Guarded by pendingLoads.
+        final List<Callback> callbacks = new ArrayList<Callback>();
+        boolean prefetch;
+        // Set once the read began, it can't be dropped from then on.
+        boolean started;
+        Future<?> future;
+
+        PendingLoad(VideoSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public void run() {
+            synchronized (pendingLoads) {
+                // Cancelled while the executor was already picking it up.
+                if (future.isCancelled()) {
+                    return;
+                }
+                started = true;
+            }
+            VideoMetadata metadata = null;
+            Exception error = null;
+            try {
+                metadata = retrieve(source);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = e;
+            }
+
+            final List<Callback> waiting;
+            synchronized (pendingLoads) {
+                if (pendingLoads.get(source) == this) {
+                    pendingLoads.remove(source);
+                }
+                waiting = new ArrayList<Callback>(callbacks);
+            }
+            if (waiting.isEmpty()) {
+                return;
+            }
+            final VideoMetadata result = metadata;
+            final Exception failure = error;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : waiting) {
+                        if (result != null) {
+                            callback.onLoaded(result);
+                        } else {
+                            callback.onFailed(failure);
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+/**
+ * Chooses the smallest window config a textured quad with alpha needs: RGBA8888 without
+ * depth or stencil buffers. Optionally falls back to RGBA1010102 and then RGB565 on
+ * devices without one. Configs renderable with OpenGL ES 3.0 are preferred when a 3.0 context
+ * is requested, ES 2.0 ones are only taken if there are none.
+ * <p>
+ * The chosen config is cached per display for the lifetime of the process, so only the
+ * first context of a process queries EGL. Configs stay valid across
+ * {@code eglTerminate}, the driver's config list doesn't change.
+ */
+final class MinimalEglConfigChooser implements GLTextureView.EGLConfigChooser {
+    private static final String TAG = "MinimalEglConfigChooser";
+
+    static final int FALLBACK_RGBA1010102 = 1;
+    static final int FALLBACK_RGB565 = 2;
+
+    private static final int[][] CANDIDATES = {
+            // Red, green, blue, alpha, fallback flag enabling it or 0.
+            {8, 8, 8, 8, 0},
+            {10, 10, 10, 2, FALLBACK_RGBA1010102},
+            {5, 6, 5, 0, FALLBACK_RGB565},
+    };
+
+    private static final Map<EGLDisplay, Choice> cache = new HashMap<EGLDisplay, Choice>();
+
+    private static volatile int fallbacks;
+
+    private final int clientVersion;
+
+    private static final class Choice {
+        final int fallbacks;
+        final int clientVersion;
+        final EGLConfig config;
+
+        Choice(int fallbacks, int clientVersion, EGLConfig config) {
+            this.fallbacks = fallbacks;
+            this.clientVersion = clientVersion;
+            this.config = config;
+        }
+    }
+
+    /**
+     * @param clientVersion the OpenGL ES version contexts are requested with.
+     */
+    MinimalEglConfigChooser(int clientVersion) {
+        this.clientVersion = clientVersion;
+    }
+
+    /**
+     * Sets the {@code FALLBACK_*} formats allowed when there is no RGBA8888 config.
+     * Affects contexts created afterwards.
+     */
+    static void setFallbacks(int fallbacks) {
+        MinimalEglConfigChooser.fallbacks = fallbacks;
+    }
+
+    @Override
+    public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
+        int allowed = fallbacks;
+        synchronized (cache) {
+            Choice choice = cache.get(display);
+            if (choice != null && choice.fallbacks == allowed
+                    && choice.clientVersion == clientVersion) {
+                return choice.config;
+            }
+            EGLConfig config = null;
+            if (clientVersion >= 3) {
+                config = find(egl, display, allowed, GLTextureView.EGL_OPENGL_ES3_BIT_KHR);
+            }
+            if (config == null) {
+                config = find(egl, display, allowed, GLTextureView.EGL_OPENGL_ES2_BIT);
+            }
+            if (config == null) {
+                throw new IllegalArgumentException("No config chosen");
+            }
+            cache.put(display, new Choice(allowed, clientVersion, config));
+            return config;
+        }
+    }
+
+    /**
+     * @return the config of the first allowed candidate renderable as given, or null.
+     */
+    private static EGLConfig find(EGL10 egl, EGLDisplay display, int allowed, int renderableType) {
+        for (int[] candidate : CANDIDATES) {
+            if (candidate[4] != 0 && (allowed & candidate[4]) == 0) {
+                continue;
+            }
+            EGLConfig config = find(egl, display, candidate, renderableType);
+            if (config != null) {
+                return config;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the config with exactly the given color sizes and the smallest depth and
+     * stencil buffers, or null.
+     */
+    private static EGLConfig find(EGL10 egl, EGLDisplay display, int[] sizes, int renderableType) {
+        int[] spec = {
+                EGL10.EGL_RED_SIZE, sizes[0],
+                EGL10.EGL_GREEN_SIZE, sizes[1],
+                EGL10.EGL_BLUE_SIZE, sizes[2],
+                EGL10.EGL_ALPHA_SIZE, sizes[3],
+                EGL10.EGL_DEPTH_SIZE, 0,
+                EGL10.EGL_STENCIL_SIZE, 0,
+                EGL10.EGL_RENDERABLE_TYPE, renderableType,
+                EGL10.EGL_NONE};
+        int[] count = new int[1];
+        if (!egl.eglChooseConfig(display, spec, null, 0, count) || count[0] <= 0) {
+            return null;
+        }
+        EGLConfig[] configs = new EGLConfig[count[0]];
+        if (!egl.eglChooseConfig(display, spec, configs, configs.length, count)) {
+            return null;
+        }
+
+        int[] value = new int[1];
+        EGLConfig best = null;
+        int bestExtra = Integer.MAX_VALUE;
+        for (int i = 0; i < count[0]; i++) {
+            EGLConfig config = configs[i];
+            // Configs with more color bits are listed first, only exact sizes are taken.
+            if (attrib(egl, display, config, EGL10.EGL_RED_SIZE, value) != sizes[0]
+                    || attrib(egl, display, config, EGL10.EGL_GREEN_SIZE, value) != sizes[1]
+                    || attrib(egl, display, config, EGL10.EGL_BLUE_SIZE, value) != sizes[2]
+                    || attrib(egl, display, config, EGL10.EGL_ALPHA_SIZE, value) != sizes[3]) {
+                continue;
+            }
+            int extra = attrib(egl, display, config, EGL10.EGL_DEPTH_SIZE, value)
+                    + attrib(egl, display, config, EGL10.EGL_STENCIL_SIZE, value);
+            if (extra < bestExtra) {
+                best = config;
+                bestExtra = extra;
+                if (extra == 0) {
+                    break;
+                }
+            }
+        }
+        if (best != null && bestExtra > 0) {
+            Log.i(TAG, "No config without depth or stencil for " + sizes[0] + sizes[1]
+                    + sizes[2] + sizes[3] + ", using one with " + bestExtra + " extra bits");
+        }
+        return best;
+    }
+
+    private static int attrib(EGL10 egl, EGLDisplay display, EGLConfig config, int attribute,
+                              int[] value) {
+        return egl.eglGetConfigAttrib(display, config, attribute, value) ? value[0] : 0;
+    }
+}
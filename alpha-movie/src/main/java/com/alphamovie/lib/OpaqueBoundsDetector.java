@@ -0,0 +1,312 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Learns the region of a clip that ever has visible pixels, while the clip plays once.
+ * <p>
+ * Every new frame is drawn through the renderer's program into a small texture whose
+ * mipmaps average the alpha into a coarse grid. The grid is read back into pixel buffer
+ * objects and only mapped once a fence says the GPU is done with it, so the GL thread
+ * doesn't wait for the GPU. The union of the grid cells holding any alpha over a whole
+ * pass of the clip, widened by one cell, is the result.
+ * <p>
+ * Requires OpenGL ES 3.0, {@link #isSupported()} is false otherwise. Must only be used
+ * from the GL thread.
+ */
+@TargetApi(18)
+final class OpaqueBoundsDetector {
+    private static final int SAMPLE_SIZE = 128;
+    private static final int GRID_LEVEL = 3;
+    private static final int GRID_SIZE = SAMPLE_SIZE >> GRID_LEVEL;
+    private static final int GRID_BYTES = GRID_SIZE * GRID_SIZE * 4;
+    private static final int READBACK_COUNT = 3;
+    private static final long WAIT_TIMEOUT_NANOS = 100000000L;
+    /** A pass ending this close to the clip duration counts as complete. */
+    private static final long END_TOLERANCE_NANOS = 100000000L;
+    /** Longer gaps between frames are pauses or clock jumps, not video time. */
+    private static final long MAX_FRAME_GAP_NANOS = 100000000L;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_LEARNING = 1;
+    private static final int STATE_DONE = 2;
+
+    private int state = STATE_IDLE;
+    private boolean supported;
+
+    private int texture;
+    private int drawFramebuffer;
+    private int readFramebuffer;
+    private final int[] pixelBuffers = new int[READBACK_COUNT];
+    private final long[] fences = new long[READBACK_COUNT];
+    private int head;
+    private int count;
+
+    private long lastTimestampNanos;
+    private long sampledNanos;
+    private boolean passComplete;
+
+    // Union of the cells with alpha so far, in cells, max is exclusive.
+    private int minX;
+    private int minY;
+    private int maxX;
+    private int maxY;
+    private float[] bounds;
+
+    /**
+     * Called with a new EGL context current.
+     */
+    void onContextCreated() {
+        supported = Build.VERSION.SDK_INT >= 18 && isGles3();
+    }
+
+    boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Forgets the objects of a lost context without deleting them and starts over.
+     */
+    void onContextLost() {
+        texture = 0;
+        drawFramebuffer = 0;
+        readFramebuffer = 0;
+        for (int i = 0; i < READBACK_COUNT; i++) {
+            pixelBuffers[i] = 0;
+            fences[i] = 0;
+        }
+        count = 0;
+        reset();
+    }
+
+    /**
+     * Drops what was learned, the next frame starts a new pass.
+     */
+    void reset() {
+        while (count > 0) {
+            if (fences[head] != 0) {
+                GLES30.glDeleteSync(fences[head]);
+            }
+            fences[head] = 0;
+            head = (head + 1) % READBACK_COUNT;
+            count--;
+        }
+        state = STATE_IDLE;
+        bounds = null;
+        minX = GRID_SIZE;
+        minY = GRID_SIZE;
+        maxX = 0;
+        maxY = 0;
+    }
+
+    /**
+     * Frees all objects, must be called with the context current.
+     */
+    void release() {
+        reset();
+        if (texture != 0) {
+            GLES20.glDeleteTextures(1, new int[]{texture}, 0);
+            GLES20.glDeleteFramebuffers(2, new int[]{drawFramebuffer, readFramebuffer}, 0);
+            GLES20.glDeleteBuffers(READBACK_COUNT, pixelBuffers, 0);
+        }
+        onContextLost();
+    }
+
+    boolean isLearning() {
+        return state != STATE_DONE;
+    }
+
+    /**
+     * @return left, bottom, right and top of the learned region in texture coordinates of
+     * the quad, or null while still learning.
+     */
+    float[] getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Samples the frame drawn by {@code program} with its uniforms already set for the
+     * full quad. Leaves the target framebuffer bound and the viewport as given.
+     *
+     * @param clipNanos         duration of one pass of the clip, 0 if unknown to never finish.
+     * @param targetFramebuffer framebuffer the frame is drawn into afterwards, 0 for the surface.
+     */
+    void sample(GlState glState, int program, int positionHandle, int textureHandle,
+                long timestampNanos, long clipNanos, int targetFramebuffer, int viewportWidth,
+                int viewportHeight) {
+        if (state == STATE_DONE) {
+            return;
+        }
+        if (state == STATE_IDLE) {
+            state = STATE_LEARNING;
+            sampledNanos = 0;
+            passComplete = false;
+        } else if (timestampNanos < lastTimestampNanos) {
+            // Looped, every frame of the clip was seen.
+            passComplete = true;
+        } else {
+            sampledNanos += Math.min(timestampNanos - lastTimestampNanos, MAX_FRAME_GAP_NANOS);
+        }
+        lastTimestampNanos = timestampNanos;
+        if (clipNanos > 0 && sampledNanos >= clipNanos - END_TOLERANCE_NANOS) {
+            passComplete = true;
+        }
+
+        if (texture == 0) {
+            createObjects();
+        }
+        if (count == READBACK_COUNT) {
+            // The GPU is behind, wait for the oldest rather than missing a frame.
+            readOldest(true);
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, drawFramebuffer);
+        glState.viewport(0, 0, SAMPLE_SIZE, SAMPLE_SIZE);
+        glState.setBlendEnabled(false);
+        glState.useProgram(program);
+        glState.bindQuad(positionHandle, textureHandle);
+        glState.drawQuad();
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+        GLES20.glBindFramebuffer(GLES30.GL_READ_FRAMEBUFFER, readFramebuffer);
+        int slot = (head + count) % READBACK_COUNT;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[slot]);
+        GLES30.glReadPixels(0, 0, GRID_SIZE, GRID_SIZE, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        fences[slot] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        count++;
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, targetFramebuffer);
+        glState.viewport(0, 0, viewportWidth, viewportHeight);
+        glState.countCalls(9);
+
+        poll();
+    }
+
+    /**
+     * Reads back every grid the GPU has finished, and finishes the pass once all are in.
+     */
+    void poll() {
+        while (count > 0 && readOldest(false)) {
+            // Keep reading.
+        }
+        if (passComplete && count == 0 && state == STATE_LEARNING) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        state = STATE_DONE;
+        if (maxX <= minX || maxY <= minY) {
+            // Nothing visible in the whole pass, nothing has to be drawn.
+            bounds = new float[]{0f, 0f, 0f, 0f};
+            return;
+        }
+        // One cell of margin covers pixels the sampling resolution may have missed.
+        float cell = 1f / GRID_SIZE;
+        bounds = new float[]{
+                Math.max(0f, (minX - 1) * cell),
+                Math.max(0f, (minY - 1) * cell),
+                Math.min(1f, (maxX + 1) * cell),
+                Math.min(1f, (maxY + 1) * cell)};
+    }
+
+    /**
+     * @return false if {@code wait} is false and the oldest grid isn't ready yet.
+     */
+    private boolean readOldest(boolean wait) {
+        long fence = fences[head];
+        if (fence != 0) {
+            int result = GLES30.glClientWaitSync(fence, wait ? GLES30.GL_SYNC_FLUSH_COMMANDS_BIT : 0,
+                    wait ? WAIT_TIMEOUT_NANOS : 0);
+            if (result == GLES30.GL_TIMEOUT_EXPIRED && !wait) {
+                return false;
+            }
+            GLES30.glDeleteSync(fence);
+            fences[head] = 0;
+        }
+        // Without a fence the mapping waits for the GPU.
+
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[head]);
+        ByteBuffer grid = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                GRID_BYTES, GLES30.GL_MAP_READ_BIT);
+        if (grid != null) {
+            accumulate(grid);
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        head = (head + 1) % READBACK_COUNT;
+        count--;
+        return true;
+    }
+
+    private void accumulate(ByteBuffer grid) {
+        for (int y = 0; y < GRID_SIZE; y++) {
+            for (int x = 0; x < GRID_SIZE; x++) {
+                if (grid.get((y * GRID_SIZE + x) * 4 + 3) != 0) {
+                    minX = Math.min(minX, x);
+                    minY = Math.min(minY, y);
+                    maxX = Math.max(maxX, x + 1);
+                    maxY = Math.max(maxY, y + 1);
+                }
+            }
+        }
+    }
+
+    private void createObjects() {
+        int[] names = new int[READBACK_COUNT];
+        GLES20.glGenTextures(1, names, 0);
+        texture = names[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR_MIPMAP_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES30.glTexStorage2D(GLES20.GL_TEXTURE_2D, GRID_LEVEL + 1, GLES30.GL_RGBA8,
+                SAMPLE_SIZE, SAMPLE_SIZE);
+
+        GLES20.glGenFramebuffers(2, names, 0);
+        drawFramebuffer = names[0];
+        readFramebuffer = names[1];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, drawFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texture, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, readFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texture, GRID_LEVEL);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        GLES20.glGenBuffers(READBACK_COUNT, pixelBuffers, 0);
+        for (int i = 0; i < READBACK_COUNT; i++) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[i]);
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, GRID_BYTES, null, GLES30.GL_STREAM_READ);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    private static boolean isGles3() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES ")
+                && version.length() > 10 && version.charAt(10) >= '3';
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.graphics.SurfaceTexture;
+import android.os.Build;
+import android.view.Surface;
+
+/**
+ * Surface that is never drawn, for engines prepared away from any view.
+ * <p>
+ * A surface takes frames from one producer at a time, so an engine moving to a view's
+ * surface is prepared on a parking surface first, and an engine leaving it is moved to
+ * one before it is released or kept.
+ */
+final class ParkingSurface {
+
+    private final SurfaceTexture texture;
+    private final Surface surface;
+
+    ParkingSurface() {
+        // Never attached to a GL context, it only gives the decoder somewhere to output.
+        texture = new SurfaceTexture(0);
+        surface = new Surface(texture);
+    }
+
+    /**
+     * Whether the engine can move to another surface while prepared.
+     */
+    static boolean canMove(PlaybackEngine engine) {
+        return engine instanceof MediaPlayerEngine
+                || (engine instanceof MediaCodecEngine && Build.VERSION.SDK_INT >= 23);
+    }
+
+    Surface getSurface() {
+        return surface;
+    }
+
+    void release() {
+        surface.release();
+        texture.release();
+    }
+
+    /**
+     * @return a callback for {@link PlaybackEngine#setSurface(Surface, Runnable)} that
+     * releases this surface once the engine has left it.
+     */
+    Runnable releaseCallback() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                release();
+            }
+        };
+    }
+
+    /**
+     * Releases {@code engine}, and this surface once the engine has let go of it.
+     */
+    void releaseWith(PlaybackEngine engine) {
+        engine.setSurface(null, releaseCallback());
+        engine.release();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.view.Surface;
+
+import java.io.IOException;
+
+/**
+ * Decodes a video into a {@link Surface}.
+ * <p>
+ * The calling conventions follow {@link android.media.MediaPlayer}: a data source is set,
+ * the engine is prepared asynchronously, and may then be started, paused, seeked and
+ * stopped. A stopped engine has to be prepared again. All methods must be called from the
+ * main thread and all listeners are invoked on the main thread.
+ */
+public interface PlaybackEngine {
+
+    /**
+     * Sets the surface frames are rendered to. The engine doesn't take ownership of it,
+     * the caller has to keep it valid until it is replaced or the engine is released.
+     */
+    void setSurface(Surface surface);
+
+    /**
+     * Like {@link #setSurface(Surface)}, without waiting for the engine to switch.
+     * {@code onSwitched} runs on the main thread once the engine no longer renders into the
+     * previous surface, possibly before this returns. Only then may that surface be released
+     * or handed to another engine. Must not be called after {@link #release()}.
+     */
+    void setSurface(Surface surface, Runnable onSwitched);
+
+    /**
+     * Opening a source may block, so engines only store it here and open it in the
+     * background when preparing. Failures are reported to the {@link OnErrorListener}.
+     */
+    void setDataSource(VideoSource source) throws IOException;
+
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    void seekTo(int msec);
+
+    void setLooping(boolean looping);
+
+    boolean isLooping();
+
+    int getCurrentPosition();
+
+    /**
+     * Returns the engine to the state it had right after creation.
+     */
+    void reset();
+
+    void release();
+
+    void setOnPreparedListener(OnPreparedListener listener);
+
+    void setOnCompletionListener(OnCompletionListener listener);
+
+    void setOnSeekCompleteListener(OnSeekCompleteListener listener);
+
+    void setOnErrorListener(OnErrorListener listener);
+
+    interface OnPreparedListener {
+        void onPrepared(PlaybackEngine engine);
+    }
+
+    interface OnCompletionListener {
+        void onCompletion(PlaybackEngine engine);
+    }
+
+    interface OnSeekCompleteListener {
+        void onSeekComplete(PlaybackEngine engine);
+    }
+
+    interface OnErrorListener {
+        /**
+         * @param what  one of the {@code MediaPlayer.MEDIA_ERROR_*} constants.
+         * @param extra an implementation specific error code.
+         * @return true if the error was handled.
+         */
+        boolean onError(PlaybackEngine engine, int what, int extra);
+    }
+}
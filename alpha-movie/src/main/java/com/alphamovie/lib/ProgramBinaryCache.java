@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of linked program binaries (OpenGL ES 3.0 {@code glGetProgramBinary}).
+ * <p>
+ * Entries are named by a hash of the normalized shader sources together with the GL
+ * vendor, renderer and driver version strings, so a driver update never loads an old
+ * binary. Every file also stores the full key and a CRC of the binary, and a file that
+ * fails validation or linking is deleted. When the driver changes, all files written by
+ * the previous driver are removed.
+ * <p>
+ * Must only be used from a thread with a current EGL context.
+ */
+@TargetApi(18)
+final class ProgramBinaryCache {
+    private static final String TAG = "ProgramBinaryCache";
+
+    private static final String DIRECTORY_NAME = "alpha-movie-programs";
+    private static final String DRIVER_STAMP_FILE = "driver";
+    private static final String ENTRY_SUFFIX = ".bin";
+
+    private static final int MAGIC = 0x414d5042; // "AMPB"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAX_BINARY_LENGTH = 4 * 1024 * 1024;
+
+    private static final Object lock = new Object();
+    private static String checkedDriver;
+
+    private ProgramBinaryCache() {
+    }
+
+    /**
+     * @return true if the current context can save and load program binaries.
+     */
+    static boolean isSupported() {
+        if (Build.VERSION.SDK_INT < 18) {
+            return false;
+        }
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version == null || !version.startsWith("OpenGL ES ") || version.length() <= 10
+                || version.charAt(10) < '3') {
+            return false;
+        }
+        int[] formats = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        return formats[0] > 0;
+    }
+
+    /**
+     * Marks the program, before it is linked, so that the driver keeps its binary around.
+     */
+    static void prepareForRetrieval(int program) {
+        GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+    }
+
+    /**
+     * Creates a program from a cached binary.
+     *
+     * @return the linked program or 0 if there is no valid entry.
+     */
+    static int load(File cacheDir, String normalizedSources) {
+        String key = buildKey(normalizedSources);
+        File file = entryFile(cacheDir, key);
+        if (file == null || !file.isFile()) {
+            return 0;
+        }
+
+        int binaryFormat;
+        byte[] binary;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) {
+                throw new IOException("stale entry");
+            }
+            binaryFormat = in.readInt();
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_BINARY_LENGTH) {
+                throw new IOException("bad length " + length);
+            }
+            long crc = in.readLong();
+            binary = new byte[length];
+            in.readFully(binary);
+            CRC32 checksum = new CRC32();
+            checksum.update(binary);
+            if (checksum.getValue() != crc) {
+                throw new IOException("checksum mismatch");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping cached program " + file.getName() + ": " + e.getMessage());
+            file.delete();
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+        buffer.put(binary).position(0);
+
+        int program = GLES20.glCreateProgram();
+        if (program == 0) {
+            return 0;
+        }
+        GLES30.glProgramBinary(program, binaryFormat, buffer, binary.length);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || linkStatus[0] != GLES20.GL_TRUE) {
+            // The driver rejected the binary, e.g. after an update that kept the version string.
+            Log.w(TAG, "Cached program " + file.getName() + " rejected by driver");
+            GLES20.glDeleteProgram(program);
+            file.delete();
+            return 0;
+        }
+        return program;
+    }
+
+    /**
+     * Writes the binary of a freshly linked program to the cache.
+     */
+    static void store(File cacheDir, String normalizedSources, int program) {
+        String key = buildKey(normalizedSources);
+        File file = entryFile(cacheDir, key);
+        if (file == null) {
+            return;
+        }
+
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0 || length[0] > MAX_BINARY_LENGTH) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        int[] written = new int[1];
+        int[] binaryFormat = new int[1];
+        GLES30.glGetProgramBinary(program, length[0], written, 0, binaryFormat, 0, buffer);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || written[0] <= 0) {
+            return;
+        }
+        byte[] binary = new byte[written[0]];
+        buffer.position(0);
+        buffer.get(binary);
+        CRC32 checksum = new CRC32();
+        checksum.update(binary);
+
+        // Write to a temporary file first so a crash never leaves a truncated entry behind.
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeInt(binaryFormat[0]);
+            out.writeInt(binary.length);
+            out.writeLong(checksum.getValue());
+            out.write(binary);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store program binary: " + e.getMessage());
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static String driverId() {
+        return GLES20.glGetString(GLES20.GL_VENDOR) + '|'
+                + GLES20.glGetString(GLES20.GL_RENDERER) + '|'
+                + GLES20.glGetString(GLES20.GL_VERSION) + '|'
+                + Build.FINGERPRINT;
+    }
+
+    private static String buildKey(String normalizedSources) {
+        return driverId() + '|' + sha1(normalizedSources);
+    }
+
+    private static File entryFile(File cacheDir, String key) {
+        File directory = new File(cacheDir, DIRECTORY_NAME);
+        synchronized (lock) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                return null;
+            }
+            invalidateIfDriverChanged(directory);
+        }
+        return new File(directory, sha1(key) + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Deletes every entry when the stored driver stamp doesn't match the current driver.
+     * Requires {@link #lock}.
+     */
+    private static void invalidateIfDriverChanged(File directory) {
+        String driver = driverId();
+        if (driver.equals(checkedDriver)) {
+            return;
+        }
+        File stamp = new File(directory, DRIVER_STAMP_FILE);
+        String stored = null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(stamp));
+            stored = in.readUTF();
+        } catch (IOException ignored) {
+            // Missing or unreadable stamp, treat as a driver change.
+        } finally {
+            closeQuietly(in);
+        }
+
+        if (!driver.equals(stored)) {
+            File[] entries = directory.listFiles();
+            if (entries != null) {
+                for (File entry : entries) {
+                    entry.delete();
+                }
+            }
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new FileOutputStream(stamp));
+                out.writeUTF(driver);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write driver stamp: " + e.getMessage());
+            } finally {
+                closeQuietly(out);
+            }
+        }
+        checkedDriver = driver;
+    }
+
+    private static String sha1(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(value.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * Process-wide cache of linked shader programs.
+ * <p>
+ * Program objects belong to the EGL context (share group) they were created in, so
+ * entries are keyed by the current context and by the normalized shader sources.
+ * Views rendering through the same context never compile the same program twice.
+ * All entries of a context are dropped by {@link #releaseContext(EGLContext)} right
+ * before the context is destroyed.
+ * <p>
+ * When a binary cache directory is given, programs missing from memory are first looked
+ * up in the {@link ProgramBinaryCache} and newly linked programs are written to it.
+ */
+final class ProgramCache {
+    private static final String TAG = "ProgramCache";
+
+    private static final Map<EGLContext, Map<String, Integer>> programs =
+            new HashMap<EGLContext, Map<String, Integer>>();
+
+    private ProgramCache() {
+    }
+
+    /**
+     * Returns a linked program for the given sources, compiling it in the current
+     * context if needed. Must be called on a thread with a current EGL context.
+     *
+     * @param binaryCacheDir directory for cached program binaries or null to always compile.
+     * @return the program name or 0 if compilation or linking failed.
+     */
+    static int obtain(String vertexSource, String fragmentSource, File binaryCacheDir) {
+        EGLContext context = ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+        String key = normalize(vertexSource) + '\u0000' + normalize(fragmentSource);
+        boolean useBinaryCache = binaryCacheDir != null && ProgramBinaryCache.isSupported();
+
+        synchronized (programs) {
+            Map<String, Integer> contextPrograms = programs.get(context);
+            if (contextPrograms == null) {
+                contextPrograms = new HashMap<String, Integer>();
+                programs.put(context, contextPrograms);
+            }
+            Integer program = contextPrograms.get(key);
+            if (program != null && GLES20.glIsProgram(program)) {
+                return program;
+            }
+
+            int created = 0;
+            if (useBinaryCache) {
+                created = ProgramBinaryCache.load(binaryCacheDir, key);
+            }
+            if (created == 0) {
+                created = createProgram(vertexSource, fragmentSource, useBinaryCache);
+                if (created != 0 && useBinaryCache) {
+                    ProgramBinaryCache.store(binaryCacheDir, key, created);
+                }
+            }
+            if (created != 0) {
+                contextPrograms.put(key, created);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * Forgets all programs of the context. The programs themselves are freed together
+     * with the context.
+     */
+    static void releaseContext(EGLContext context) {
+        synchronized (programs) {
+            programs.remove(context);
+        }
+    }
+
+    /**
+     * Strips comments and collapses whitespace so that sources differing only in
+     * formatting share one program.
+     */
+    static String normalize(String source) {
+        StringBuilder builder = new StringBuilder(source.length());
+        boolean pendingSpace = false;
+        int length = source.length();
+        for (int i = 0; i < length; i++) {
+            char c = source.charAt(i);
+            if (c == '/' && i + 1 < length && source.charAt(i + 1) == '/') {
+                while (i < length && source.charAt(i) != '\n') {
+                    i++;
+                }
+                pendingSpace = true;
+            } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '*') {
+                int end = source.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 1;
+                pendingSpace = true;
+            } else if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+            } else {
+                if (pendingSpace && builder.length() > 0) {
+                    builder.append(' ');
+                }
+                pendingSpace = false;
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static int loadShader(int shaderType, String source) {
+        int shader = GLES20.glCreateShader(shaderType);
+        if (shader != 0) {
+            GLES20.glShaderSource(shader, source);
+            GLES20.glCompileShader(shader);
+            int[] compiled = new int[1];
+            GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+            if (compiled[0] == 0) {
+                Log.e(TAG, "Could not compile shader " + shaderType + ":");
+                Log.e(TAG, GLES20.glGetShaderInfoLog(shader));
+                GLES20.glDeleteShader(shader);
+                shader = 0;
+            }
+        }
+        return shader;
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource,
+                                     boolean retrievable) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        if (vertexShader == 0) {
+            return 0;
+        }
+        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        if (pixelShader == 0) {
+            GLES20.glDeleteShader(vertexShader);
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        if (program != 0) {
+            GLES20.glAttachShader(program, vertexShader);
+            VideoRenderer.checkGlError("glAttachShader");
+            GLES20.glAttachShader(program, pixelShader);
+            VideoRenderer.checkGlError("glAttachShader");
+            if (retrievable) {
+                ProgramBinaryCache.prepareForRetrieval(program);
+            }
+            GLES20.glLinkProgram(program);
+            int[] linkStatus = new int[1];
+            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+            if (linkStatus[0] != GLES20.GL_TRUE) {
+                Log.e(TAG, "Could not link program: ");
+                Log.e(TAG, GLES20.glGetProgramInfoLog(program));
+                GLES20.glDeleteProgram(program);
+                program = 0;
+            }
+        }
+        // Shaders are only flagged for deletion, they live as long as the program does.
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(pixelShader);
+        return program;
+    }
+}
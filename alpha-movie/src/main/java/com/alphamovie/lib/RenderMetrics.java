@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Snapshot of the render thread timings of a {@link GLTextureView}, see
+ * {@link GLTextureView#getRenderMetrics()}.
+ * <p>
+ * Percentiles are taken over the most recent {@link #WINDOW_SIZE} samples of each metric
+ * and are -1 while there are none, e.g. for GPU time when the device has no
+ * {@code GL_EXT_disjoint_timer_query}.
+ */
+public final class RenderMetrics {
+    public static final int WINDOW_SIZE = 256;
+
+    /** CPU time spent in {@code Renderer.onDrawFrame}. */
+    public static final int METRIC_DRAW = 0;
+    /** Time spent in {@code eglSwapBuffers}. */
+    public static final int METRIC_SWAP = 1;
+    /** Time from {@code queueEvent} until the render thread ran the event. */
+    public static final int METRIC_EVENT_LATENCY = 2;
+    /** GPU time of the commands issued by {@code Renderer.onDrawFrame}. */
+    public static final int METRIC_GPU = 3;
+
+    static final int METRIC_COUNT = 4;
+
+    private final long frameCount;
+    private final long[] sampleCounts;
+    private final long[] p50;
+    private final long[] p95;
+    private final long[] p99;
+
+    RenderMetrics(long frameCount, long[] sampleCounts, long[] p50, long[] p95, long[] p99) {
+        this.frameCount = frameCount;
+        this.sampleCounts = sampleCounts;
+        this.p50 = p50;
+        this.p95 = p95;
+        this.p99 = p99;
+    }
+
+    /**
+     * @return frames drawn since metrics were enabled or reset.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return samples recorded for the metric since metrics were enabled or reset.
+     */
+    public long getSampleCount(int metric) {
+        return sampleCounts[metric];
+    }
+
+    public long getP50Nanos(int metric) {
+        return p50[metric];
+    }
+
+    public long getP95Nanos(int metric) {
+        return p95[metric];
+    }
+
+    public long getP99Nanos(int metric) {
+        return p99[metric];
+    }
+
+    @Override
+    public String toString() {
+        return "RenderMetrics{frames=" + frameCount
+                + ", draw=" + format(METRIC_DRAW)
+                + ", swap=" + format(METRIC_SWAP)
+                + ", eventLatency=" + format(METRIC_EVENT_LATENCY)
+                + ", gpu=" + format(METRIC_GPU) + "}";
+    }
+
+    private String format(int metric) {
+        return p50[metric] + "/" + p95[metric] + "/" + p99[metric] + "ns";
+    }
+}
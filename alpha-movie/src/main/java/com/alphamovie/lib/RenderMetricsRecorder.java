@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.util.Arrays;
+
+/**
+ * Collects render thread timings into fixed rings of samples. Recording never allocates,
+ * percentiles are only computed when a {@link RenderMetrics} snapshot is taken.
+ */
+final class RenderMetricsRecorder {
+
+    // Guarded by this.
+    private final long[][] samples = new long[RenderMetrics.METRIC_COUNT][RenderMetrics.WINDOW_SIZE];
+    private final long[] sampleCounts = new long[RenderMetrics.METRIC_COUNT];
+    private final long[] sorted = new long[RenderMetrics.WINDOW_SIZE];
+    private long frameCount;
+
+    synchronized void record(int metric, long nanos) {
+        long count = sampleCounts[metric]++;
+        samples[metric][(int) (count % RenderMetrics.WINDOW_SIZE)] = nanos;
+    }
+
+    synchronized void recordFrame(long drawNanos, long swapNanos) {
+        frameCount++;
+        record(RenderMetrics.METRIC_DRAW, drawNanos);
+        record(RenderMetrics.METRIC_SWAP, swapNanos);
+    }
+
+    synchronized void reset() {
+        frameCount = 0;
+        Arrays.fill(sampleCounts, 0);
+    }
+
+    synchronized RenderMetrics snapshot() {
+        long[] p50 = new long[RenderMetrics.METRIC_COUNT];
+        long[] p95 = new long[RenderMetrics.METRIC_COUNT];
+        long[] p99 = new long[RenderMetrics.METRIC_COUNT];
+        for (int metric = 0; metric < RenderMetrics.METRIC_COUNT; metric++) {
+            int size = (int) Math.min(sampleCounts[metric], RenderMetrics.WINDOW_SIZE);
+            if (size == 0) {
+                p50[metric] = p95[metric] = p99[metric] = -1;
+                continue;
+            }
+            System.arraycopy(samples[metric], 0, sorted, 0, size);
+            Arrays.sort(sorted, 0, size);
+            p50[metric] = sorted[percentileIndex(size, 50)];
+            p95[metric] = sorted[percentileIndex(size, 95)];
+            p99[metric] = sorted[percentileIndex(size, 99)];
+        }
+        return new RenderMetrics(frameCount, sampleCounts.clone(), p50, p95, p99);
+    }
+
+    private static int percentileIndex(int size, int percentile) {
+        // Nearest rank.
+        return Math.max(0, (size * percentile + 99) / 100 - 1);
+    }
+
+    /**
+     * Wraps an event queued to the render thread to measure how long it waited.
+     */
+    Runnable timeEvent(final Runnable event) {
+        final long queuedAt = System.nanoTime();
+        return new Runnable() {
+            @Override
+            public void run() {
+                record(RenderMetrics.METRIC_EVENT_LATENCY, System.nanoTime() - queuedAt);
+                event.run();
+            }
+        };
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Picks the render scale from measured frame times.
+ * <p>
+ * Frames that keep taking longer than the target lower the scale by a step. Frames can't
+ * finish faster than the display refresh, so the governor can't tell how much headroom
+ * there is. Instead, after a while on target it probes one smaller step up. A probe that
+ * makes frames late again is undone, and the next probe waits twice as long.
+ * <p>
+ * Frame times are fed on the GL thread, the policy may be changed from any thread.
+ */
+final class ResolutionGovernor {
+    static final long DEFAULT_TARGET_FRAME_NANOS = 16666667L;
+    static final float DEFAULT_MIN_SCALE = 0.5f;
+
+    private static final float STEP_DOWN = 0.1f;
+    private static final float STEP_UP = 0.05f;
+    /** Frames the smoothed time has to stay over the target before stepping down. */
+    private static final int SLOW_FRAMES = 10;
+    private static final int PROBE_FRAMES = 120;
+    private static final int MAX_PROBE_FRAMES = PROBE_FRAMES * 8;
+    private static final float SLOW_FACTOR = 1.2f;
+    private static final float ON_TARGET_FACTOR = 1.05f;
+
+    private volatile long targetFrameNanos = DEFAULT_TARGET_FRAME_NANOS;
+    private volatile float minScale = DEFAULT_MIN_SCALE;
+    private volatile float scale = 1f;
+
+    private long smoothedNanos;
+    private int slowFrames;
+    private int onTargetFrames;
+    private int probeFrames = PROBE_FRAMES;
+    private boolean probing;
+
+    /**
+     * @param targetFrameNanos frame time to stay within, usually the display refresh period.
+     * @param minScale         lowest scale to go down to, from 0 to 1.
+     */
+    void setPolicy(long targetFrameNanos, float minScale) {
+        if (targetFrameNanos <= 0 || minScale <= 0f || minScale > 1f) {
+            throw new IllegalArgumentException("targetFrameNanos or minScale");
+        }
+        this.targetFrameNanos = targetFrameNanos;
+        this.minScale = minScale;
+    }
+
+    long getTargetFrameNanos() {
+        return targetFrameNanos;
+    }
+
+    float getMinScale() {
+        return minScale;
+    }
+
+    /**
+     * @return the current scale, from the policy's minimum to 1.
+     */
+    float getScale() {
+        return scale;
+    }
+
+    /**
+     * Goes back to full scale and forgets the measurements.
+     */
+    void reset() {
+        scale = 1f;
+        smoothedNanos = 0;
+        slowFrames = 0;
+        onTargetFrames = 0;
+        probeFrames = PROBE_FRAMES;
+        probing = false;
+    }
+
+    void onFrame(long frameNanos) {
+        long target = targetFrameNanos;
+        float min = minScale;
+        smoothedNanos = smoothedNanos == 0 ? frameNanos : smoothedNanos + (frameNanos - smoothedNanos) / 8;
+
+        if (smoothedNanos > target * SLOW_FACTOR) {
+            onTargetFrames = 0;
+            if (++slowFrames < SLOW_FRAMES) {
+                return;
+            }
+            slowFrames = 0;
+            if (probing) {
+                // The last step up was too much, wait longer before trying again.
+                probeFrames = Math.min(probeFrames * 2, MAX_PROBE_FRAMES);
+                probing = false;
+            }
+            if (scale > min) {
+                scale = Math.max(min, scale - STEP_DOWN);
+                // Give the new scale a fresh start.
+                smoothedNanos = target;
+            }
+        } else if (smoothedNanos <= target * ON_TARGET_FACTOR) {
+            slowFrames = 0;
+            if (++onTargetFrames < probeFrames) {
+                return;
+            }
+            onTargetFrames = 0;
+            if (probing) {
+                // The probe held, the next one can come sooner again.
+                probeFrames = PROBE_FRAMES;
+            }
+            probing = scale < 1f;
+            scale = Math.max(min, Math.min(1f, scale + STEP_UP));
+        } else {
+            slowFrames = 0;
+            onTargetFrames = 0;
+        }
+    }
+}
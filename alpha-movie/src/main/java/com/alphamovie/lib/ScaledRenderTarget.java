@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.opengl.GLES20;
+
+/**
+ * Offscreen texture the video is drawn into at a reduced resolution, and then stretched
+ * over the whole surface with linear filtering.
+ * <p>
+ * The copy writes every pixel of the surface as is, blending is off, so straight and
+ * premultiplied output both come out as if drawn directly. Must only be used from the
+ * GL thread.
+ */
+final class ScaledRenderTarget {
+
+    private static final String UPSCALE_VERTEX_SHADER =
+            "attribute vec4 aPosition;\n" +
+                    "attribute vec4 aTextureCoord;\n" +
+                    "varying vec2 vTextureCoord;\n" +
+                    "void main() {\n" +
+                    "  gl_Position = aPosition;\n" +
+                    "  vTextureCoord = aTextureCoord.xy;\n" +
+                    "}\n";
+
+    private static final String UPSCALE_FRAGMENT_SHADER = "precision mediump float;\n"
+            + "varying vec2 vTextureCoord;\n"
+            + "uniform sampler2D sTexture;\n"
+            + "void main() {\n"
+            + "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n"
+            + "}\n";
+
+    private int texture;
+    private int framebuffer;
+    private int width;
+    private int height;
+
+    private int upscaleProgram;
+    private int upscalePositionHandle;
+    private int upscaleTextureHandle;
+
+    int getFramebuffer() {
+        return framebuffer;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    boolean isAllocated() {
+        return texture != 0;
+    }
+
+    /**
+     * Makes the target the given size, binds it and sets the viewport to it.
+     */
+    void bind(GlState glState, int width, int height) {
+        if (texture == 0) {
+            int[] names = new int[1];
+            GLES20.glGenTextures(1, names, 0);
+            texture = names[0];
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glGenFramebuffers(1, names, 0);
+            framebuffer = names[0];
+            this.width = 0;
+            this.height = 0;
+        }
+        if (this.width != width || this.height != height) {
+            this.width = width;
+            this.height = height;
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, texture, 0);
+        } else {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        }
+        glState.viewport(0, 0, width, height);
+        glState.countCalls(1);
+    }
+
+    /**
+     * Stretches the target over the default framebuffer of the given size.
+     */
+    void present(GlState glState, int surfaceWidth, int surfaceHeight) {
+        int program = ProgramCache.obtain(UPSCALE_VERTEX_SHADER, UPSCALE_FRAGMENT_SHADER, null);
+        if (program == 0) {
+            return;
+        }
+        if (program != upscaleProgram) {
+            upscaleProgram = program;
+            upscalePositionHandle = GLES20.glGetAttribLocation(program, "aPosition");
+            upscaleTextureHandle = GLES20.glGetAttribLocation(program, "aTextureCoord");
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        glState.viewport(0, 0, surfaceWidth, surfaceHeight);
+        // Every pixel is overwritten, the clear only spares tiled GPUs loading the old buffer.
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        glState.setBlendEnabled(false);
+        glState.useProgram(program);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        glState.bindQuad(upscalePositionHandle, upscaleTextureHandle);
+        glState.drawQuad();
+        glState.countCalls(3);
+    }
+
+    /**
+     * Forgets the objects of a lost context without deleting them.
+     */
+    void onContextLost() {
+        texture = 0;
+        framebuffer = 0;
+        width = 0;
+        height = 0;
+        upscaleProgram = 0;
+    }
+
+    /**
+     * Frees the target, must be called with the context current.
+     */
+    void release() {
+        if (texture != 0) {
+            GLES20.glDeleteTextures(1, new int[]{texture}, 0);
+            GLES20.glDeleteFramebuffers(1, new int[]{framebuffer}, 0);
+        }
+        onContextLost();
+    }
+}
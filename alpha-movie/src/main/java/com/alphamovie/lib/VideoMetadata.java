@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+/**
+ * Properties of a video read from its container.
+ */
+public final class VideoMetadata {
+    private final int width;
+    private final int height;
+    private final int rotation;
+    private final long durationMs;
+    private final float frameRate;
+
+    VideoMetadata(int width, int height, int rotation, long durationMs, float frameRate) {
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        this.durationMs = durationMs;
+        this.frameRate = frameRate;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return clockwise rotation in degrees the video has to be shown with.
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * @return width of the video as it is shown, i.e. after rotation.
+     */
+    public int getDisplayWidth() {
+        return rotation % 180 == 0 ? width : height;
+    }
+
+    /**
+     * @return height of the video as it is shown, i.e. after rotation.
+     */
+    public int getDisplayHeight() {
+        return rotation % 180 == 0 ? height : width;
+    }
+
+    /**
+     * @return the duration in milliseconds, or 0 if unknown.
+     */
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * @return the average frame rate, or 0 if unknown.
+     */
+    public float getFrameRate() {
+        return frameRate;
+    }
+}
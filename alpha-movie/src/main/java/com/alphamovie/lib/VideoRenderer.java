@@ -23,10 +23,10 @@ import android.opengl.Matrix;
 import android.util.Log;
 import android.view.Surface;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.util.Locale;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -36,145 +36,595 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
 
     private static final int COLOR_MAX_VALUE = 255;
 
-    private static final int FLOAT_SIZE_BYTES = 4;
-    private static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
-    private static final int TRIANGLE_VERTICES_DATA_POS_OFFSET = 0;
-    private static final int TRIANGLE_VERTICES_DATA_UV_OFFSET = 3;
-    private final float[] triangleVerticesData = {
-            // X, Y, Z, U, V
-            -1.0f, -1.0f, 0, 0.f, 0.f,
-            1.0f, -1.0f, 0, 1.f, 0.f,
-            -1.0f,  1.0f, 0, 0.f, 1.f,
-            1.0f,  1.0f, 0, 1.f, 1.f,
-    };
-
-    private FloatBuffer triangleVertices;
-
+    /**
+     * {@code uQuadRegion} is the part of the frame covered by the quad as scale (xy) and
+     * offset (zw) in texture space, {@code uMVPMatrix} places the quad over that part.
+     */
     private final String vertexShader =
             "uniform mat4 uMVPMatrix;\n" +
                     "uniform mat4 uSTMatrix;\n" +
+                    "uniform vec4 uQuadRegion;\n" +
                     "attribute vec4 aPosition;\n" +
                     "attribute vec4 aTextureCoord;\n" +
                     "varying vec2 vTextureCoord;\n" +
                     "void main() {\n" +
                     "  gl_Position = uMVPMatrix * aPosition;\n" +
-                    "  vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n" +
+                    "  vec2 uv = aTextureCoord.xy * uQuadRegion.xy + uQuadRegion.zw;\n" +
+                    "  vTextureCoord = (uSTMatrix * vec4(uv, 0.0, 1.0)).xy;\n" +
                     "}\n";
 
     private final String alphaShader = "#extension GL_OES_EGL_image_external : require\n"
             + "precision mediump float;\n"
             + "varying vec2 vTextureCoord;\n"
             + "uniform samplerExternalOES sTexture;\n"
-            + "varying mediump float text_alpha_out;\n"
+            + "uniform vec3 uKeyColor;\n"
+            + "uniform float uKeyTolerance;\n"
             + "void main() {\n"
             + "  vec4 color = texture2D(sTexture, vTextureCoord);\n"
-            + "  float red = %f;\n"
-            + "  float green = %f;\n"
-            + "  float blue = %f;\n"
-            + "  float accuracy = %f;\n"
-            + "  if (abs(color.r - red) <= accuracy && abs(color.g - green) <= accuracy && abs(color.b - blue) <= accuracy) {\n"
-            + "      gl_FragColor = vec4(color.r, color.g, color.b, 0.0);\n"
-            + "  } else {\n"
-            + "      gl_FragColor = vec4(color.r, color.g, color.b, 1.0);\n"
-            + "  }\n"
+            + "  vec3 distance = abs(color.rgb - uKeyColor);\n"
+            + "  float keyed = step(max(max(distance.r, distance.g), distance.b), uKeyTolerance);\n"
+            + "  gl_FragColor = vec4(color.rgb, 1.0 - keyed);\n"
+            + "}\n";
+
+    /**
+     * Packed-alpha shaders for videos carrying color in one half of the frame and a
+     * grayscale matte in the other. Both halves are sampled in one pass, the regions are
+     * given as scale (xy) and offset (zw) in texture space before {@code uSTMatrix}.
+     */
+    private final String packedVertexShader =
+            "uniform mat4 uMVPMatrix;\n" +
+                    "uniform mat4 uSTMatrix;\n" +
+                    "uniform vec4 uColorRegion;\n" +
+                    "uniform vec4 uAlphaRegion;\n" +
+                    "uniform vec4 uQuadRegion;\n" +
+                    "attribute vec4 aPosition;\n" +
+                    "attribute vec4 aTextureCoord;\n" +
+                    "varying vec2 vColorCoord;\n" +
+                    "varying vec2 vAlphaCoord;\n" +
+                    "void main() {\n" +
+                    "  gl_Position = uMVPMatrix * aPosition;\n" +
+                    "  vec2 uv = aTextureCoord.xy * uQuadRegion.xy + uQuadRegion.zw;\n" +
+                    "  vColorCoord = (uSTMatrix * vec4(uv * uColorRegion.xy + uColorRegion.zw, 0.0, 1.0)).xy;\n" +
+                    "  vAlphaCoord = (uSTMatrix * vec4(uv * uAlphaRegion.xy + uAlphaRegion.zw, 0.0, 1.0)).xy;\n" +
+                    "}\n";
+
+    private final String packedAlphaShader = "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "varying vec2 vColorCoord;\n"
+            + "varying vec2 vAlphaCoord;\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "void main() {\n"
+            + "  vec3 color = texture2D(sTexture, vColorCoord).rgb;\n"
+            + "  float alpha = dot(texture2D(sTexture, vAlphaCoord).rgb, vec3(0.299, 0.587, 0.114));\n"
+            + "  gl_FragColor = vec4(color, alpha);\n"
             + "}\n";
 
-    private double accuracy = 0.95;
+    static final int PACKING_NONE = 0;
+    static final int PACKING_TOP_BOTTOM = 1;
+    static final int PACKING_SIDE_BY_SIDE = 2;
+
+    // Scale and offset of the color and matte halves, texture v = 0 is the bottom of the frame.
+    private static final float[] TOP_BOTTOM_COLOR_REGION = {1.0f, 0.5f, 0.0f, 0.5f};
+    private static final float[] TOP_BOTTOM_ALPHA_REGION = {1.0f, 0.5f, 0.0f, 0.0f};
+    private static final float[] SIDE_BY_SIDE_COLOR_REGION = {0.5f, 1.0f, 0.0f, 0.0f};
+    private static final float[] SIDE_BY_SIDE_ALPHA_REGION = {0.5f, 1.0f, 0.5f, 0.0f};
+
+    private static final double DEFAULT_ACCURACY = 0.95;
+
+    private double accuracy = DEFAULT_ACCURACY;
 
     private String shader = alphaShader;
 
-    private float[] mVPMatrix = new float[16];
     private float[] sTMatrix = new float[16];
 
+    private static final float[] FULL_BOUNDS = {0f, 0f, 1f, 1f};
+    // Left, bottom, right and top of the drawn quad in texture coordinates.
+    private final float[] quadBounds = {0f, 0f, 1f, 1f};
+    private final float[] mvpMatrix = new float[16];
+    private final float[] quadRegion = {1f, 1f, 0f, 0f};
+    private volatile float[] presetBounds;
+    private volatile float[] drawnBounds = FULL_BOUNDS;
+    private volatile boolean boundsDetectionEnabled;
+    private volatile boolean boundsResetRequested;
+    private volatile boolean boundsRestartRequested;
+    private final OpaqueBoundsDetector boundsDetector = new OpaqueBoundsDetector();
+
     private int program;
     private int textureID;
     private int uMVPMatrixHandle;
     private int uSTMatrixHandle;
+    private int uKeyColorHandle;
+    private int uKeyToleranceHandle;
+    private int uColorRegionHandle;
+    private int uAlphaRegionHandle;
+    private int uQuadRegionHandle;
+    private boolean packingUniformsDirty;
+    private boolean drawPremultiplied;
+    private boolean mvpMatrixDirty;
     private int aPositionHandle;
     private int aTextureHandle;
 
     private SurfaceTexture surface;
-    private boolean updateSurface = false;
+    // Incremented for every frame the decoder queues, the GL thread catches up with it.
+    private final AtomicLong frameSequence = new AtomicLong();
+    private long latchedSequence;
+    private volatile long producedFrameBase;
+    private final AtomicLong latchedFrameCount = new AtomicLong();
+    private final AtomicLong displayedFrameCount = new AtomicLong();
+    private final AtomicLong skippedFrameCount = new AtomicLong();
+
+    static final int GL_TEXTURE_EXTERNAL_OES = 0x8D65;
+
+    private static final String EXTERNAL_IMAGE_EXTENSION = "#extension GL_OES_EGL_image_external : require";
 
-    private static int GL_TEXTURE_EXTERNAL_OES = 0x8D65;
+    private static final Pattern MAIN_FUNCTION =
+            Pattern.compile("void\\s+main\\s*\\(\\s*(void)?\\s*\\)");
+    private static final String PREMULTIPLY_MAIN = "\nvoid main() {\n"
+            + "  straightAlphaMain();\n"
+            + "  gl_FragColor.rgb *= gl_FragColor.a;\n"
+            + "}\n";
 
     private OnSurfacePrepareListener onSurfacePrepareListener;
+    private OnNewFrameListener onNewFrameListener;
+
+    private final AtomicLong drawnFrameCount = new AtomicLong();
+    private final AtomicLong redundantDrawCount = new AtomicLong();
+
+    private volatile File programBinaryCacheDir;
+
+    private static final long NOT_MEASURED = -1;
+    private volatile long firstFrameRequestNanos = NOT_MEASURED;
+    private volatile long timeToFirstFrameNanos = NOT_MEASURED;
+    private volatile long transitionStartNanos = NOT_MEASURED;
+    private volatile long transitionCount;
+    private volatile long lastTransitionNanos = NOT_MEASURED;
+    private volatile long maxTransitionNanos = NOT_MEASURED;
+    private volatile long totalTransitionNanos;
 
     private boolean isCustom;
 
-    private float redParam = 0.0f;
-    private float greenParam = 1.0f;
-    private float blueParam = 0.0f;
+    private volatile int alphaPacking = PACKING_NONE;
+    private volatile boolean premultipliedOutput;
+    private volatile boolean programChanged;
 
-    VideoRenderer() {
-        triangleVertices = ByteBuffer.allocateDirect(
-                triangleVerticesData.length * FLOAT_SIZE_BYTES)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        triangleVertices.put(triangleVerticesData).position(0);
+    private final ChromaKeyParams keyParams =
+            new ChromaKeyParams(0.0f, 1.0f, 0.0f, (float) (1 - DEFAULT_ACCURACY));
+    private final float[] keyParamsSnapshot = new float[4];
+    private int uploadedKeyParamsVersion;
+
+    private final FrameCache frameCache = new FrameCache();
+    private final float[] identityMatrix = new float[16];
+    private OnFrameCacheListener onFrameCacheListener;
+    private volatile boolean frameCacheEnabled;
+    private volatile int frameCacheWidth;
+    private volatile int frameCacheHeight;
+    private volatile long frameCacheClipNanos;
+    private volatile boolean frameCacheResetRequested;
+    private volatile boolean replayPaused;
+    private volatile boolean replayLooping = true;
+    private volatile long replaySeekNanos = -1;
+    private volatile long replayPositionNanos;
+    private boolean sampling2D;
+    private int lastCachedTexture;
+    private int viewportWidth;
+    private int viewportHeight;
+
+    private final FramePacer framePacer = new FramePacer();
+    private volatile FramePacer.Listener onFramePacingListener;
 
+    private GlState glState;
+    private volatile boolean glErrorChecksEnabled;
+    private volatile boolean glCallCountingEnabled;
+    private volatile int lastFrameGlCallCount;
+    private final AtomicLong glCallCount = new AtomicLong();
+    private final AtomicLong skippedGlCallCount = new AtomicLong();
+    private final AtomicLong countedFrameCount = new AtomicLong();
+
+    /** Longer gaps between draws are pauses, not slow frames. */
+    private static final long MAX_MEASURED_FRAME_NANOS = 250000000L;
+    private final ResolutionGovernor resolutionGovernor = new ResolutionGovernor();
+    private final ScaledRenderTarget scaledTarget = new ScaledRenderTarget();
+    private volatile boolean dynamicResolutionEnabled;
+    private volatile boolean resolutionResetRequested;
+    private volatile boolean continuousRendering = true;
+    private long lastDrawStartNanos;
+    private boolean latchedBehind;
+
+    VideoRenderer() {
         Matrix.setIdentityM(sTMatrix, 0);
+        Matrix.setIdentityM(mvpMatrix, 0);
+        Matrix.setIdentityM(identityMatrix, 0);
     }
 
     @Override
     public void onDrawFrame(GL10 glUnused) {
-        synchronized(this) {
-            if (updateSurface) {
-                surface.updateTexImage();
-                surface.getTransformMatrix(sTMatrix);
-                updateSurface = false;
+        measureFrameTime();
+        GlState state = glState;
+        int callsBefore = state.getCallCount();
+        int skippedBefore = state.getSkippedCallCount();
+        drawFrame(state);
+        if (glCallCountingEnabled) {
+            int calls = state.getCallCount() - callsBefore;
+            lastFrameGlCallCount = calls;
+            glCallCount.addAndGet(calls);
+            skippedGlCallCount.addAndGet(state.getSkippedCallCount() - skippedBefore);
+            countedFrameCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Feeds the time between draw starts to the resolution governor. Draws only follow each
+     * other back to back while rendering continuously or catching up with queued frames,
+     * otherwise the gap is the video's frame rate and says nothing about the cost of a frame.
+     */
+    private void measureFrameTime() {
+        if (resolutionResetRequested) {
+            resolutionResetRequested = false;
+            resolutionGovernor.reset();
+            lastDrawStartNanos = 0;
+        }
+        if (!dynamicResolutionEnabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        long frameNanos = now - lastDrawStartNanos;
+        if (lastDrawStartNanos != 0 && frameNanos < MAX_MEASURED_FRAME_NANOS
+                && (continuousRendering || latchedBehind)) {
+            resolutionGovernor.onFrame(frameNanos);
+        }
+        lastDrawStartNanos = now;
+    }
+
+    private void drawFrame(GlState state) {
+        boolean newFrame = latchFrame();
+        int cachedTexture = updateFrameCache(newFrame);
+        if (cachedTexture != 0) {
+            newFrame = cachedTexture != lastCachedTexture;
+            lastCachedTexture = cachedTexture;
+        }
+        drawnFrameCount.incrementAndGet();
+        if (!newFrame) {
+            redundantDrawCount.incrementAndGet();
+        }
+        if (newFrame && firstFrameRequestNanos != NOT_MEASURED) {
+            timeToFirstFrameNanos = System.nanoTime() - firstFrameRequestNanos;
+            firstFrameRequestNanos = NOT_MEASURED;
+        }
+        if (newFrame && transitionStartNanos != NOT_MEASURED) {
+            long transitionNanos = System.nanoTime() - transitionStartNanos;
+            transitionStartNanos = NOT_MEASURED;
+            lastTransitionNanos = transitionNanos;
+            maxTransitionNanos = Math.max(maxTransitionNanos, transitionNanos);
+            totalTransitionNanos += transitionNanos;
+            transitionCount++;
+        }
+
+        boolean replaying = cachedTexture != 0;
+        if (replaying != sampling2D) {
+            sampling2D = replaying;
+            programChanged = true;
+        }
+        if (programChanged && !setupProgram()) {
+            return;
+        }
+
+        updateQuadBounds();
+
+        boolean scaled = bindRenderTarget(state);
+        int targetFramebuffer = scaled ? scaledTarget.getFramebuffer() : 0;
+        int targetWidth = scaled ? scaledTarget.getWidth() : viewportWidth;
+        int targetHeight = scaled ? scaledTarget.getHeight() : viewportHeight;
+
+        state.clearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        // There is no depth buffer, only color is cleared.
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        state.useProgram(program);
+
+        // Texture unit 0 is the only one ever used, it stays active.
+        if (replaying) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, cachedTexture);
+        } else {
+            GLES20.glBindTexture(GL_TEXTURE_EXTERNAL_OES, textureID);
+        }
+        state.bindQuad(aPositionHandle, aTextureHandle);
+
+        if (mvpMatrixDirty) {
+            GLES20.glUniformMatrix4fv(uMVPMatrixHandle, 1, false, mvpMatrix, 0);
+            GLES20.glUniform4fv(uQuadRegionHandle, 1, quadRegion, 0);
+            state.countCalls(2);
+            mvpMatrixDirty = false;
+        }
+        // Cached frames were copied through the transform already.
+        GLES20.glUniformMatrix4fv(uSTMatrixHandle, 1, false, replaying ? identityMatrix : sTMatrix, 0);
+        state.countCalls(3);
+        uploadKeyParams(state);
+        uploadPackingRegions(state);
+
+        if (isDetectingBounds()) {
+            if (newFrame && !replaying) {
+                boundsDetector.sample(state, program, aPositionHandle, aTextureHandle,
+                        surface.getTimestamp(), frameCacheClipNanos, targetFramebuffer,
+                        targetWidth, targetHeight);
+            } else {
+                boundsDetector.poll();
             }
         }
-        GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
 
-        GLES20.glEnable(GLES20.GL_BLEND);
-        GLES20.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        if (drawPremultiplied) {
+            // The quad covers each pixel once over a cleared surface, there is nothing to blend with.
+            state.setBlendEnabled(false);
+        } else {
+            state.setBlendEnabled(true);
+            // The surface is composited as premultiplied: color is multiplied by alpha, while
+            // alpha itself is written as is instead of squared.
+            state.blendFuncSeparate(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA,
+                    GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        }
+        state.drawQuad();
+        if (scaled) {
+            scaledTarget.present(state, viewportWidth, viewportHeight);
+        }
+        if (glErrorChecksEnabled) {
+            checkGlError("drawFrame");
+        }
+    }
 
-        GLES20.glUseProgram(program);
-        checkGlError("glUseProgram");
+    /**
+     * Binds the scaled target when the view is larger than the video, or the governor
+     * lowered the resolution.
+     *
+     * @return true if the frame is drawn into the scaled target.
+     */
+    private boolean bindRenderTarget(GlState state) {
+        if (!dynamicResolutionEnabled) {
+            if (scaledTarget.isAllocated()) {
+                scaledTarget.release();
+            }
+            return false;
+        }
+        // Shading more pixels than the video has adds no detail.
+        int width = viewportWidth;
+        int height = viewportHeight;
+        int packing = alphaPacking;
+        if (frameCacheWidth > 0 && frameCacheHeight > 0) {
+            width = Math.min(width, packing == PACKING_SIDE_BY_SIDE ? frameCacheWidth / 2 : frameCacheWidth);
+            height = Math.min(height, packing == PACKING_TOP_BOTTOM ? frameCacheHeight / 2 : frameCacheHeight);
+        }
+        float scale = resolutionGovernor.getScale();
+        width = Math.max(1, Math.round(width * scale));
+        height = Math.max(1, Math.round(height * scale));
+        if (width >= viewportWidth && height >= viewportHeight) {
+            // Kept while enabled, the governor keeps probing back and forth around full scale.
+            return false;
+        }
+        scaledTarget.bind(state, width, height);
+        return true;
+    }
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GL_TEXTURE_EXTERNAL_OES, textureID);
+    private boolean isDetectingBounds() {
+        return boundsDetectionEnabled && presetBounds == null && boundsDetector.isSupported()
+                && boundsDetector.isLearning();
+    }
 
-        triangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
-        GLES20.glVertexAttribPointer(aPositionHandle, 3, GLES20.GL_FLOAT, false,
-                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVertices);
-        checkGlError("glVertexAttribPointer maPosition");
-        GLES20.glEnableVertexAttribArray(aPositionHandle);
-        checkGlError("glEnableVertexAttribArray aPositionHandle");
+    /**
+     * Shrinks the quad to the preset or learned opaque bounds, if any.
+     */
+    private void updateQuadBounds() {
+        if (boundsResetRequested) {
+            boundsResetRequested = false;
+            boundsRestartRequested = false;
+            boundsDetector.reset();
+        } else if (boundsRestartRequested) {
+            boundsRestartRequested = false;
+            if (boundsDetector.isLearning()) {
+                boundsDetector.reset();
+            }
+        }
+        float[] bounds = presetBounds;
+        if (bounds == null && boundsDetectionEnabled) {
+            bounds = boundsDetector.getBounds();
+        }
+        if (bounds == null) {
+            bounds = FULL_BOUNDS;
+        }
+        if (quadBounds[0] == bounds[0] && quadBounds[1] == bounds[1]
+                && quadBounds[2] == bounds[2] && quadBounds[3] == bounds[3]) {
+            return;
+        }
+        System.arraycopy(bounds, 0, quadBounds, 0, 4);
+        float width = bounds[2] - bounds[0];
+        float height = bounds[3] - bounds[1];
+        // Maps the quad's -1..1 onto the bounds, and its texture coordinates along with it.
+        mvpMatrix[0] = width;
+        mvpMatrix[5] = height;
+        mvpMatrix[12] = bounds[0] + bounds[2] - 1f;
+        mvpMatrix[13] = bounds[1] + bounds[3] - 1f;
+        quadRegion[0] = width;
+        quadRegion[1] = height;
+        quadRegion[2] = bounds[0];
+        quadRegion[3] = bounds[1];
+        mvpMatrixDirty = true;
+        drawnBounds = bounds;
+    }
 
-        triangleVertices.position(TRIANGLE_VERTICES_DATA_UV_OFFSET);
-        GLES20.glVertexAttribPointer(aTextureHandle, 3, GLES20.GL_FLOAT, false,
-                TRIANGLE_VERTICES_DATA_STRIDE_BYTES, triangleVertices);
-        checkGlError("glVertexAttribPointer aTextureHandle");
-        GLES20.glEnableVertexAttribArray(aTextureHandle);
-        checkGlError("glEnableVertexAttribArray aTextureHandle");
+    /**
+     * Latches the next queued frame. Frames too late to be shown on time are skipped while
+     * newer ones are waiting, so a backlog doesn't add latency.
+     *
+     * @return true if a new frame was latched.
+     */
+    private boolean latchFrame() {
+        long produced = frameSequence.get();
+        if (produced == latchedSequence) {
+            latchedBehind = false;
+            return false;
+        }
+        long now = System.nanoTime();
+        latchedBehind = produced - latchedSequence > 1;
+        surface.updateTexImage();
+        latchedSequence++;
+        latchedFrameCount.incrementAndGet();
+        framePacer.update(surface.getTimestamp(), now);
+        // Every frame is needed while capturing the frame cache.
+        boolean mayDrop = frameCache.getState() != FrameCache.STATE_CAPTURING;
+        while (mayDrop && latchedSequence < frameSequence.get()
+                && framePacer.isLate(surface.getTimestamp(), now)) {
+            framePacer.onFrameDropped();
+            skippedFrameCount.incrementAndGet();
+            surface.updateTexImage();
+            latchedSequence++;
+            latchedFrameCount.incrementAndGet();
+            framePacer.update(surface.getTimestamp(), now);
+        }
+        surface.getTransformMatrix(sTMatrix);
+        displayedFrameCount.incrementAndGet();
+        framePacer.onFrameShown(surface.getTimestamp(), now, onFramePacingListener);
+        return true;
+    }
 
-        Matrix.setIdentityM(mVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(uMVPMatrixHandle, 1, false, mVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(uSTMatrixHandle, 1, false, sTMatrix, 0);
+    /**
+     * Captures new frames into the frame cache and picks the cached frame to draw.
+     *
+     * @return the cached texture to draw instead of the video texture, or 0.
+     */
+    private int updateFrameCache(boolean newFrame) {
+        if (frameCacheResetRequested) {
+            frameCacheResetRequested = false;
+            frameCache.release();
+        }
+        if (frameCache.isEvicted()) {
+            abandonFrameCache();
+            return 0;
+        }
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        checkGlError("glDrawArrays");
+        int state = frameCache.getState();
+        if (state == FrameCache.STATE_IDLE && frameCacheEnabled && newFrame && frameCacheClipNanos > 0) {
+            frameCache.begin(frameCacheWidth, frameCacheHeight, frameCacheClipNanos);
+            state = frameCache.getState();
+        }
+        if (state == FrameCache.STATE_CAPTURING && newFrame) {
+            state = frameCache.capture(textureID, sTMatrix, surface.getTimestamp(), glState);
+            glState.viewport(0, 0, viewportWidth, viewportHeight);
+            if (glErrorChecksEnabled) {
+                checkGlError("FrameCache copy");
+            }
+            if (state == FrameCache.STATE_REPLAYING && onFrameCacheListener != null) {
+                replayPaused = false;
+                replaySeekNanos = -1;
+                onFrameCacheListener.frameCacheReady();
+            }
+        }
+        if (state != FrameCache.STATE_REPLAYING) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        long seekNanos = replaySeekNanos;
+        if (seekNanos >= 0) {
+            replaySeekNanos = -1;
+            frameCache.seekTo(seekNanos, now);
+        }
+        frameCache.setPaused(replayPaused, now);
+        boolean wasEnded = frameCache.isReplayEnded();
+        int texture = frameCache.frameAt(now, replayLooping);
+        replayPositionNanos = frameCache.getPositionNanos(now);
+        if (!wasEnded && frameCache.isReplayEnded()) {
+            // Holds the last frame until the replay is started again.
+            replayPaused = true;
+            if (onFrameCacheListener != null) {
+                onFrameCacheListener.frameCacheReplayEnded();
+            }
+        }
+        return texture;
+    }
 
-        GLES20.glFinish();
+    /**
+     * Stops capturing or replaying and streams the video until the cache is reset.
+     */
+    private void abandonFrameCache() {
+        int state = frameCache.getState();
+        if (state != FrameCache.STATE_CAPTURING && state != FrameCache.STATE_REPLAYING
+                && !frameCache.isEvicted()) {
+            return;
+        }
+        boolean wasReplaying = state == FrameCache.STATE_REPLAYING;
+        frameCache.abandon();
+        lastCachedTexture = 0;
+        if (wasReplaying && onFrameCacheListener != null) {
+            onFrameCacheListener.frameCacheEvicted();
+        }
     }
 
     @Override
     public void onSurfaceDestroyed(GL10 gl) {
+        abandonFrameCache();
+        boundsDetector.release();
+        scaledTarget.release();
+        if (surface != null) {
+            surface.setOnFrameAvailableListener(null);
+            surface.release();
+            surface = null;
+        }
+        if (textureID != 0) {
+            GLES20.glDeleteTextures(1, new int[]{textureID}, 0);
+            textureID = 0;
+        }
     }
 
     @Override
     public void onSurfaceChanged(GL10 glUnused, int width, int height) {
-        GLES20.glViewport(0, 0, width, height);
+        glState.viewport(0, 0, width, height);
+        viewportWidth = width;
+        viewportHeight = height;
+        // The program may be shared with other views drawing through the same context,
+        // so its uniforms have to be uploaded again.
+        uploadedKeyParamsVersion = 0;
+        packingUniformsDirty = true;
+        mvpMatrixDirty = true;
     }
 
     @Override
     public void onSurfaceCreated(GL10 glUnused, EGLConfig config) {
-        program = createProgram(vertexShader, this.resolveShader());
-        if (program == 0) {
+        glState = GlState.obtain();
+        glState.invalidate();
+        boundsDetector.onContextLost();
+        boundsDetector.onContextCreated();
+        scaledTarget.onContextLost();
+        // Cached frames belonged to the previous context.
+        if (frameCache.getState() != FrameCache.STATE_IDLE) {
+            boolean wasReplaying = frameCache.getState() == FrameCache.STATE_REPLAYING;
+            frameCache.onContextLost();
+            frameCache.abandon();
+            lastCachedTexture = 0;
+            if (wasReplaying && onFrameCacheListener != null) {
+                onFrameCacheListener.frameCacheEvicted();
+            }
+        }
+        if (!setupProgram()) {
             return;
         }
+
+        prepareSurface();
+    }
+
+    private boolean setupProgram() {
+        programChanged = false;
+        int packing = alphaPacking;
+        String fragmentShader = packing == PACKING_NONE ? this.resolveShader() : packedAlphaShader;
+        if (sampling2D) {
+            fragmentShader = toSampler2D(fragmentShader);
+        }
+        boolean premultiplied = premultipliedOutput;
+        if (premultiplied) {
+            fragmentShader = toPremultiplied(fragmentShader);
+        }
+        drawPremultiplied = premultiplied;
+        program = ProgramCache.obtain(packing == PACKING_NONE ? vertexShader : packedVertexShader,
+                fragmentShader, programBinaryCacheDir);
+        if (program == 0) {
+            return false;
+        }
         aPositionHandle = GLES20.glGetAttribLocation(program, "aPosition");
         checkGlError("glGetAttribLocation aPosition");
         if (aPositionHandle == -1) {
@@ -198,7 +648,30 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
             throw new RuntimeException("Could not get attrib location for uSTMatrix");
         }
 
-        prepareSurface();
+        // Custom shaders are free to not declare the key uniforms, -1 locations are ignored.
+        uKeyColorHandle = GLES20.glGetUniformLocation(program, "uKeyColor");
+        uKeyToleranceHandle = GLES20.glGetUniformLocation(program, "uKeyTolerance");
+        uColorRegionHandle = GLES20.glGetUniformLocation(program, "uColorRegion");
+        uAlphaRegionHandle = GLES20.glGetUniformLocation(program, "uAlphaRegion");
+        uQuadRegionHandle = GLES20.glGetUniformLocation(program, "uQuadRegion");
+        uploadedKeyParamsVersion = 0;
+        packingUniformsDirty = true;
+        mvpMatrixDirty = true;
+        return true;
+    }
+
+    private void uploadPackingRegions(GlState state) {
+        int packing = alphaPacking;
+        if (packingUniformsDirty && packing != PACKING_NONE) {
+            float[] colorRegion = packing == PACKING_TOP_BOTTOM
+                    ? TOP_BOTTOM_COLOR_REGION : SIDE_BY_SIDE_COLOR_REGION;
+            float[] alphaRegion = packing == PACKING_TOP_BOTTOM
+                    ? TOP_BOTTOM_ALPHA_REGION : SIDE_BY_SIDE_ALPHA_REGION;
+            GLES20.glUniform4fv(uColorRegionHandle, 1, colorRegion, 0);
+            GLES20.glUniform4fv(uAlphaRegionHandle, 1, alphaRegion, 0);
+            state.countCalls(2);
+        }
+        packingUniformsDirty = false;
     }
 
     private void prepareSurface() {
@@ -216,74 +689,83 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
 
         surface = new SurfaceTexture(textureID);
         surface.setOnFrameAvailableListener(this);
+        framePacer.reset();
 
         Surface surface = new Surface(this.surface);
         onSurfacePrepareListener.surfacePrepared(surface);
 
-        synchronized(this) {
-            updateSurface = false;
-        }
+        // Frames queued to the previous surface texture are gone.
+        long produced = frameSequence.get();
+        skippedFrameCount.addAndGet(produced - latchedSequence);
+        latchedSequence = produced;
     }
 
-    synchronized public void onFrameAvailable(SurfaceTexture surface) {
-        updateSurface = true;
+    public void onFrameAvailable(SurfaceTexture surface) {
+        frameSequence.incrementAndGet();
+        if (onNewFrameListener != null) {
+            onNewFrameListener.newFrameAvailable();
+        }
     }
 
-    private int loadShader(int shaderType, String source) {
-        int shader = GLES20.glCreateShader(shaderType);
-        if (shader != 0) {
-            GLES20.glShaderSource(shader, source);
-            GLES20.glCompileShader(shader);
-            int[] compiled = new int[1];
-            GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
-            if (compiled[0] == 0) {
-                Log.e(TAG, "Could not compile shader " + shaderType + ":");
-                Log.e(TAG, GLES20.glGetShaderInfoLog(shader));
-                GLES20.glDeleteShader(shader);
-                shader = 0;
-            }
+    private void uploadKeyParams(GlState state) {
+        int version = keyParams.snapshot(keyParamsSnapshot, uploadedKeyParamsVersion);
+        if (version != uploadedKeyParamsVersion) {
+            GLES20.glUniform3f(uKeyColorHandle, keyParamsSnapshot[ChromaKeyParams.RED],
+                    keyParamsSnapshot[ChromaKeyParams.GREEN], keyParamsSnapshot[ChromaKeyParams.BLUE]);
+            GLES20.glUniform1f(uKeyToleranceHandle, keyParamsSnapshot[ChromaKeyParams.TOLERANCE]);
+            state.countCalls(2);
+            uploadedKeyParamsVersion = version;
         }
-        return shader;
     }
 
-    private int createProgram(String vertexSource, String fragmentSource) {
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-        if (vertexShader == 0) {
-            return 0;
+    /**
+     * May be called from any thread, the new color is used from the next drawn frame.
+     */
+    void setAlphaColor(int color) {
+        keyParams.setColor((float) Color.red(color) / COLOR_MAX_VALUE,
+                (float) Color.green(color) / COLOR_MAX_VALUE,
+                (float) Color.blue(color) / COLOR_MAX_VALUE);
+        resetOpaqueBounds();
+    }
+
+    /**
+     * Switches between chroma keying and packed alpha. May be called from any thread, the
+     * program is switched before the next frame is drawn.
+     */
+    void setAlphaPacking(int alphaPacking) {
+        if (alphaPacking < PACKING_NONE || alphaPacking > PACKING_SIDE_BY_SIDE) {
+            throw new IllegalArgumentException("alphaPacking");
         }
-        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-        if (pixelShader == 0) {
-            return 0;
+        if (this.alphaPacking != alphaPacking) {
+            this.alphaPacking = alphaPacking;
+            programChanged = true;
+            resetOpaqueBounds();
         }
+    }
 
-        int program = GLES20.glCreateProgram();
-        if (program != 0) {
-            GLES20.glAttachShader(program, vertexShader);
-            checkGlError("glAttachShader");
-            GLES20.glAttachShader(program, pixelShader);
-            checkGlError("glAttachShader");
-            GLES20.glLinkProgram(program);
-            int[] linkStatus = new int[1];
-            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
-            if (linkStatus[0] != GLES20.GL_TRUE) {
-                Log.e(TAG, "Could not link program: ");
-                Log.e(TAG, GLES20.glGetProgramInfoLog(program));
-                GLES20.glDeleteProgram(program);
-                program = 0;
-            }
+    int getAlphaPacking() {
+        return alphaPacking;
+    }
+
+    /**
+     * Makes the shaders write premultiplied color and draws without blending. May be
+     * called from any thread, the program is switched before the next frame is drawn.
+     */
+    void setPremultipliedOutput(boolean premultiplied) {
+        if (premultipliedOutput != premultiplied) {
+            premultipliedOutput = premultiplied;
+            programChanged = true;
         }
-        return program;
     }
 
-    void setAlphaColor(int color) {
-        redParam = (float) Color.red(color) / COLOR_MAX_VALUE;
-        greenParam = (float) Color.green(color) / COLOR_MAX_VALUE;
-        blueParam = (float) Color.blue(color) / COLOR_MAX_VALUE;
+    boolean isPremultipliedOutput() {
+        return premultipliedOutput;
     }
 
     void setCustomShader(String customShader) {
         isCustom = true;
         shader = customShader;
+        resetOpaqueBounds();
     }
 
     void setAccuracy(double accuracy) {
@@ -293,6 +775,8 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
             accuracy = 0.0;
         }
         this.accuracy = accuracy;
+        keyParams.setTolerance((float) (1 - accuracy));
+        resetOpaqueBounds();
     }
 
     public double getAccuracy() {
@@ -300,11 +784,31 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
     }
 
     private String resolveShader() {
-        return isCustom ? shader : String.format(Locale.ENGLISH, alphaShader,
-                redParam, greenParam, blueParam, 1 - accuracy);
+        return isCustom ? shader : alphaShader;
     }
 
-    private void checkGlError(String op) {
+    /**
+     * Turns a shader sampling the external video texture into one sampling a cached frame.
+     */
+    private static String toSampler2D(String fragmentShader) {
+        return fragmentShader.replace(EXTERNAL_IMAGE_EXTENSION, "")
+                .replace("samplerExternalOES", "sampler2D");
+    }
+
+    /**
+     * Renames the shader's {@code main} and calls it from a new one that premultiplies the
+     * color it wrote.
+     */
+    private static String toPremultiplied(String fragmentShader) {
+        Matcher matcher = MAIN_FUNCTION.matcher(fragmentShader);
+        if (!matcher.find()) {
+            Log.w(TAG, "No main function found, the shader output is used as is");
+            return fragmentShader;
+        }
+        return matcher.replaceFirst("void straightAlphaMain()") + PREMULTIPLY_MAIN;
+    }
+
+    static void checkGlError(String op) {
         int error;
         if ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
             Log.e(TAG, op + ": glError " + error);
@@ -316,8 +820,314 @@ class VideoRenderer implements GLTextureView.Renderer, SurfaceTexture.OnFrameAva
         this.onSurfacePrepareListener = onSurfacePrepareListener;
     }
 
+    void setOnNewFrameListener(OnNewFrameListener onNewFrameListener) {
+        this.onNewFrameListener = onNewFrameListener;
+    }
+
+    /**
+     * Number of frames the decoder queued to the surface texture since the last reset.
+     */
+    long getProducedFrameCount() {
+        return frameSequence.get() - producedFrameBase;
+    }
+
+    /**
+     * Number of frames taken from the surface texture with {@code updateTexImage}.
+     */
+    long getLatchedFrameCount() {
+        return latchedFrameCount.get();
+    }
+
+    long getDisplayedFrameCount() {
+        return displayedFrameCount.get();
+    }
+
+    /**
+     * Number of produced frames that were never drawn, because a newer frame replaced them
+     * or their surface texture was recreated.
+     */
+    long getSkippedFrameCount() {
+        return skippedFrameCount.get();
+    }
+
+    /**
+     * Number of times {@link #onDrawFrame(GL10)} has run since the last reset.
+     */
+    long getDrawnFrameCount() {
+        return drawnFrameCount.get();
+    }
+
+    /**
+     * Number of draws that did not latch a new video frame, i.e. redrew the
+     * same picture again.
+     */
+    long getRedundantDrawCount() {
+        return redundantDrawCount.get();
+    }
+
+    /**
+     * Enables the on-disk program binary cache in the given directory, null disables it.
+     * Takes effect the next time the surface is created.
+     */
+    void setProgramBinaryCacheDir(File programBinaryCacheDir) {
+        this.programBinaryCacheDir = programBinaryCacheDir;
+    }
+
+    /**
+     * Starts measuring the time until the next video frame is drawn.
+     */
+    void markFirstFrameRequested() {
+        timeToFirstFrameNanos = NOT_MEASURED;
+        firstFrameRequestNanos = System.nanoTime();
+    }
+
+    /**
+     * @return nanoseconds between the last {@link #markFirstFrameRequested()} and the first
+     * frame drawn after it, or -1 if no frame was drawn yet.
+     */
+    long getTimeToFirstFrameNanos() {
+        return timeToFirstFrameNanos;
+    }
+
+    /**
+     * Starts measuring a transition between two videos, it ends with the next frame drawn.
+     */
+    void markTransitionStarted() {
+        transitionStartNanos = System.nanoTime();
+    }
+
+    long getTransitionCount() {
+        return transitionCount;
+    }
+
+    /**
+     * @return nanoseconds of the last measured transition, or -1 if there was none.
+     */
+    long getLastTransitionNanos() {
+        return lastTransitionNanos;
+    }
+
+    long getMaxTransitionNanos() {
+        return maxTransitionNanos;
+    }
+
+    long getTotalTransitionNanos() {
+        return totalTransitionNanos;
+    }
+
+    /**
+     * Limits drawing to a region known to hold every visible pixel of the clip, null draws
+     * the whole frame. May be called from any thread.
+     *
+     * @param bounds left, bottom, right and top in texture coordinates of the quad.
+     */
+    void setOpaqueBounds(float[] bounds) {
+        presetBounds = bounds;
+    }
+
+    /**
+     * Learns the opaque bounds while the clip plays once, when no bounds are preset.
+     * Requires OpenGL ES 3.0, ignored otherwise.
+     */
+    void setOpaqueBoundsDetectionEnabled(boolean enabled) {
+        boundsDetectionEnabled = enabled;
+    }
+
+    /**
+     * Forgets the learned bounds, e.g. for a new clip or different keying.
+     */
+    void resetOpaqueBounds() {
+        boundsResetRequested = true;
+    }
+
+    /**
+     * Starts learning over if the pass in progress was interrupted, like by a seek.
+     */
+    void restartOpaqueBoundsLearning() {
+        boundsRestartRequested = true;
+    }
+
+    /**
+     * @return left, bottom, right and top of the drawn region in texture coordinates.
+     */
+    float[] getDrawnBounds() {
+        return drawnBounds;
+    }
+
+    /**
+     * Draws into an offscreen target no larger than the video and upscales it, shrinking the
+     * target while frames take longer than the policy's target. Turning it off or on again
+     * starts over at full scale.
+     */
+    void setDynamicResolutionEnabled(boolean enabled) {
+        if (dynamicResolutionEnabled != enabled) {
+            dynamicResolutionEnabled = enabled;
+            resolutionResetRequested = true;
+        }
+    }
+
+    /**
+     * @see ResolutionGovernor#setPolicy(long, float)
+     */
+    void setDynamicResolutionPolicy(long targetFrameNanos, float minScale) {
+        resolutionGovernor.setPolicy(targetFrameNanos, minScale);
+    }
+
+    long getDynamicResolutionTargetFrameNanos() {
+        return resolutionGovernor.getTargetFrameNanos();
+    }
+
+    float getDynamicResolutionMinScale() {
+        return resolutionGovernor.getMinScale();
+    }
+
+    /**
+     * @return the governor's fraction of the video's or surface's resolution, whichever is
+     * smaller, drawn at.
+     */
+    float getResolutionScale() {
+        return dynamicResolutionEnabled ? resolutionGovernor.getScale() : 1f;
+    }
+
+    /**
+     * Tells whether frames are drawn back to back, or only when a new video frame arrives.
+     */
+    void setContinuousRendering(boolean continuous) {
+        continuousRendering = continuous;
+    }
+
+    /**
+     * Checks for GL errors after every frame and throws if one occurred. Off by default,
+     * {@code glGetError} stalls the pipeline on many drivers.
+     */
+    void setGlErrorChecksEnabled(boolean enabled) {
+        glErrorChecksEnabled = enabled;
+    }
+
+    /**
+     * Counts the GL calls issued and skipped as redundant by each frame.
+     */
+    void setGlCallCountingEnabled(boolean enabled) {
+        glCallCountingEnabled = enabled;
+    }
+
+    /**
+     * @return GL calls issued by the last counted frame.
+     */
+    int getLastFrameGlCallCount() {
+        return lastFrameGlCallCount;
+    }
+
+    /**
+     * @return GL calls issued by counted frames since the last reset.
+     */
+    long getGlCallCount() {
+        return glCallCount.get();
+    }
+
+    /**
+     * @return redundant state changes skipped by counted frames since the last reset.
+     */
+    long getSkippedGlCallCount() {
+        return skippedGlCallCount.get();
+    }
+
+    long getCountedFrameCount() {
+        return countedFrameCount.get();
+    }
+
+    void resetDrawCounters() {
+        glCallCount.set(0);
+        skippedGlCallCount.set(0);
+        countedFrameCount.set(0);
+        drawnFrameCount.set(0);
+        redundantDrawCount.set(0);
+        producedFrameBase = frameSequence.get();
+        latchedFrameCount.set(0);
+        displayedFrameCount.set(0);
+        skippedFrameCount.set(0);
+    }
+
+    /**
+     * Enables capturing the next pass of the video into the frame cache. May be called from
+     * any thread, takes effect after the next {@link #resetFrameCache()}.
+     */
+    void setFrameCacheEnabled(boolean enabled) {
+        frameCacheEnabled = enabled;
+    }
+
+    /**
+     * Sets the size and duration of the video, used to size the cached frames.
+     */
+    void setFrameCacheClip(int width, int height, long durationNanos) {
+        frameCacheWidth = width;
+        frameCacheHeight = height;
+        frameCacheClipNanos = durationNanos;
+    }
+
+    /**
+     * Drops all cached frames on the GL thread, capturing starts over with the next frame.
+     */
+    void resetFrameCache() {
+        frameCacheResetRequested = true;
+        replayPaused = false;
+        replaySeekNanos = -1;
+        replayPositionNanos = 0;
+    }
+
+    void setReplayPaused(boolean paused) {
+        replayPaused = paused;
+    }
+
+    void setReplayLooping(boolean looping) {
+        replayLooping = looping;
+    }
+
+    void seekReplay(long positionNanos) {
+        replaySeekNanos = positionNanos;
+    }
+
+    long getReplayPositionNanos() {
+        return replayPositionNanos;
+    }
+
+    /**
+     * @param listener called on the GL thread with the pacing of the last second, or null.
+     */
+    void setOnFramePacingListener(FramePacer.Listener listener) {
+        this.onFramePacingListener = listener;
+    }
+
+    void setOnFrameCacheListener(OnFrameCacheListener onFrameCacheListener) {
+        this.onFrameCacheListener = onFrameCacheListener;
+    }
+
     interface OnSurfacePrepareListener {
         void surfacePrepared(Surface surface);
     }
 
+    interface OnNewFrameListener {
+        void newFrameAvailable();
+    }
+
+    /**
+     * Called on the GL thread.
+     */
+    interface OnFrameCacheListener {
+        /**
+         * A whole pass of the video is cached, the decoder is no longer needed.
+         */
+        void frameCacheReady();
+
+        /**
+         * The cache was dropped while replaying, the decoder has to stream again.
+         */
+        void frameCacheEvicted();
+
+        /**
+         * A replay without looping showed its last frame.
+         */
+        void frameCacheReplayEnded();
+    }
+
 }
\ No newline at end of file
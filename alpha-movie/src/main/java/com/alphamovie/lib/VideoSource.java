@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaMetadataRetriever;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Build;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Describes where a video is read from, and applies itself to the different
+ * media framework classes reading it.
+ * <p>
+ * Two sources are equal when they read the same data: the same URL, URI or asset name, the
+ * same {@link FileDescriptor} instance with the same range, or the same
+ * {@code MediaDataSource} instance. Sources are used as keys of the metadata cache.
+ */
+public final class VideoSource {
+    private static final int TYPE_URL = 0;
+    private static final int TYPE_URI = 1;
+    private static final int TYPE_FILE_DESCRIPTOR = 2;
+    private static final int TYPE_MEDIA_DATA_SOURCE = 3;
+    private static final int TYPE_ASSET = 4;
+
+    private static final long UNKNOWN_LENGTH = -1;
+
+    private final int type;
+    /** URL or asset name. */
+    private final String path;
+    private final Context context;
+    private final Uri uri;
+    private final FileDescriptor fileDescriptor;
+    private final long offset;
+    private final long length;
+    private final Object mediaDataSource;
+
+    private VideoSource(int type, String path, Context context, Uri uri,
+                        FileDescriptor fileDescriptor, long offset, long length,
+                        Object mediaDataSource) {
+        this.type = type;
+        this.path = path;
+        this.context = context;
+        this.uri = uri;
+        this.fileDescriptor = fileDescriptor;
+        this.offset = offset;
+        this.length = length;
+        this.mediaDataSource = mediaDataSource;
+    }
+
+    public static VideoSource fromUrl(String url) {
+        return new VideoSource(TYPE_URL, url, null, null, null, 0, UNKNOWN_LENGTH, null);
+    }
+
+    /**
+     * The asset is opened whenever the video is read and closed right after.
+     */
+    public static VideoSource fromAsset(Context context, String assetName) {
+        return new VideoSource(TYPE_ASSET, assetName, context.getApplicationContext(), null, null, 0,
+                UNKNOWN_LENGTH, null);
+    }
+
+    public static VideoSource fromUri(Context context, Uri uri) {
+        return new VideoSource(TYPE_URI, null, context.getApplicationContext(), uri, null, 0,
+                UNKNOWN_LENGTH, null);
+    }
+
+    public static VideoSource fromFileDescriptor(FileDescriptor fileDescriptor) {
+        return new VideoSource(TYPE_FILE_DESCRIPTOR, null, null, null, fileDescriptor, 0,
+                UNKNOWN_LENGTH, null);
+    }
+
+    public static VideoSource fromFileDescriptor(FileDescriptor fileDescriptor, long offset, long length) {
+        return new VideoSource(TYPE_FILE_DESCRIPTOR, null, null, null, fileDescriptor, offset,
+                length, null);
+    }
+
+    @TargetApi(23)
+    public static VideoSource fromMediaDataSource(MediaDataSource mediaDataSource) {
+        return new VideoSource(TYPE_MEDIA_DATA_SOURCE, null, null, null, null, 0,
+                UNKNOWN_LENGTH, mediaDataSource);
+    }
+
+    /**
+     * @return a {@code MediaDataSource} reading the URL through the installed
+     * {@link HttpCache}, or null to let the framework fetch it.
+     */
+    @TargetApi(23)
+    private Object openCachedUrl() {
+        HttpCache cache = HttpCache.getInstalled();
+        if (cache == null || Build.VERSION.SDK_INT < 23 || !HttpCache.isCacheable(path)) {
+            return null;
+        }
+        return new HttpCacheDataSource(cache, path);
+    }
+
+    void applyTo(MediaPlayer mediaPlayer) throws IOException {
+        switch (type) {
+            case TYPE_URL:
+                Object cached = openCachedUrl();
+                if (cached != null) {
+                    setMediaDataSource(mediaPlayer, cached);
+                } else {
+                    mediaPlayer.setDataSource(path);
+                }
+                break;
+            case TYPE_URI:
+                mediaPlayer.setDataSource(context, uri);
+                break;
+            case TYPE_FILE_DESCRIPTOR:
+                if (length == UNKNOWN_LENGTH) {
+                    mediaPlayer.setDataSource(fileDescriptor);
+                } else {
+                    mediaPlayer.setDataSource(fileDescriptor, offset, length);
+                }
+                break;
+            case TYPE_ASSET:
+                AssetFileDescriptor asset = context.getAssets().openFd(path);
+                try {
+                    mediaPlayer.setDataSource(asset.getFileDescriptor(), asset.getStartOffset(), asset.getLength());
+                } finally {
+                    asset.close();
+                }
+                break;
+            case TYPE_MEDIA_DATA_SOURCE:
+                setMediaDataSource(mediaPlayer, mediaDataSource);
+                break;
+        }
+    }
+
+    /**
+     * Only reached on API 23+, sources of this kind can't be created before.
+     */
+    @TargetApi(23)
+    private static void setMediaDataSource(MediaPlayer mediaPlayer, Object mediaDataSource) {
+        mediaPlayer.setDataSource((MediaDataSource) mediaDataSource);
+    }
+
+    @TargetApi(23)
+    void applyTo(MediaExtractor extractor) throws IOException {
+        switch (type) {
+            case TYPE_URL:
+                Object cached = openCachedUrl();
+                if (cached != null) {
+                    extractor.setDataSource((MediaDataSource) cached);
+                } else {
+                    extractor.setDataSource(path, new HashMap<String, String>());
+                }
+                break;
+            case TYPE_URI:
+                extractor.setDataSource(context, uri, null);
+                break;
+            case TYPE_FILE_DESCRIPTOR:
+                if (length == UNKNOWN_LENGTH) {
+                    extractor.setDataSource(fileDescriptor);
+                } else {
+                    extractor.setDataSource(fileDescriptor, offset, length);
+                }
+                break;
+            case TYPE_ASSET:
+                AssetFileDescriptor asset = context.getAssets().openFd(path);
+                try {
+                    extractor.setDataSource(asset.getFileDescriptor(), asset.getStartOffset(), asset.getLength());
+                } finally {
+                    asset.close();
+                }
+                break;
+            case TYPE_MEDIA_DATA_SOURCE:
+                extractor.setDataSource((MediaDataSource) mediaDataSource);
+                break;
+        }
+    }
+
+    @TargetApi(23)
+    void applyTo(MediaMetadataRetriever retriever) throws IOException {
+        switch (type) {
+            case TYPE_URL:
+                Object cached = openCachedUrl();
+                if (cached != null) {
+                    retriever.setDataSource((MediaDataSource) cached);
+                } else {
+                    retriever.setDataSource(path, new HashMap<String, String>());
+                }
+                break;
+            case TYPE_URI:
+                retriever.setDataSource(context, uri);
+                break;
+            case TYPE_FILE_DESCRIPTOR:
+                if (length == UNKNOWN_LENGTH) {
+                    retriever.setDataSource(fileDescriptor);
+                } else {
+                    retriever.setDataSource(fileDescriptor, offset, length);
+                }
+                break;
+            case TYPE_ASSET:
+                AssetFileDescriptor asset = context.getAssets().openFd(path);
+                try {
+                    retriever.setDataSource(asset.getFileDescriptor(), asset.getStartOffset(), asset.getLength());
+                } finally {
+                    asset.close();
+                }
+                break;
+            case TYPE_MEDIA_DATA_SOURCE:
+                retriever.setDataSource((MediaDataSource) mediaDataSource);
+                break;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VideoSource)) {
+            return false;
+        }
+        VideoSource other = (VideoSource) o;
+        return type == other.type
+                && (path == null ? other.path == null : path.equals(other.path))
+                && (uri == null ? other.uri == null : uri.equals(other.uri))
+                && fileDescriptor == other.fileDescriptor
+                && offset == other.offset
+                && length == other.length
+                && mediaDataSource == other.mediaDataSource;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = type;
+        result = 31 * result + (path != null ? path.hashCode() : 0);
+        result = 31 * result + (uri != null ? uri.hashCode() : 0);
+        result = 31 * result + System.identityHashCode(fileDescriptor);
+        result = 31 * result + (int) (offset ^ (offset >>> 32));
+        result = 31 * result + (int) (length ^ (length >>> 32));
+        result = 31 * result + System.identityHashCode(mediaDataSource);
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * Hands out one draw permit per display refresh to render threads that asked for it.
+ * <p>
+ * Render threads request the next vsync from any thread. The request is forwarded to the
+ * main thread's {@link Choreographer}, which calls back at the start of the next frame,
+ * the same moment the UI thread starts its animations. A frame callback is only posted
+ * while some thread is waiting, so idle views don't wake the main thread.
+ */
+@TargetApi(16)
+final class VsyncScheduler implements Choreographer.FrameCallback {
+
+    interface Client {
+        /**
+         * Called on the main thread at the start of the display frame.
+         */
+        void onVsync(long frameTimeNanos);
+    }
+
+    private static VsyncScheduler instance;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this.
+    private final ArrayList<Client> waiting = new ArrayList<Client>();
+    private boolean scheduled;
+
+    // Only used on the main thread.
+    private final ArrayList<Client> dispatching = new ArrayList<Client>();
+
+    private final Runnable postFrameCallback = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(VsyncScheduler.this);
+        }
+    };
+
+    private VsyncScheduler() {
+    }
+
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= 16;
+    }
+
+    static synchronized VsyncScheduler getInstance() {
+        if (instance == null) {
+            instance = new VsyncScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * Calls {@link Client#onVsync(long)} once at the next vsync. May be called from any thread.
+     */
+    void request(Client client) {
+        synchronized (this) {
+            if (!waiting.contains(client)) {
+                waiting.add(client);
+            }
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        mainHandler.post(postFrameCallback);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        synchronized (this) {
+            dispatching.addAll(waiting);
+            waiting.clear();
+            scheduled = false;
+        }
+        for (int i = 0; i < dispatching.size(); i++) {
+            dispatching.get(i).onVsync(frameTimeNanos);
+        }
+        dispatching.clear();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local HTTP stand-in serving one body, waiting a fixed latency before every response.
+ * Honors single byte ranges unless told to ignore them, like some CDNs and proxies do.
+ */
+final class SlowHttpServer {
+    private final byte[] body;
+    private final long latencyMs;
+    private final boolean honorRanges;
+    private final ServerSocket serverSocket;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    SlowHttpServer(byte[] body, long latencyMs, boolean honorRanges) throws IOException {
+        this.body = body;
+        this.latencyMs = latencyMs;
+        this.honorRanges = honorRanges;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread("SlowHttpServer") {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/video.mp4";
+    }
+
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            Thread thread = new Thread("SlowHttpServer connection") {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // The client went away.
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Ignore.
+                        }
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        if (reader.readLine() == null) {
+            return;
+        }
+        String range = null;
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                range = line.substring(colon + 1).trim();
+            }
+        }
+        requestCount.incrementAndGet();
+        try {
+            Thread.sleep(latencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        OutputStream out = socket.getOutputStream();
+        if (range == null || !honorRanges) {
+            writeResponse(out, "200 OK", null, 0, body.length);
+            return;
+        }
+        // bytes=<first>-<last>
+        String[] bounds = range.substring(range.indexOf('=') + 1).split("-");
+        long first = Long.parseLong(bounds[0].trim());
+        long last = bounds.length > 1 && !bounds[1].trim().isEmpty()
+                ? Math.min(Long.parseLong(bounds[1].trim()), body.length - 1) : body.length - 1;
+        if (first >= body.length) {
+            writeResponse(out, "416 Range Not Satisfiable", "bytes */" + body.length, 0, 0);
+        } else {
+            writeResponse(out, "206 Partial Content",
+                    "bytes " + first + "-" + last + "/" + body.length, (int) first,
+                    (int) (last - first + 1));
+        }
+    }
+
+    private void writeResponse(OutputStream out, String status, String contentRange,
+            int offset, int length) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(status).append("\r\n");
+        headers.append("Content-Type: video/mp4\r\n");
+        headers.append("Content-Length: ").append(length).append("\r\n");
+        if (contentRange != null) {
+            headers.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+        out.write(body, offset, length);
+        out.flush();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Maps frame timestamps onto a made-up clock.
+ */
+public class FramePacerTest {
+    private static final long NOW = 500000000000L;
+    private static final long FRAME = 33000000L;
+    private static final long LATE = FramePacer.LATE_NANOS + 1;
+
+    private final FramePacer pacer = new FramePacer();
+
+    @Test
+    public void clockTimestampsAreUsedAsIs() {
+        pacer.update(NOW, NOW);
+        assertFalse(pacer.isLate(NOW, NOW + FramePacer.LATE_NANOS));
+        assertTrue(pacer.isLate(NOW, NOW + LATE));
+    }
+
+    @Test
+    public void otherTimestampsAreMappedFromTheFirstFrame() {
+        pacer.update(0, NOW);
+        pacer.update(FRAME, NOW + FRAME);
+        assertFalse(pacer.isLate(FRAME, NOW + FRAME));
+        assertTrue(pacer.isLate(FRAME, NOW + FRAME + LATE));
+    }
+
+    @Test
+    public void queryDoesNotRebaseTheMapping() {
+        pacer.update(0, NOW);
+        pacer.update(FRAME, NOW + FRAME);
+        // A jump back restarts the mapping when a frame is latched, not when one is checked.
+        assertTrue(pacer.isLate(0, NOW + 10 * FRAME));
+        assertFalse(pacer.isLate(FRAME, NOW + FRAME));
+    }
+
+    @Test
+    public void seekRestartsTheMapping() {
+        pacer.update(10 * FRAME, NOW);
+        pacer.update(0, NOW + 5 * FRAME);
+        assertFalse(pacer.isLate(0, NOW + 5 * FRAME));
+    }
+
+    @Test
+    public void unmappedFrameIsNotLate() {
+        assertFalse(pacer.isLate(0, NOW));
+    }
+}
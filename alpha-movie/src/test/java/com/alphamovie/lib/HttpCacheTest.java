@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads a video through the segment cache from a slow local server, with and without
+ * range support, and checks what comes from the network and what from disk.
+ */
+public class HttpCacheTest {
+    private static final long LATENCY_MS = 300;
+    private static final int SEGMENT = HttpCache.SEGMENT_SIZE;
+    // Two and a half segments, the last one is short.
+    private static final int VIDEO_LENGTH = SEGMENT * 2 + SEGMENT / 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] video = new byte[VIDEO_LENGTH];
+    private SlowHttpServer server;
+    private File cacheDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(video);
+        cacheDirectory = folder.newFolder("videos");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        HttpCache.install(null, 0);
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void rangeRequestsFetchOneSegmentEach() throws IOException {
+        server = new SlowHttpServer(video, LATENCY_MS, true);
+        HttpCache cache = install(Long.MAX_VALUE);
+
+        assertEquals(VIDEO_LENGTH, cache.getLength(server.getUrl()));
+        assertEquals(1, server.getRequestCount());
+        assertSegments(cache);
+        // The first segment came with the length.
+        assertEquals(3, server.getRequestCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(SEGMENT, cache.getBytesSaved());
+    }
+
+    @Test
+    public void ignoredRangeCachesWholeResponse() throws IOException {
+        server = new SlowHttpServer(video, LATENCY_MS, false);
+        HttpCache cache = install(Long.MAX_VALUE);
+
+        assertArrayEquals(segment(1), cache.getSegment(server.getUrl(), 1, true));
+        assertEquals(1, server.getRequestCount());
+        assertSegments(cache);
+        assertEquals(VIDEO_LENGTH, cache.getLength(server.getUrl()));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void lengthIsDeletedWithFirstSegment() throws IOException {
+        server = new SlowHttpServer(video, LATENCY_MS, true);
+        HttpCache cache = install(SEGMENT * 2);
+        String url = server.getUrl();
+
+        assertEquals(VIDEO_LENGTH, cache.getLength(url));
+        cache.getSegment(url, 1, true);
+        cache.getSegment(url, 2, true);
+        assertEquals(3, server.getRequestCount());
+        // Segment 0 was evicted, its length with it.
+        assertEquals(VIDEO_LENGTH, cache.getLength(url));
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void orphanLengthIsDeletedOnInstall() throws IOException {
+        server = new SlowHttpServer(video, LATENCY_MS, true);
+        HttpCache cache = install(Long.MAX_VALUE);
+        assertEquals(VIDEO_LENGTH, cache.getLength(server.getUrl()));
+        for (File file : cacheDirectory.listFiles()) {
+            if (file.getName().endsWith(".0")) {
+                assertTrue(file.delete());
+            }
+        }
+
+        install(Long.MAX_VALUE);
+        assertEquals(0, cacheDirectory.listFiles().length);
+    }
+
+    @Test
+    public void cachedSegmentsDontWaitForNetwork() throws IOException {
+        server = new SlowHttpServer(video, LATENCY_MS, true);
+        HttpCache cache = install(Long.MAX_VALUE);
+        assertSegments(cache);
+        int requests = server.getRequestCount();
+
+        long start = System.nanoTime();
+        assertSegments(cache);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertEquals(requests, server.getRequestCount());
+        assertTrue("Cached reads took " + elapsedMs + " ms", elapsedMs < LATENCY_MS);
+        assertEquals(3, cache.getHitCount());
+        assertEquals(VIDEO_LENGTH, cache.getBytesSaved());
+    }
+
+    @Test
+    public void segmentsAndLengthSurviveReinstall() throws IOException {
+        server = new SlowHttpServer(video, LATENCY_MS, true);
+        assertSegments(install(Long.MAX_VALUE));
+        int requests = server.getRequestCount();
+
+        // A later session finds everything on disk.
+        HttpCache cache = install(Long.MAX_VALUE);
+        assertEquals(VIDEO_LENGTH, cache.getLength(server.getUrl()));
+        assertSegments(cache);
+        assertEquals(requests, server.getRequestCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedSegmentIsEvicted() throws IOException {
+        server = new SlowHttpServer(video, LATENCY_MS, true);
+        HttpCache cache = install(SEGMENT * 2);
+        String url = server.getUrl();
+
+        cache.getSegment(url, 0, true);
+        cache.getSegment(url, 1, true);
+        // Touching the first segment makes the second one the eldest.
+        cache.getSegment(url, 0, true);
+        cache.getSegment(url, 2, true);
+        assertEquals(3, server.getRequestCount());
+
+        cache.getSegment(url, 0, true);
+        assertEquals(3, server.getRequestCount());
+        assertArrayEquals(segment(1), cache.getSegment(url, 1, true));
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void segmentPastTheEndIsEmpty() throws IOException {
+        server = new SlowHttpServer(video, LATENCY_MS, true);
+        HttpCache cache = install(Long.MAX_VALUE);
+
+        assertEquals(0, cache.getSegment(server.getUrl(), 3, true).length);
+    }
+
+    private HttpCache install(long maxBytes) {
+        HttpCache.install(cacheDirectory, maxBytes);
+        return HttpCache.getInstalled();
+    }
+
+    private void assertSegments(HttpCache cache) throws IOException {
+        for (int index = 0; index < 3; index++) {
+            assertArrayEquals("Segment " + index, segment(index),
+                    cache.getSegment(server.getUrl(), index, true));
+        }
+    }
+
+    private byte[] segment(int index) {
+        return Arrays.copyOfRange(video, index * SEGMENT,
+                Math.min(VIDEO_LENGTH, (index + 1) * SEGMENT));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads a temporary file through its mapping.
+ */
+public class MappedMediaDataSourceTest {
+    private static final int LENGTH = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[LENGTH];
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(content);
+        file = folder.newFile("video.mp4");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void readsAtPositionIntoOffset() throws IOException {
+        MappedMediaDataSource source = MappedMediaDataSource.open(file);
+        assertEquals(LENGTH, source.getSize());
+
+        byte[] buffer = new byte[110];
+        assertEquals(100, source.readAt(1234, buffer, 10, 100));
+        assertArrayEquals(Arrays.copyOfRange(content, 1234, 1334),
+                Arrays.copyOfRange(buffer, 10, 110));
+    }
+
+    @Test
+    public void readsShortAtEndAndNothingPastIt() throws IOException {
+        MappedMediaDataSource source = MappedMediaDataSource.open(file);
+        byte[] buffer = new byte[100];
+
+        assertEquals(40, source.readAt(LENGTH - 40, buffer, 0, 100));
+        assertArrayEquals(Arrays.copyOfRange(content, LENGTH - 40, LENGTH),
+                Arrays.copyOf(buffer, 40));
+        assertEquals(-1, source.readAt(LENGTH, buffer, 0, 100));
+    }
+
+    @Test
+    public void mapsDescriptorRange() throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        MappedMediaDataSource source;
+        try {
+            source = MappedMediaDataSource.open(in.getFD(), 4096, 2000);
+        } finally {
+            in.close();
+        }
+        assertEquals(2000, source.getSize());
+
+        byte[] buffer = new byte[2000];
+        assertEquals(2000, source.readAt(0, buffer, 0, 2000));
+        assertArrayEquals(Arrays.copyOfRange(content, 4096, 6096), buffer);
+    }
+
+    @Test
+    public void invalidReadsThrowIOException() throws IOException {
+        MappedMediaDataSource source = MappedMediaDataSource.open(file);
+        byte[] buffer = new byte[100];
+
+        assertReadFails(source, -1, buffer, 0, 10);
+        assertReadFails(source, 0, buffer, -1, 10);
+        assertReadFails(source, 0, buffer, 0, -1);
+        assertReadFails(source, 0, buffer, 95, 10);
+        assertReadFails(source, 0, buffer, Integer.MAX_VALUE, 10);
+    }
+
+    private static void assertReadFails(MappedMediaDataSource source, long position,
+            byte[] buffer, int offset, int size) {
+        try {
+            source.readAt(position, buffer, offset, size);
+            fail("Read of " + size + " at " + position + " into " + offset + " succeeded");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void staysReadableAfterClose() throws IOException {
+        MappedMediaDataSource source = MappedMediaDataSource.open(file);
+        source.close();
+
+        byte[] buffer = new byte[16];
+        assertEquals(16, source.readAt(0, buffer, 0, 16));
+        assertArrayEquals(Arrays.copyOf(content, 16), buffer);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of {@link MappedMediaDataSource} against the two usual ways of serving a local
+ * file: seeking a stream, and positional reads on its file descriptor. Each read moves on
+ * by its size through a file that stays in the page cache, like the extractor walking the
+ * samples of a video.
+ * <p>
+ * Run by {@link MappedReadBenchmarkTest}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MappedReadBenchmark {
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"512", "4096", "65536", "1048576"})
+    public int requestSize;
+
+    private File file;
+    private MappedMediaDataSource mapped;
+    private RandomAccessFile stream;
+    private FileInputStream descriptorStream;
+    private FileChannel descriptor;
+    private byte[] buffer;
+    private long position;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("benchmark", ".mp4");
+        byte[] content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        mapped = MappedMediaDataSource.open(file);
+        stream = new RandomAccessFile(file, "r");
+        descriptorStream = new FileInputStream(file);
+        descriptor = descriptorStream.getChannel();
+        buffer = new byte[requestSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        stream.close();
+        descriptorStream.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public int mapped() throws IOException {
+        return mapped.readAt(nextPosition(), buffer, 0, requestSize);
+    }
+
+    @Benchmark
+    public int stream() throws IOException {
+        stream.seek(nextPosition());
+        return stream.read(buffer, 0, requestSize);
+    }
+
+    @Benchmark
+    public int fileDescriptor() throws IOException {
+        return descriptor.read(ByteBuffer.wrap(buffer, 0, requestSize), nextPosition());
+    }
+
+    private long nextPosition() {
+        long current = position;
+        position += requestSize;
+        if (position + requestSize > FILE_SIZE) {
+            position = 0;
+        }
+        return current;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Pavel Semak
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alphamovie.lib;
+
+import org.junit.Test;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs {@link MappedReadBenchmark}, only when asked for with
+ * {@code ./gradlew :alpha-movie:testReleaseUnitTest -Pbenchmark}.
+ */
+public class MappedReadBenchmarkTest {
+
+    @Test
+    public void runBenchmark() throws RunnerException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        Options options = new OptionsBuilder()
+                .include(MappedReadBenchmark.class.getName())
+                // The test worker's classpath can't be handed to a forked VM.
+                .forks(0)
+                .build();
+        new Runner(options).run();
+    }
+}